@@ -340,6 +340,9 @@ public class EditFeedActivity extends BaseActivity implements LoaderManager.Load
                     values.put(FeedColumns.NAME, name.trim().length() > 0 ? name : null);
                     values.put(FeedColumns.RETRIEVE_FULLTEXT, mRetrieveFulltextCb.isChecked() ? 1 : null);
                     values.put(FeedColumns.FETCH_MODE, 0);
+                    values.putNull(FeedColumns.ETAG);
+                    values.putNull(FeedColumns.LAST_MODIFIED);
+                    values.putNull(FeedColumns.NEXT_REFRESH_DATE);
                     values.putNull(FeedColumns.ERROR);
 
                     cr.update(getIntent().getData(), values, null, null);
@@ -32,8 +32,7 @@ import android.widget.TextView;
 
 import net.fred.feedex.MainApplication;
 import net.fred.feedex.R;
-import net.fred.feedex.provider.FeedData;
-import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.CounterColumns;
 import net.fred.feedex.utils.StringUtils;
 import net.fred.feedex.utils.UiUtils;
 
@@ -50,6 +49,7 @@ public class DrawerAdapter extends BaseAdapter {
     private static final int POS_LAST_UPDATE = 5;
     private static final int POS_ERROR = 6;
     private static final int POS_UNREAD = 7;
+    private static final int POS_ICON_VERSION = 8;
 
     private static final int NORMAL_TEXT_COLOR = Color.parseColor("#EEEEEE");
     private static final int GROUP_TEXT_COLOR = Color.parseColor("#BBBBBB");
@@ -164,7 +164,7 @@ public class DrawerAdapter extends BaseAdapter {
                 }
 
                 final long feedId = mFeedsCursor.getLong(POS_ID);
-                Bitmap bitmap = UiUtils.getFaviconBitmap(feedId, mFeedsCursor, POS_ICON);
+                Bitmap bitmap = UiUtils.getFaviconBitmap(feedId, mFeedsCursor.getLong(POS_ICON_VERSION), mFeedsCursor, POS_ICON);
 
                 if (bitmap != null) {
                     holder.iconView.setImageBitmap(bitmap);
@@ -228,8 +228,9 @@ public class DrawerAdapter extends BaseAdapter {
     private void updateNumbers() {
         mAllUnreadNumber = mFavoritesNumber = 0;
 
-        // Gets the numbers of entries (should be in a thread, but it's way easier like this and it shouldn't be so slow)
-        Cursor numbers = mContext.getContentResolver().query(EntryColumns.CONTENT_URI, new String[]{FeedData.ALL_UNREAD_NUMBER, FeedData.FAVORITES_NUMBER}, null, null, null);
+        // Gets the numbers of entries (only sums one counters row per feed, so it's fine to do it here)
+        Cursor numbers = mContext.getContentResolver().query(CounterColumns.CONTENT_URI, new String[]{CounterColumns.ALL_UNREAD_NUMBER,
+                CounterColumns.ALL_FAVORITES_NUMBER}, null, null, null);
         if (numbers != null) {
             if (numbers.moveToFirst()) {
                 mAllUnreadNumber = numbers.getInt(0);
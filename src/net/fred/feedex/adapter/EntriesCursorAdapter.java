@@ -50,25 +50,19 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.text.Html;
-import android.text.TextUtils;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.ResourceCursorAdapter;
 import android.widget.TextView;
 
 import com.amulyakhare.textdrawable.TextDrawable;
-import com.amulyakhare.textdrawable.util.ColorGenerator;
 import com.bumptech.glide.Glide;
 
-import net.fred.feedex.Constants;
 import net.fred.feedex.MainApplication;
 import net.fred.feedex.R;
 import net.fred.feedex.provider.FeedData;
 import net.fred.feedex.provider.FeedData.EntryColumns;
 import net.fred.feedex.provider.FeedData.FeedColumns;
-import net.fred.feedex.utils.NetworkUtils;
-import net.fred.feedex.utils.StringUtils;
 
 public class EntriesCursorAdapter extends ResourceCursorAdapter {
 
@@ -100,18 +94,13 @@ public class EntriesCursorAdapter extends ResourceCursorAdapter {
         String titleText = cursor.getString(mTitlePos);
         holder.titleTextView.setText(titleText);
 
-        final long feedId = cursor.getLong(mFeedIdPos);
         String feedName = cursor.getString(mFeedNamePos);
+        // Normally already computed in background by the loader
+        EntryRowModel model = EntryRowModel.get(cursor.getLong(mIdPos), feedName, cursor.getLong(mDatePos), cursor.getString(mMainImgPos));
 
-        String mainImgUrl = cursor.getString(mMainImgPos);
-        mainImgUrl = TextUtils.isEmpty(mainImgUrl) ? null : NetworkUtils.getDownloadedOrDistantImageUrl(cursor.getLong(mIdPos), mainImgUrl);
-
-        ColorGenerator generator = ColorGenerator.DEFAULT;
-        int color = generator.getColor(feedId); // The color is specific to the feedId (which shouldn't change)
-        String lettersForName = feedName != null ? (feedName.length() < 2 ? feedName.toUpperCase() : feedName.substring(0, 2).toUpperCase()) : "";
-        TextDrawable letterDrawable = TextDrawable.builder().buildRect(lettersForName, color);
-        if (mainImgUrl != null) {
-            Glide.with(context).load(mainImgUrl).centerCrop().placeholder(letterDrawable).error(letterDrawable).into(holder.mainImgView);
+        TextDrawable letterDrawable = EntryRowModel.getLetterTile(cursor.getLong(mFeedIdPos), model.letters);
+        if (model.mainImgUrl != null) {
+            Glide.with(context).load(model.mainImgUrl).centerCrop().placeholder(letterDrawable).error(letterDrawable).into(holder.mainImgView);
         } else {
             Glide.clear(holder.mainImgView);
             holder.mainImgView.setImageDrawable(letterDrawable);
@@ -121,15 +110,7 @@ public class EntriesCursorAdapter extends ResourceCursorAdapter {
 
         holder.starImgView.setVisibility(holder.isFavorite ? View.VISIBLE : View.INVISIBLE);
 
-        if (mShowFeedInfo && mFeedNamePos > -1) {
-            if (feedName != null) {
-                holder.dateTextView.setText(Html.fromHtml("<font color='#247ab0'>" + feedName + "</font>" + Constants.COMMA_SPACE + StringUtils.getDateTimeString(cursor.getLong(mDatePos))));
-            } else {
-                holder.dateTextView.setText(StringUtils.getDateTimeString(cursor.getLong(mDatePos)));
-            }
-        } else {
-            holder.dateTextView.setText(StringUtils.getDateTimeString(cursor.getLong(mDatePos)));
-        }
+        holder.dateTextView.setText(mShowFeedInfo && mFeedNamePos > -1 ? model.feedAndDateText : model.dateText);
 
         if (cursor.isNull(mIsReadPos)) {
             holder.titleTextView.setEnabled(true);
@@ -0,0 +1,165 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.fred.feedex.adapter;
+
+import android.database.Cursor;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.ForegroundColorSpan;
+import android.util.LruCache;
+
+import com.amulyakhare.textdrawable.TextDrawable;
+import com.amulyakhare.textdrawable.util.ColorGenerator;
+
+import net.fred.feedex.Constants;
+import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.FeedColumns;
+import net.fred.feedex.utils.NetworkUtils;
+import net.fred.feedex.utils.StringUtils;
+
+import java.util.Calendar;
+
+/**
+ * What a row of the entries list displays besides the title: computed in background when the entries are loaded (see
+ * {@link #prepare(Cursor)}) and cached, so that binding a row only assigns values. The letter tiles are shared by the entries of
+ * a feed (see {@link #getLetterTile(long, String)}).
+ */
+public class EntryRowModel {
+
+    private static final int MODELS_CACHE_SIZE = 1000; // in entries
+    private static final int LETTER_TILES_CACHE_SIZE = 200; // in feeds
+    private static final int FEED_NAME_COLOR = 0xFF247AB0;
+    private static final long SIX_HOURS = 21600000; // same rule than StringUtils.getDateTimeString()
+
+    private static final LruCache<Long, EntryRowModel> MODELS = new LruCache<>(MODELS_CACHE_SIZE);
+    private static final LruCache<String, TextDrawable> LETTER_TILES = new LruCache<>(LETTER_TILES_CACHE_SIZE);
+
+    public final String dateText;
+    public final CharSequence feedAndDateText;
+    public final String mainImgUrl; // the downloaded image if any, else the distant one (null without image)
+    public final String letters; // of the letter tile
+
+    // What the model has been computed from
+    private final long mDate;
+    private final String mFeedName, mImgUrl;
+    private final boolean mImgDownloaded;
+    private final long mValidUntil;
+
+    private EntryRowModel(long entryId, String feedName, long date, String imgUrl) {
+        mDate = date;
+        mFeedName = feedName;
+        mImgUrl = imgUrl;
+
+        dateText = StringUtils.getDateTimeString(date);
+        mValidUntil = getDateTextValidity(date);
+        if (feedName != null) {
+            SpannableStringBuilder builder = new SpannableStringBuilder(feedName);
+            builder.setSpan(new ForegroundColorSpan(FEED_NAME_COLOR), 0, feedName.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            feedAndDateText = builder.append(Constants.COMMA_SPACE).append(dateText);
+        } else {
+            feedAndDateText = dateText;
+        }
+
+        mainImgUrl = TextUtils.isEmpty(imgUrl) ? null : NetworkUtils.getDownloadedOrDistantImageUrl(entryId, imgUrl);
+        mImgDownloaded = mainImgUrl != null && !mainImgUrl.equals(imgUrl);
+
+        letters = feedName != null ? (feedName.length() < 2 ? feedName.toUpperCase() : feedName.substring(0, 2).toUpperCase()) : "";
+    }
+
+    /**
+     * Computes the models of the entries of the cursor which are not cached yet (to be called in background)
+     */
+    public static void prepare(Cursor cursor) {
+        int idPos = cursor.getColumnIndex(EntryColumns._ID);
+        int feedNamePos = cursor.getColumnIndex(FeedColumns.NAME);
+        int datePos = cursor.getColumnIndex(EntryColumns.DATE);
+        int imgUrlPos = cursor.getColumnIndex(EntryColumns.IMAGE_URL);
+        if (idPos == -1 || feedNamePos == -1 || datePos == -1 || imgUrlPos == -1) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (cursor.moveToPosition(-1); cursor.moveToNext(); ) {
+            long entryId = cursor.getLong(idPos);
+            String feedName = cursor.getString(feedNamePos);
+            long date = cursor.getLong(datePos);
+            String imgUrl = cursor.getString(imgUrlPos);
+
+            EntryRowModel model = MODELS.get(entryId);
+            // In background, also check again if the image has been downloaded since
+            if (model == null || !model.isValid(feedName, date, imgUrl, now) || (model.mainImgUrl != null && !model.mImgDownloaded)) {
+                MODELS.put(entryId, new EntryRowModel(entryId, feedName, date, imgUrl));
+            }
+        }
+        cursor.moveToPosition(-1);
+    }
+
+    /**
+     * @return the model of the entry, computed now if it has not been prepared
+     */
+    public static EntryRowModel get(long entryId, String feedName, long date, String imgUrl) {
+        EntryRowModel model = MODELS.get(entryId);
+        if (model == null || !model.isValid(feedName, date, imgUrl, System.currentTimeMillis())) {
+            model = new EntryRowModel(entryId, feedName, date, imgUrl);
+            MODELS.put(entryId, model);
+        }
+        return model;
+    }
+
+    private boolean isValid(String feedName, long date, String imgUrl, long now) {
+        return mDate == date && TextUtils.equals(mFeedName, feedName) && TextUtils.equals(mImgUrl, imgUrl) && now < mValidUntil;
+    }
+
+    /**
+     * @return the time until which the date text stays the same: it only displays the time when the entry is recent or of the
+     * same day of month
+     */
+    private static long getDateTextValidity(long date) {
+        Calendar nextDay = Calendar.getInstance();
+        nextDay.set(Calendar.HOUR_OF_DAY, 0);
+        nextDay.set(Calendar.MINUTE, 0);
+        nextDay.set(Calendar.SECOND, 0);
+        nextDay.set(Calendar.MILLISECOND, 0);
+        nextDay.add(Calendar.DAY_OF_MONTH, 1);
+
+        long validUntil = nextDay.getTimeInMillis();
+        if (date + SIX_HOURS > System.currentTimeMillis()) {
+            validUntil = Math.min(validUntil, date + SIX_HOURS);
+        }
+        return validUntil;
+    }
+
+    /**
+     * @return the letter tile of the feed, shared by all its rows. They all have the same size and the tile has no state of its own
+     * (it is drawn at the size of its view), so it can be displayed by several views at once.
+     */
+    public static TextDrawable getLetterTile(long feedId, String letters) {
+        String key = feedId + letters;
+
+        TextDrawable tile = LETTER_TILES.get(key);
+        if (tile == null) {
+            int color = ColorGenerator.DEFAULT.getColor(feedId); // The color is specific to the feedId (which shouldn't change)
+            tile = TextDrawable.builder().buildRect(letters, color);
+            LETTER_TILES.put(key, tile);
+        }
+        return tile;
+    }
+}
@@ -40,6 +40,7 @@ public class FeedsCursorAdapter extends CursorLoaderExpandableListAdapter {
     private int mIdPos = -1;
     private int mLinkPos = -1;
     private int mIconPos = -1;
+    private int mIconVersionPos = -1;
 
     public FeedsCursorAdapter(Activity activity, Uri groupUri) {
         super(activity, groupUri, R.layout.item_feed_list, R.layout.item_feed_list);
@@ -57,7 +58,7 @@ public class FeedsCursorAdapter extends CursorLoaderExpandableListAdapter {
         TextView textView = view.findViewById(android.R.id.text1);
 
         final long feedId = cursor.getLong(mIdPos);
-        Bitmap bitmap = UiUtils.getFaviconBitmap(feedId, cursor, mIconPos);
+        Bitmap bitmap = UiUtils.getFaviconBitmap(feedId, cursor.getLong(mIconVersionPos), cursor, mIconPos);
 
         if (bitmap != null) {
             textView.setCompoundDrawablesWithIntrinsicBounds(new BitmapDrawable(context.getResources(), bitmap), null, null, null);
@@ -120,6 +121,7 @@ public class FeedsCursorAdapter extends CursorLoaderExpandableListAdapter {
             mIdPos = cursor.getColumnIndex(FeedColumns._ID);
             mLinkPos = cursor.getColumnIndex(FeedColumns.URL);
             mIconPos = cursor.getColumnIndex(FeedColumns.ICON);
+            mIconVersionPos = cursor.getColumnIndex(FeedColumns.ICON_VERSION);
         }
     }
 }
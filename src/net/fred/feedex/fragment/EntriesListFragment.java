@@ -19,6 +19,7 @@
 
 package net.fred.feedex.fragment;
 
+import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
@@ -47,6 +48,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.ListView;
 
@@ -58,6 +60,7 @@ import net.fred.feedex.provider.FeedData;
 import net.fred.feedex.provider.FeedData.EntryColumns;
 import net.fred.feedex.provider.FeedDataContentProvider;
 import net.fred.feedex.service.FetcherService;
+import net.fred.feedex.utils.EntriesPagedLoader;
 import net.fred.feedex.utils.PrefUtils;
 import net.fred.feedex.utils.UiUtils;
 
@@ -91,11 +94,10 @@ public class EntriesListFragment extends SwipeRefreshListFragment {
     private final LoaderManager.LoaderCallbacks<Cursor> mEntriesLoader = new LoaderManager.LoaderCallbacks<Cursor>() {
         @Override
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-            String entriesOrder = PrefUtils.getBoolean(PrefUtils.DISPLAY_OLDEST_FIRST, false) ? Constants.DB_ASC : Constants.DB_DESC;
-            String where = "(" + EntryColumns.FETCH_DATE + Constants.DB_IS_NULL + Constants.DB_OR + EntryColumns.FETCH_DATE + "<=" + mListDisplayDate + ')';
-            CursorLoader cursorLoader = new CursorLoader(getActivity(), mCurrentUri, null, where, null, EntryColumns.DATE + entriesOrder);
-            cursorLoader.setUpdateThrottle(150);
-            return cursorLoader;
+            boolean oldestFirst = PrefUtils.getBoolean(PrefUtils.DISPLAY_OLDEST_FIRST, false);
+            EntriesPagedLoader entriesLoader = new EntriesPagedLoader(getActivity(), mCurrentUri, getDisplayedEntriesWhere(), oldestFirst);
+            entriesLoader.setUpdateThrottle(150);
+            return entriesLoader;
         }
 
         @Override
@@ -184,6 +186,20 @@ public class EntriesListFragment extends SwipeRefreshListFragment {
 
         mListView = rootView.findViewById(android.R.id.list);
         mListView.setOnTouchListener(new SwipeGestureListener(mListView.getContext()));
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                // Let the loader prefetch the next entries (or reload the changed ones) before they are displayed
+                Loader<Cursor> loader = getLoaderManager().getLoader(ENTRIES_LOADER_ID);
+                if (loader instanceof EntriesPagedLoader) {
+                    ((EntriesPagedLoader) loader).setVisibleRange(firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+                }
+            }
+        });
         UiUtils.addEmptyFooterView(mListView, 90);
 
         mRefreshListBtn = rootView.findViewById(R.id.refreshListBtn);
@@ -285,21 +301,38 @@ public class EntriesListFragment extends SwipeRefreshListFragment {
         switch (item.getItemId()) {
             case R.id.menu_share_starred: {
                 if (mEntriesCursorAdapter != null) {
-                    String starredList = "";
-                    Cursor cursor = mEntriesCursorAdapter.getCursor();
-                    if (cursor != null && !cursor.isClosed()) {
-                        int titlePos = cursor.getColumnIndex(EntryColumns.TITLE);
-                        int linkPos = cursor.getColumnIndex(EntryColumns.LINK);
-                        if (cursor.moveToFirst()) {
-                            do {
-                                starredList += cursor.getString(titlePos) + "\n" + cursor.getString(linkPos) + "\n\n";
-                            } while (cursor.moveToNext());
+                    // The adapter only contains the loaded pages of entries, so the displayed ones are queried again
+                    final Activity activity = getActivity();
+                    final Uri uri = mCurrentUri;
+                    final String where = getDisplayedEntriesWhere();
+                    final String entriesOrder = PrefUtils.getBoolean(PrefUtils.DISPLAY_OLDEST_FIRST, false) ? Constants.DB_ASC : Constants.DB_DESC;
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            Cursor cursor = activity.getContentResolver().query(uri, new String[]{EntryColumns.TITLE, EntryColumns.LINK}, where, null,
+                                    EntryColumns.DATE + entriesOrder);
+                            if (cursor != null) {
+                                final StringBuilder starredList = new StringBuilder();
+                                while (cursor.moveToNext()) {
+                                    starredList.append(cursor.getString(0)).append('\n').append(cursor.getString(1)).append("\n\n");
+                                }
+                                cursor.close();
+
+                                activity.runOnUiThread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (!activity.isFinishing()) {
+                                            activity.startActivity(Intent.createChooser(
+                                                    new Intent(Intent.ACTION_SEND).putExtra(Intent.EXTRA_SUBJECT, activity.getString(R.string.share_favorites_title))
+                                                            .putExtra(Intent.EXTRA_TEXT, starredList.toString()).setType(Constants.MIMETYPE_TEXT_PLAIN),
+                                                    activity.getString(R.string.menu_share)
+                                            ));
+                                        }
+                                    }
+                                });
+                            }
                         }
-                        startActivity(Intent.createChooser(
-                                new Intent(Intent.ACTION_SEND).putExtra(Intent.EXTRA_SUBJECT, getString(R.string.share_favorites_title))
-                                        .putExtra(Intent.EXTRA_TEXT, starredList).setType(Constants.MIMETYPE_TEXT_PLAIN), getString(R.string.menu_share)
-                        ));
-                    }
+                    }.start();
                 }
                 return true;
             }
@@ -343,7 +376,7 @@ public class EntriesListFragment extends SwipeRefreshListFragment {
                 @Override
                 public void run() {
                     ContentResolver cr = MainApplication.getContext().getContentResolver();
-                    String where = EntryColumns.WHERE_UNREAD + Constants.DB_AND + '(' + EntryColumns.FETCH_DATE + Constants.DB_IS_NULL + Constants.DB_OR + EntryColumns.FETCH_DATE + "<=" + mListDisplayDate + ')';
+                    String where = EntryColumns.WHERE_UNREAD + Constants.DB_AND + getDisplayedEntriesWhere();
                     if (mJustMarkedAsReadEntries != null && !mJustMarkedAsReadEntries.isClosed()) {
                         mJustMarkedAsReadEntries.close();
                     }
@@ -359,6 +392,13 @@ public class EntriesListFragment extends SwipeRefreshListFragment {
         }
     }
 
+    /**
+     * The entries fetched after the list display date are not shown until the list is refreshed
+     */
+    private String getDisplayedEntriesWhere() {
+        return "(" + EntryColumns.FETCH_DATE + Constants.DB_IS_NULL + Constants.DB_OR + EntryColumns.FETCH_DATE + "<=" + mListDisplayDate + ')';
+    }
+
     private void startRefresh() {
         if (!PrefUtils.getBoolean(PrefUtils.IS_REFRESHING, false)) {
             if (mCurrentUri != null && FeedDataContentProvider.URI_MATCHER.match(mCurrentUri) == FeedDataContentProvider.URI_ENTRIES_FOR_FEED) {
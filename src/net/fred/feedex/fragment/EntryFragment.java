@@ -58,23 +58,23 @@ import net.fred.feedex.provider.FeedData;
 import net.fred.feedex.provider.FeedData.EntryColumns;
 import net.fred.feedex.provider.FeedData.FeedColumns;
 import net.fred.feedex.service.FetcherService;
+import net.fred.feedex.utils.EntryIdWindow;
 import net.fred.feedex.utils.PrefUtils;
 import net.fred.feedex.utils.UiUtils;
 import net.fred.feedex.view.EntryView;
 
-public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.OnFullScreenListener, LoaderManager.LoaderCallbacks<Cursor>, EntryView.EntryViewManager {
+public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.OnFullScreenListener, LoaderManager.LoaderCallbacks<Cursor>, EntryView.EntryViewManager,
+        EntryIdWindow.Listener {
 
     private static final String STATE_BASE_URI = "STATE_BASE_URI";
-    private static final String STATE_CURRENT_PAGER_POS = "STATE_CURRENT_PAGER_POS";
-    private static final String STATE_ENTRIES_IDS = "STATE_ENTRIES_IDS";
     private static final String STATE_INITIAL_ENTRY_ID = "STATE_INITIAL_ENTRY_ID";
 
-    private int mTitlePos = -1, mDatePos, mMobilizedHtmlPos, mAbstractPos, mLinkPos, mIsFavoritePos, mIsReadPos, mEnclosurePos, mAuthorPos, mFeedNamePos, mFeedUrlPos, mFeedIconPos;
+    private int mTitlePos = -1, mDatePos, mMobilizedHtmlPos, mAbstractPos, mLinkPos, mIsFavoritePos, mIsReadPos, mEnclosurePos, mAuthorPos, mFeedNamePos, mFeedUrlPos;
 
-    private int mCurrentPagerPos = -1;
+    private int mCurrentIndex = -1; // index of the displayed entry in the window (see EntryIdWindow)
     private Uri mBaseUri;
     private long mInitialEntryId = -1;
-    private long[] mEntriesIds;
+    private EntryIdWindow mEntriesWindow;
 
     private boolean mFavorite, mPreferFullText = true;
 
@@ -110,11 +110,8 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
 
         if (savedInstanceState != null) {
             mBaseUri = savedInstanceState.getParcelable(STATE_BASE_URI);
-            mEntriesIds = savedInstanceState.getLongArray(STATE_ENTRIES_IDS);
             mInitialEntryId = savedInstanceState.getLong(STATE_INITIAL_ENTRY_ID);
-            mCurrentPagerPos = savedInstanceState.getInt(STATE_CURRENT_PAGER_POS);
-            mEntryPager.getAdapter().notifyDataSetChanged();
-            mEntryPager.setCurrentItem(mCurrentPagerPos);
+            loadEntries();
         }
 
         mEntryPager.addOnPageChangeListener(new ViewPager.OnPageChangeListener() {
@@ -124,11 +121,16 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
 
             @Override
             public void onPageSelected(int i) {
-                mCurrentPagerPos = i;
-                mEntryPagerAdapter.onPause(); // pause all webviews
-                mEntryPagerAdapter.onResume(); // resume the current webview
+                mEntriesWindow.onPositionSelected(i);
 
-                refreshUI(mEntryPagerAdapter.getCursor(i));
+                int index = mEntriesWindow.getIndex(i);
+                if (index != mCurrentIndex) { // not the case when the page only moved because entries were loaded before it
+                    mCurrentIndex = index;
+                    mEntryPagerAdapter.onPause(); // pause all webviews
+                    mEntryPagerAdapter.onResume(); // resume the current webview
+
+                    refreshUI(mEntryPagerAdapter.getCursor(index));
+                }
             }
 
             @Override
@@ -144,9 +146,8 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
     @Override
     public void onSaveInstanceState(Bundle outState) {
         outState.putParcelable(STATE_BASE_URI, mBaseUri);
-        outState.putLongArray(STATE_ENTRIES_IDS, mEntriesIds);
-        outState.putLong(STATE_INITIAL_ENTRY_ID, mInitialEntryId);
-        outState.putInt(STATE_CURRENT_PAGER_POS, mCurrentPagerPos);
+        long currentEntryId = getCurrentEntryId();
+        outState.putLong(STATE_INITIAL_ENTRY_ID, currentEntryId != -1 ? currentEntryId : mInitialEntryId);
 
         super.onSaveInstanceState(outState);
     }
@@ -183,6 +184,14 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
         mEntryPagerAdapter.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        if (mEntriesWindow != null) {
+            mEntriesWindow.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.entry, menu);
@@ -197,7 +206,8 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
-        if (mEntriesIds != null) {
+        final long entryId = getCurrentEntryId();
+        if (entryId != -1) {
             Activity activity = getActivity();
 
             switch (item.getItemId()) {
@@ -210,7 +220,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
                         item.setTitle(R.string.menu_star).setIcon(R.drawable.rating_not_important);
                     }
 
-                    final Uri uri = ContentUris.withAppendedId(mBaseUri, mEntriesIds[mCurrentPagerPos]);
+                    final Uri uri = ContentUris.withAppendedId(mBaseUri, entryId);
                     new Thread() {
                         @Override
                         public void run() {
@@ -222,13 +232,13 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
                             // Update the cursor
                             Cursor updatedCursor = cr.query(uri, null, null, null, null);
                             updatedCursor.moveToFirst();
-                            mEntryPagerAdapter.setUpdatedCursor(mCurrentPagerPos, updatedCursor);
+                            mEntryPagerAdapter.setUpdatedCursor(mCurrentIndex, updatedCursor);
                         }
                     }.start();
                     break;
                 }
                 case R.id.menu_share: {
-                    Cursor cursor = mEntryPagerAdapter.getCursor(mCurrentPagerPos);
+                    Cursor cursor = mEntryPagerAdapter.getCursor(mCurrentIndex);
                     if (cursor != null) {
                         String link = cursor.getString(mLinkPos);
                         if (link != null) {
@@ -246,7 +256,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
                     break;
                 }
                 case R.id.menu_copy_clipboard: {
-                    Cursor cursor = mEntryPagerAdapter.getCursor(mCurrentPagerPos);
+                    Cursor cursor = mEntryPagerAdapter.getCursor(mCurrentIndex);
                     String link = cursor.getString(mLinkPos);
                     ClipboardManager clipboard = (ClipboardManager) activity.getSystemService(Context.CLIPBOARD_SERVICE);
                     ClipData clip = ClipData.newPlainText("Copied Text", link);
@@ -256,7 +266,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
                     break;
                 }
                 case R.id.menu_mark_as_unread: {
-                    final Uri uri = ContentUris.withAppendedId(mBaseUri, mEntriesIds[mCurrentPagerPos]);
+                    final Uri uri = ContentUris.withAppendedId(mBaseUri, entryId);
                     new Thread() {
                         @Override
                         public void run() {
@@ -274,8 +284,6 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
     }
 
     public void setData(Uri uri) {
-        mCurrentPagerPos = -1;
-
         mBaseUri = FeedData.EntryColumns.PARENT_URI(uri.getPath());
         try {
             mInitialEntryId = Long.parseLong(uri.getLastPathSegment());
@@ -283,36 +291,52 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
             mInitialEntryId = -1;
         }
 
-        if (mBaseUri != null) {
-            String entriesOrder = PrefUtils.getBoolean(PrefUtils.DISPLAY_OLDEST_FIRST, false) ? Constants.DB_ASC : Constants.DB_DESC;
-
-            // Load the entriesIds list. Should be in a loader... but I was too lazy to do so
-            Cursor entriesCursor = MainApplication.getContext().getContentResolver().query(mBaseUri, EntryColumns.PROJECTION_ID,
-                    null, null, EntryColumns.DATE + entriesOrder);
-
-            if (entriesCursor != null && entriesCursor.getCount() > 0) {
-                mEntriesIds = new long[entriesCursor.getCount()];
-                int i = 0;
-                while (entriesCursor.moveToNext()) {
-                    mEntriesIds[i] = entriesCursor.getLong(0);
-                    if (mEntriesIds[i] == mInitialEntryId) {
-                        mCurrentPagerPos = i; // To immediately display the good entry
-                    }
-                    i++;
-                }
+        loadEntries();
+    }
 
-                entriesCursor.close();
-            }
+    /**
+     * Starts loading the ids of the entries around the initial one, in background
+     */
+    private void loadEntries() {
+        if (mEntriesWindow != null) {
+            mEntriesWindow.close();
+        }
+        mCurrentIndex = -1;
+
+        if (mBaseUri != null) {
+            mEntriesWindow = new EntryIdWindow(mBaseUri, PrefUtils.getBoolean(PrefUtils.DISPLAY_OLDEST_FIRST, false), this);
+            mEntriesWindow.load(mInitialEntryId);
         } else {
-            mEntriesIds = null;
+            mEntriesWindow = null;
         }
 
         mEntryPagerAdapter.notifyDataSetChanged();
-        if (mCurrentPagerPos != -1) {
-            mEntryPager.setCurrentItem(mCurrentPagerPos);
+    }
+
+    @Override
+    public void onWindowChanged(EntryIdWindow window) {
+        if (mCurrentIndex == -1 && window.getInitialPosition() != -1) {
+            mCurrentIndex = window.getIndex(window.getInitialPosition()); // To immediately display the good entry
+            mEntryPagerAdapter.notifyDataSetChanged();
+            mEntryPager.setCurrentItem(window.getInitialPosition(), false);
+        } else {
+            mEntryPagerAdapter.notifyDataSetChanged(); // the current page is moved if entries were added before it
+        }
+
+        int currentPosition = window.getPosition(mCurrentIndex);
+        if (currentPosition != -1) {
+            window.onPositionSelected(currentPosition); // continue to preload if still close to an end
         }
     }
 
+    /**
+     * @return the id of the displayed entry, or -1 if the entries are not loaded yet
+     */
+    private long getCurrentEntryId() {
+        int position = mEntriesWindow != null ? mEntriesWindow.getPosition(mCurrentIndex) : -1;
+        return position != -1 ? mEntriesWindow.getId(position) : -1;
+    }
+
     private void refreshUI(Cursor entryCursor) {
         if (entryCursor != null) {
             String feedTitle = entryCursor.isNull(mFeedNamePos) ? entryCursor.getString(mFeedUrlPos) : entryCursor.getString(mFeedNamePos);
@@ -323,7 +347,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
             activity.invalidateOptionsMenu();
 
             // Listen the mobilizing task
-            if (FetcherService.hasMobilizationTask(mEntriesIds[mCurrentPagerPos])) {
+            if (FetcherService.hasMobilizationTask(getCurrentEntryId())) {
                 showSwipeProgress();
 
                 // If the service is not started, start it here to avoid an infinite loading
@@ -336,7 +360,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
 
             // Mark the article as read
             if (entryCursor.getInt(mIsReadPos) != 1) {
-                final Uri uri = ContentUris.withAppendedId(mBaseUri, mEntriesIds[mCurrentPagerPos]);
+                final Uri uri = ContentUris.withAppendedId(mBaseUri, getCurrentEntryId());
                 new Thread(new Runnable() {
                     @Override
                     public void run() {
@@ -346,7 +370,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
                         // Update the cursor
                         Cursor updatedCursor = cr.query(uri, null, null, null, null);
                         updatedCursor.moveToFirst();
-                        mEntryPagerAdapter.setUpdatedCursor(mCurrentPagerPos, updatedCursor);
+                        mEntryPagerAdapter.setUpdatedCursor(mCurrentIndex, updatedCursor);
                     }
                 }).start();
             }
@@ -376,7 +400,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
             @Override
             public void run() {
                 mPreferFullText = false;
-                mEntryPagerAdapter.displayEntry(mCurrentPagerPos, null, true);
+                mEntryPagerAdapter.displayEntry(mCurrentIndex, null, true);
             }
         });
     }
@@ -385,7 +409,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
     public void onClickFullText() {
         final BaseActivity activity = (BaseActivity) getActivity();
 
-        Cursor cursor = mEntryPagerAdapter.getCursor(mCurrentPagerPos);
+        Cursor cursor = mEntryPagerAdapter.getCursor(mCurrentIndex);
         final boolean alreadyMobilized = !cursor.isNull(mMobilizedHtmlPos);
 
         if (alreadyMobilized) {
@@ -393,7 +417,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
                 @Override
                 public void run() {
                     mPreferFullText = true;
-                    mEntryPagerAdapter.displayEntry(mCurrentPagerPos, null, true);
+                    mEntryPagerAdapter.displayEntry(mCurrentIndex, null, true);
                 }
             });
         } else if (!isRefreshing()) {
@@ -402,7 +426,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
 
             // since we have acquired the networkInfo, we use it for basic checks
             if (networkInfo != null && networkInfo.getState() == NetworkInfo.State.CONNECTED) {
-                FetcherService.addEntriesToMobilize(new long[]{mEntriesIds[mCurrentPagerPos]});
+                FetcherService.addEntriesToMobilize(new long[]{getCurrentEntryId()});
                 activity.startService(new Intent(activity, FetcherService.class).setAction(FetcherService.ACTION_MOBILIZE_FEEDS));
                 activity.runOnUiThread(new Runnable() {
                     @Override
@@ -426,7 +450,7 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
         getActivity().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                final String enclosure = mEntryPagerAdapter.getCursor(mCurrentPagerPos).getString(mEnclosurePos);
+                final String enclosure = mEntryPagerAdapter.getCursor(mCurrentIndex).getString(mEnclosurePos);
 
                 final int position1 = enclosure.indexOf(Constants.ENCLOSURE_SEPARATOR);
                 final int position2 = enclosure.indexOf(Constants.ENCLOSURE_SEPARATOR, position1 + 3);
@@ -481,7 +505,9 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        CursorLoader cursorLoader = new CursorLoader(getActivity(), EntryColumns.CONTENT_URI(mEntriesIds[id]), null, null, null, null);
+        // The id of a loader is the index of its entry in the window
+        CursorLoader cursorLoader = new CursorLoader(getActivity(), EntryColumns.CONTENT_URI(mEntriesWindow.getId(mEntriesWindow.getPosition(id))),
+                null, null, null, null);
         cursorLoader.setUpdateThrottle(1000);
         return cursorLoader;
     }
@@ -503,13 +529,9 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
                 mAuthorPos = cursor.getColumnIndex(EntryColumns.AUTHOR);
                 mFeedNamePos = cursor.getColumnIndex(FeedColumns.NAME);
                 mFeedUrlPos = cursor.getColumnIndex(FeedColumns.URL);
-                mFeedIconPos = cursor.getColumnIndex(FeedColumns.ICON);
             }
 
-            int position = loader.getId();
-            if (position != -1) {
-                mEntryPagerAdapter.displayEntry(position, cursor, false);
-            }
+            mEntryPagerAdapter.displayEntry(loader.getId(), cursor, false);
         }
     }
 
@@ -535,6 +557,9 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
         // Nothing to do
     }
 
+    /**
+     * The pages are identified by the index of their entry in the window, so they follow it when entries are loaded before it
+     */
     private class EntryPagerAdapter extends PagerAdapter {
 
         private final SparseArray<EntryView> mEntryViews = new SparseArray<>();
@@ -544,24 +569,39 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
 
         @Override
         public int getCount() {
-            return mEntriesIds != null ? mEntriesIds.length : 0;
+            return mEntriesWindow != null ? mEntriesWindow.getCount() : 0;
         }
 
         @Override
         public Object instantiateItem(ViewGroup container, int position) {
+            int index = mEntriesWindow.getIndex(position);
             EntryView view = new EntryView(getActivity());
-            mEntryViews.put(position, view);
+            view.setTag(R.id.entry_id, mEntriesWindow.getId(position));
+            mEntryViews.put(index, view);
             container.addView(view);
             view.setListener(EntryFragment.this);
-            getLoaderManager().restartLoader(position, null, EntryFragment.this);
+            getLoaderManager().restartLoader(index, null, EntryFragment.this);
             return view;
         }
 
         @Override
         public void destroyItem(ViewGroup container, int position, Object object) {
-            getLoaderManager().destroyLoader(position);
+            int index = mEntryViews.keyAt(mEntryViews.indexOfValue((EntryView) object));
+            getLoaderManager().destroyLoader(index);
             container.removeView((View) object);
-            mEntryViews.delete(position);
+            mEntryViews.delete(index);
+        }
+
+        @Override
+        public int getItemPosition(Object object) {
+            int i = mEntryViews.indexOfValue((EntryView) object);
+            int position = i >= 0 && mEntriesWindow != null ? mEntriesWindow.getPosition(mEntryViews.keyAt(i)) : -1;
+
+            // The entry id is also checked, as the indexes of a new window can be the same than the ones of the previous one
+            if (position != -1 && mEntriesWindow.getId(position) == (Long) ((View) object).getTag(R.id.entry_id)) {
+                return position;
+            }
+            return POSITION_NONE;
         }
 
         @Override
@@ -569,8 +609,8 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
             return view == object;
         }
 
-        public void displayEntry(int pagerPos, Cursor newCursor, boolean forceUpdate) {
-            EntryView view = mEntryViews.get(pagerPos);
+        public void displayEntry(int index, Cursor newCursor, boolean forceUpdate) {
+            EntryView view = mEntryViews.get(index);
             if (view != null) {
                 if (newCursor == null) {
                     newCursor = (Cursor) view.getTag(); // get the old one
@@ -594,26 +634,26 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
                     String title = newCursor.getString(mTitlePos);
                     String enclosure = newCursor.getString(mEnclosurePos);
 
-                    view.setHtml(mEntriesIds[pagerPos], title, link, contentText, enclosure, author, timestamp, mPreferFullText);
+                    view.setHtml((Long) view.getTag(R.id.entry_id), title, link, contentText, enclosure, author, timestamp, mPreferFullText);
                     view.setTag(newCursor);
 
-                    if (pagerPos == mCurrentPagerPos) {
+                    if (index == mCurrentIndex) {
                         refreshUI(newCursor);
                     }
                 }
             }
         }
 
-        public Cursor getCursor(int pagerPos) {
-            EntryView view = mEntryViews.get(pagerPos);
+        public Cursor getCursor(int index) {
+            EntryView view = mEntryViews.get(index);
             if (view != null) {
                 return (Cursor) view.getTag();
             }
             return null;
         }
 
-        public void setUpdatedCursor(int pagerPos, Cursor newCursor) {
-            EntryView view = mEntryViews.get(pagerPos);
+        public void setUpdatedCursor(int index, Cursor newCursor) {
+            EntryView view = mEntryViews.get(index);
             if (view != null) {
                 Cursor previousUpdatedOne = (Cursor) view.getTag(R.id.updated_cursor);
                 if (previousUpdatedOne != null) {
@@ -625,11 +665,9 @@ public class EntryFragment extends SwipeRefreshFragment implements BaseActivity.
         }
 
         public void onResume() {
-            if (mEntriesIds != null) {
-                EntryView view = mEntryViews.get(mCurrentPagerPos);
-                if (view != null) {
-                    view.onResume();
-                }
+            EntryView view = mEntryViews.get(mCurrentIndex);
+            if (view != null) {
+                view.onResume();
             }
         }
 
@@ -0,0 +1,379 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.parser;
+
+import java.util.TimeZone;
+
+/**
+ * Parses the RFC 822 and ISO 8601 / RFC 3339 dates found in the feeds, including their most common malformed variants.
+ * No exception is thrown and nothing is allocated while parsing. One instance is meant to be used for one feed and remembers
+ * which dialect it uses, so that it is tried first next time. Not thread-safe.
+ */
+public class FeedDateParser {
+
+    public static final long NO_DATE = Long.MIN_VALUE;
+
+    private static final int DIALECT_RFC822 = 0;
+    private static final int DIALECT_ISO8601 = 1;
+
+    private static final long MILLIS_PER_MINUTE = 60000L;
+    private static final long MILLIS_PER_DAY = 86400000L;
+    private static final int NO_OFFSET = Integer.MIN_VALUE;
+
+    private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+
+    // Named timezones, with their offset in minutes
+    private static final String[] ZONE_NAMES = {"gmt", "ut", "utc", "z", "est", "edt", "cst", "cdt", "mst", "mdt", "pst", "pdt", "cet", "cest",
+            "mest", "bst", "ict"};
+    private static final int[] ZONE_OFFSETS = {0, 0, 0, 0, -300, -240, -360, -300, -420, -360, -480, -420, 60, 120,
+            120, 60, 420};
+
+    private final TimeZone mLocalTimeZone = TimeZone.getDefault();
+    private final int mCenturyPivot;
+
+    private int mLastDialect = DIALECT_RFC822;
+    private int mPos;
+
+    public FeedDateParser(long now) {
+        // Same rule than SimpleDateFormat for the 2-digits years: at most 20 years in the future
+        mCenturyPivot = (int) (1970 + now / MILLIS_PER_DAY / 365.2425) + 20;
+    }
+
+    /**
+     * @return the date in milliseconds, or {@link #NO_DATE} if the string is not recognized
+     */
+    public long parse(CharSequence str) {
+        int firstDialect = mLastDialect;
+        long result = parse(str, firstDialect);
+        if (result == NO_DATE) {
+            int otherDialect = firstDialect == DIALECT_RFC822 ? DIALECT_ISO8601 : DIALECT_RFC822;
+            result = parse(str, otherDialect);
+            if (result != NO_DATE) {
+                mLastDialect = otherDialect;
+            }
+        }
+        return result;
+    }
+
+    private long parse(CharSequence str, int dialect) {
+        return dialect == DIALECT_RFC822 ? parseRfc822(str) : parseIso8601(str);
+    }
+
+    /**
+     * [Day[,]] d Mon yy[yy] H:mm[:ss] [zone]
+     */
+    public long parseRfc822(CharSequence str) {
+        int length = str.length();
+        mPos = 0;
+        skipSeparators(str, length);
+
+        // Optional day of the week
+        if (mPos < length && isLetter(str.charAt(mPos))) {
+            skipLetters(str, length);
+            skipSeparators(str, length);
+        }
+
+        int day = readNumber(str, length, 2);
+        if (day < 1 || day > 31) {
+            return NO_DATE;
+        }
+        skipSeparators(str, length);
+
+        int month = readMonth(str, length);
+        if (month == 0) {
+            return NO_DATE;
+        }
+        skipSeparators(str, length);
+
+        int start = mPos;
+        int year = readNumber(str, length, 4);
+        if (year < 0) {
+            return NO_DATE;
+        }
+        if (mPos - start <= 2) {
+            year += 2000;
+            if (year > mCenturyPivot) {
+                year -= 100;
+            }
+        }
+        skipSeparators(str, length);
+
+        int hour = 0, minute = 0, second = 0;
+        if (mPos < length && isDigit(str.charAt(mPos))) {
+            hour = readNumber(str, length, 2);
+            if (!skipChar(str, length, ':')) {
+                return NO_DATE;
+            }
+            minute = readNumber(str, length, 2);
+            if (skipChar(str, length, ':')) {
+                second = readNumber(str, length, 2);
+            }
+            skipFraction(str, length);
+            if (!isValidTime(hour, minute, second)) {
+                return NO_DATE;
+            }
+        }
+
+        skipSpaces(str, length);
+        return toMillis(year, month, day, hour, minute, second, 0, readZoneOffset(str, length));
+    }
+
+    /**
+     * yyyy-MM-dd[(T| )HH:mm[:ss[.S*]]][Z|(+|-)hh[[:]mm]]
+     */
+    public long parseIso8601(CharSequence str) {
+        int length = str.length();
+        mPos = 0;
+        skipSpaces(str, length);
+
+        int start = mPos;
+        int year = readNumber(str, length, 4);
+        if (mPos - start != 4 || !skipChar(str, length, '-')) {
+            return NO_DATE;
+        }
+        int month = readNumber(str, length, 2);
+        if (month < 1 || month > 12 || !skipChar(str, length, '-')) {
+            return NO_DATE;
+        }
+        int day = readNumber(str, length, 2);
+        if (day < 1 || day > 31) {
+            return NO_DATE;
+        }
+
+        int hour = 0, minute = 0, second = 0, millis = 0;
+        int offset = NO_OFFSET;
+        if (mPos < length && (str.charAt(mPos) == 'T' || str.charAt(mPos) == 't' || str.charAt(mPos) == ' ')) {
+            mPos++;
+            skipSpaces(str, length);
+            hour = readNumber(str, length, 2);
+            if (hour < 0 || !skipChar(str, length, ':')) {
+                return NO_DATE;
+            }
+            minute = readNumber(str, length, 2);
+            if (skipChar(str, length, ':')) {
+                second = readNumber(str, length, 2);
+            }
+            millis = skipFraction(str, length);
+            if (!isValidTime(hour, minute, second)) {
+                return NO_DATE;
+            }
+
+            skipSpaces(str, length);
+            offset = readZoneOffset(str, length);
+        }
+
+        return toMillis(year, month, day, hour, minute, second, millis, offset);
+    }
+
+    private long toMillis(int year, int month, int day, int hour, int minute, int second, int millis, int offsetMinutes) {
+        long localMillis = daysFromCivil(year, month, day) * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * 1000L + millis;
+
+        if (offsetMinutes != NO_OFFSET) {
+            return localMillis - offsetMinutes * MILLIS_PER_MINUTE;
+        }
+
+        // No timezone given, this is a local time
+        return localMillis - mLocalTimeZone.getOffset(localMillis - mLocalTimeZone.getRawOffset());
+    }
+
+    /**
+     * Number of days since 1970-01-01 in the proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static boolean isValidTime(int hour, int minute, int second) {
+        return hour >= 0 && hour <= 24 && minute >= 0 && minute <= 59 && second >= 0 && second <= 60;
+    }
+
+    /**
+     * @return the offset in minutes, or NO_OFFSET if there is no (known) timezone
+     */
+    private int readZoneOffset(CharSequence str, int length) {
+        if (mPos >= length) {
+            return NO_OFFSET;
+        }
+
+        char c = str.charAt(mPos);
+        if (c == '+' || c == '-') {
+            return readNumericOffset(str, length);
+        }
+
+        if (isLetter(c)) {
+            int start = mPos;
+            skipLetters(str, length);
+            int offset = NO_OFFSET;
+            for (int i = 0; i < ZONE_NAMES.length; i++) {
+                if (regionMatches(str, start, mPos - start, ZONE_NAMES[i])) {
+                    offset = ZONE_OFFSETS[i];
+                    break;
+                }
+            }
+
+            // "GMT+01:00" like zones
+            if (offset == 0 && mPos < length && (str.charAt(mPos) == '+' || str.charAt(mPos) == '-')) {
+                return readNumericOffset(str, length);
+            }
+            return offset;
+        }
+
+        return NO_OFFSET;
+    }
+
+    private int readNumericOffset(CharSequence str, int length) {
+        int sign = str.charAt(mPos) == '-' ? -1 : 1;
+        mPos++;
+
+        int start = mPos;
+        int value = readNumber(str, length, 4);
+        if (value < 0) {
+            return NO_OFFSET;
+        }
+
+        int hours, minutes = 0;
+        if (mPos - start > 2) { // hhmm
+            hours = value / 100;
+            minutes = value % 100;
+        } else {
+            hours = value;
+            if (skipChar(str, length, ':')) {
+                minutes = Math.max(0, readNumber(str, length, 2));
+            }
+        }
+
+        if (hours > 18 || minutes > 59) {
+            return NO_OFFSET;
+        }
+        return sign * (hours * 60 + minutes);
+    }
+
+    /**
+     * @return the month (1-12), or 0 if unknown. Full month names are accepted.
+     */
+    private int readMonth(CharSequence str, int length) {
+        int start = mPos;
+        skipLetters(str, length);
+        if (mPos - start < 3) {
+            return 0;
+        }
+
+        for (int i = 0; i < MONTHS.length; i++) {
+            if (regionMatches(str, start, 3, MONTHS[i])) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number made of at most maxDigits digits, or -1 if there is no digit
+     */
+    private int readNumber(CharSequence str, int length, int maxDigits) {
+        int value = 0;
+        int end = Math.min(length, mPos + maxDigits);
+        int start = mPos;
+        while (mPos < end && isDigit(str.charAt(mPos))) {
+            value = value * 10 + (str.charAt(mPos) - '0');
+            mPos++;
+        }
+        return mPos > start ? value : -1;
+    }
+
+    /**
+     * @return the milliseconds of the fraction of second, if any
+     */
+    private int skipFraction(CharSequence str, int length) {
+        if (mPos >= length || (str.charAt(mPos) != '.' && str.charAt(mPos) != ',')) {
+            return 0;
+        }
+        mPos++;
+
+        int millis = 0;
+        int digits = 0;
+        while (mPos < length && isDigit(str.charAt(mPos))) {
+            if (digits < 3) {
+                millis = millis * 10 + (str.charAt(mPos) - '0');
+                digits++;
+            }
+            mPos++;
+        }
+        for (; digits > 0 && digits < 3; digits++) {
+            millis *= 10;
+        }
+        return millis;
+    }
+
+    private boolean skipChar(CharSequence str, int length, char c) {
+        if (mPos < length && str.charAt(mPos) == c) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipLetters(CharSequence str, int length) {
+        while (mPos < length && isLetter(str.charAt(mPos))) {
+            mPos++;
+        }
+    }
+
+    private void skipSpaces(CharSequence str, int length) {
+        while (mPos < length && Character.isWhitespace(str.charAt(mPos))) {
+            mPos++;
+        }
+    }
+
+    private void skipSeparators(CharSequence str, int length) {
+        while (mPos < length) {
+            char c = str.charAt(mPos);
+            if (c != ',' && c != '-' && c != '.' && !Character.isWhitespace(c)) {
+                break;
+            }
+            mPos++;
+        }
+    }
+
+    private static boolean regionMatches(CharSequence str, int start, int length, String lowerCaseName) {
+        if (length != lowerCaseName.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(str.charAt(start + i)) != lowerCaseName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.parser;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.LruCache;
+
+import net.fred.feedex.MainApplication;
+import net.fred.feedex.provider.FeedData.FilterColumns;
+import net.fred.feedex.provider.FeedDataContentProvider;
+import net.fred.feedex.utils.Dog;
+import net.fred.feedex.utils.HtmlUtils;
+import net.fred.feedex.utils.KeywordMatcher;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The compiled filters of a feed. They are cached between the refreshes, and the whole cache is dropped when any filter is modified
+ * (including by the deletion of a feed).
+ */
+class FeedFilters {
+
+    private static final int FLAG_ACCEPT = 1;
+    private static final int FLAG_REJECT = 2;
+
+    private static final int CACHE_SIZE = 100; // in feeds
+
+    private static final LruCache<String, FeedFilters> CACHE = new LruCache<>(CACHE_SIZE);
+    private static int sCacheGeneration;
+
+    private final ArrayList<RegexRule> mRegexRules = new ArrayList<>();
+    private KeywordMatcher mTitleKeywords;
+    private KeywordMatcher mContentKeywords;
+
+    private FeedFilters(String feedId) {
+        ContentResolver cr = MainApplication.getContext().getContentResolver();
+        Cursor c = cr.query(FilterColumns.FILTERS_FOR_FEED_CONTENT_URI(feedId), new String[]{FilterColumns.FILTER_TEXT, FilterColumns.IS_REGEX,
+                FilterColumns.IS_APPLIED_TO_TITLE, FilterColumns.IS_ACCEPT_RULE}, null, null, null);
+        while (c.moveToNext()) {
+            String filterText = c.getString(0);
+            boolean isRegex = c.getInt(1) == 1;
+            boolean isAppliedToTitle = c.getInt(2) == 1;
+            boolean isAcceptRule = c.getInt(3) == 1;
+
+            if (filterText == null) {
+                continue;
+            }
+
+            if (isRegex) {
+                try {
+                    RegexRule r = new RegexRule();
+                    r.pattern = Pattern.compile(filterText);
+                    r.isAppliedToTitle = isAppliedToTitle;
+                    r.isAcceptRule = isAcceptRule;
+                    mRegexRules.add(r);
+                } catch (PatternSyntaxException e) {
+                    Dog.e("Invalid filter regex", e);
+                }
+            } else if (isAppliedToTitle) {
+                if (mTitleKeywords == null) {
+                    mTitleKeywords = new KeywordMatcher();
+                }
+                mTitleKeywords.addKeyword(filterText, isAcceptRule ? FLAG_ACCEPT : FLAG_REJECT);
+            } else {
+                if (mContentKeywords == null) {
+                    mContentKeywords = new KeywordMatcher();
+                }
+                mContentKeywords.addKeyword(filterText, isAcceptRule ? FLAG_ACCEPT : FLAG_REJECT);
+            }
+        }
+        c.close();
+    }
+
+    public static synchronized FeedFilters getFilters(String feedId) {
+        // Read before the query, so that a modification done meanwhile will trigger a reload next time
+        int generation = FeedDataContentProvider.getFiltersGeneration();
+
+        if (generation != sCacheGeneration) {
+            CACHE.evictAll();
+            sCacheGeneration = generation;
+        }
+
+        FeedFilters filters = CACHE.get(feedId);
+        if (filters == null) {
+            filters = new FeedFilters(feedId);
+            CACHE.put(feedId, filters);
+        }
+        return filters;
+    }
+
+    /**
+     * An entry is filtered if it matches a reject rule and no accept rule. The keywords are searched in the text of the
+     * content, without its HTML tags.
+     */
+    public boolean isEntryFiltered(String title, String content) {
+        int flags = 0;
+        if (mTitleKeywords != null && title != null) {
+            flags |= mTitleKeywords.match(title, FLAG_ACCEPT);
+        }
+        if ((flags & FLAG_ACCEPT) == 0 && mContentKeywords != null && content != null) {
+            flags |= mContentKeywords.match(HtmlUtils.getPlainText(content), FLAG_ACCEPT);
+        }
+
+        if ((flags & FLAG_ACCEPT) != 0) {
+            return false;
+        }
+
+        boolean isFiltered = (flags & FLAG_REJECT) != 0;
+        for (RegexRule r : mRegexRules) {
+            // once filtered, only an accept rule can change the result
+            if (isFiltered && !r.isAcceptRule) {
+                continue;
+            }
+
+            String text = r.isAppliedToTitle ? title : content;
+            if (text != null && r.pattern.matcher(text).find()) {
+                if (r.isAcceptRule) {
+                    // accept rules override reject rules
+                    return false;
+                }
+                isFiltered = true;
+            }
+        }
+
+        return isFiltered;
+    }
+
+    private static class RegexRule {
+        public Pattern pattern;
+        public boolean isAppliedToTitle;
+        public boolean isAcceptRule;
+    }
+}
@@ -58,10 +58,10 @@ import net.fred.feedex.MainApplication;
 import net.fred.feedex.provider.FeedData;
 import net.fred.feedex.provider.FeedData.EntryColumns;
 import net.fred.feedex.provider.FeedData.FeedColumns;
-import net.fred.feedex.provider.FeedData.FilterColumns;
 import net.fred.feedex.service.FetcherService;
 import net.fred.feedex.utils.Dog;
-import net.fred.feedex.utils.HtmlUtils;
+import net.fred.feedex.utils.HtmlSanitizer;
+import net.fred.feedex.utils.ImageManifest;
 import net.fred.feedex.utils.NetworkUtils;
 
 import org.xml.sax.Attributes;
@@ -69,14 +69,11 @@ import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 public class RssAtomParser extends DefaultHandler {
     private static final String AND_SHARP = "&#";
@@ -116,24 +113,8 @@ public class RssAtomParser extends DefaultHandler {
     private static final String ATTRIBUTE_LENGTH = "length";
     private static final String ATTRIBUTE_REL = "rel";
 
-    private static final String[][] TIMEZONES_REPLACE = {
-            {"MEST", "+0200"},
-            {"EST", "-0500"},
-            {"PST", "-0800"},
-            {"ICT", "+0700"}};
-
-    private final DateFormat[] PUBDATE_DATE_FORMATS = {
-            new SimpleDateFormat("d' 'MMM' 'yy' 'HH:mm:ss' 'Z", Locale.US),
-            new SimpleDateFormat("d' 'MMM' 'yy' 'HH:mm:ss' 'z", Locale.US),
-            new SimpleDateFormat("d' 'MMM' 'yy' 'HH:mm:ss", Locale.US)
-    };
-
-    private final DateFormat[] UPDATE_DATE_FORMATS = {
-            new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ssZ", Locale.US),
-            new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss.SSSz", Locale.US),
-            new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss", Locale.US),
-            new SimpleDateFormat("yyyy-MM-dd", Locale.US)
-    };
+    private static final int MAX_SQL_ARGS = 500;
+    private static final long PENDING_INSERT_ID = -1;
 
     private final Date mRealLastUpdateDate;
     private final String mId;
@@ -142,8 +123,7 @@ public class RssAtomParser extends DefaultHandler {
     private final String mFeedBaseUrl;
     private final Date mKeepDateBorder;
     private final FeedFilters mFilters;
-    private final ArrayList<ContentProviderOperation> mInserts = new ArrayList<>();
-    private final ArrayList<ArrayList<String>> mInsertedEntriesImages = new ArrayList<>();
+    private final ArrayList<ParsedEntry> mEntries = new ArrayList<>();
     private long mNewRealLastUpdate;
     private boolean mEntryTagEntered = false;
     private boolean mTitleTagEntered = false;
@@ -157,7 +137,7 @@ public class RssAtomParser extends DefaultHandler {
     private boolean mGuidTagEntered = false;
     private boolean mAuthorTagEntered = false;
     private StringBuilder mTitle;
-    private StringBuilder mDateStringBuilder;
+    private final StringBuilder mDateStringBuilder = new StringBuilder();
     private String mFeedLink;
     private Date mEntryDate;
     private Date mEntryUpdateDate;
@@ -173,8 +153,11 @@ public class RssAtomParser extends DefaultHandler {
     private boolean mRetrieveFullText = false;
     private boolean mCancelled = false;
     private long mNow = System.currentTimeMillis();
+    private final FeedDateParser mDateParser = new FeedDateParser(mNow);
     private StringBuilder mGuid;
     private StringBuilder mAuthor, mTmpAuthor;
+    private String mEtag;
+    private String mLastModified;
 
     public RssAtomParser(Date realLastUpdateDate, long keepDateBorderTime, final String id, String feedName, String url, boolean retrieveFullText) {
         mKeepDateBorder = new Date(keepDateBorderTime);
@@ -185,7 +168,7 @@ public class RssAtomParser extends DefaultHandler {
         mFeedEntriesUri = EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(id);
         mRetrieveFullText = retrieveFullText;
 
-        mFilters = new FeedFilters(id);
+        mFilters = FeedFilters.getFilters(id);
 
         mFeedBaseUrl = NetworkUtils.getBaseUrl(url);
     }
@@ -206,7 +189,7 @@ public class RssAtomParser extends DefaultHandler {
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
         if (TAG_UPDATED.equals(localName)) {
             mUpdatedTagEntered = true;
-            mDateStringBuilder = new StringBuilder();
+            mDateStringBuilder.setLength(0);
         } else if (TAG_ENTRY.equals(localName) || TAG_ITEM.equals(localName)) {
             mEntryTagEntered = true;
             mDescription = null;
@@ -268,16 +251,16 @@ public class RssAtomParser extends DefaultHandler {
             }
         } else if (TAG_PUBDATE.equals(localName)) {
             mPubDateTagEntered = true;
-            mDateStringBuilder = new StringBuilder();
+            mDateStringBuilder.setLength(0);
         } else if (TAG_PUBLISHED.equals(localName)) {
             mPublishedTagEntered = true;
-            mDateStringBuilder = new StringBuilder();
+            mDateStringBuilder.setLength(0);
         } else if (TAG_DATE.equals(localName)) {
             mDateTagEntered = true;
-            mDateStringBuilder = new StringBuilder();
+            mDateStringBuilder.setLength(0);
         } else if (TAG_LAST_BUILD_DATE.equals(localName)) {
             mLastBuildDateTagEntered = true;
-            mDateStringBuilder = new StringBuilder();
+            mDateStringBuilder.setLength(0);
         } else if (TAG_ENCODED_CONTENT.equals(localName)) {
             mDescriptionTagEntered = true;
             mDescription = new StringBuilder();
@@ -343,19 +326,19 @@ public class RssAtomParser extends DefaultHandler {
                 mFeedLink = mEntryLink.toString();
             }
         } else if (TAG_UPDATED.equals(localName)) {
-            mEntryUpdateDate = parseUpdateDate(mDateStringBuilder.toString());
+            mEntryUpdateDate = parseDate(mDateStringBuilder);
             mUpdatedTagEntered = false;
         } else if (TAG_PUBDATE.equals(localName)) {
-            mEntryDate = parsePubdateDate(mDateStringBuilder.toString());
+            mEntryDate = parseDate(mDateStringBuilder);
             mPubDateTagEntered = false;
         } else if (TAG_PUBLISHED.equals(localName)) {
-            mEntryDate = parsePubdateDate(mDateStringBuilder.toString());
+            mEntryDate = parseDate(mDateStringBuilder);
             mPublishedTagEntered = false;
         } else if (TAG_LAST_BUILD_DATE.equals(localName)) {
-            mEntryDate = parsePubdateDate(mDateStringBuilder.toString());
+            mEntryDate = parseDate(mDateStringBuilder);
             mLastBuildDateTagEntered = false;
         } else if (TAG_DATE.equals(localName)) {
-            mEntryDate = parseUpdateDate(mDateStringBuilder.toString());
+            mEntryDate = parseDate(mDateStringBuilder);
             mDateTagEntered = false;
         } else if (TAG_ENTRY.equals(localName) || TAG_ITEM.equals(localName)) {
             mEntryTagEntered = false;
@@ -389,19 +372,12 @@ public class RssAtomParser extends DefaultHandler {
                 ArrayList<String> imagesUrls = null;
                 if (mDescription != null) {
                     // Improve the description
-                    improvedContent = HtmlUtils.improveHtmlContent(mDescription.toString(), mFeedBaseUrl);
-                    if (mFetchImages) {
-                        imagesUrls = HtmlUtils.getImageURLs(improvedContent);
-                        if (!imagesUrls.isEmpty()) {
-                            mainImageUrl = HtmlUtils.getMainImageURL(imagesUrls);
-                        }
-                    } else {
-                        mainImageUrl = HtmlUtils.getMainImageURL(improvedContent);
-                    }
+                    HtmlSanitizer sanitizer = HtmlSanitizer.sanitize(mDescription.toString(), mFeedBaseUrl);
+                    improvedContent = sanitizer.getHtml();
+                    mainImageUrl = sanitizer.getMainImageUrl();
+                    imagesUrls = sanitizer.getImageUrls();
 
-                    if (improvedContent != null) {
-                        values.put(EntryColumns.ABSTRACT, improvedContent);
-                    }
+                    values.put(EntryColumns.ABSTRACT, improvedContent);
                 }
 
                 if (mainImageUrl != null) {
@@ -416,20 +392,15 @@ public class RssAtomParser extends DefaultHandler {
                     }
 
                     String enclosureString = null;
-                    StringBuilder existenceStringBuilder = new StringBuilder(EntryColumns.LINK).append(Constants.DB_ARG);
-
                     if (mEnclosure != null && mEnclosure.length() > 0) {
                         enclosureString = mEnclosure.toString();
                         values.put(EntryColumns.ENCLOSURE, enclosureString);
-                        existenceStringBuilder.append(Constants.DB_AND).append(EntryColumns.ENCLOSURE).append(Constants.DB_ARG);
                     }
 
                     String guidString = null;
-
                     if (mGuid != null && mGuid.length() > 0) {
                         guidString = mGuid.toString();
                         values.put(EntryColumns.GUID, guidString);
-                        existenceStringBuilder.append(Constants.DB_AND).append(EntryColumns.GUID).append(Constants.DB_ARG);
                     }
 
                     String entryLinkString = ""; // don't set this to null as we need *some* value
@@ -442,37 +413,17 @@ public class RssAtomParser extends DefaultHandler {
                         }
                     }
 
-                    String[] existenceValues = enclosureString != null ? (guidString != null ? new String[]{entryLinkString, enclosureString,
-                            guidString} : new String[]{entryLinkString, enclosureString}) : (guidString != null ? new String[]{entryLinkString,
-                            guidString} : new String[]{entryLinkString});
-
-                    // First, try to update the feed
-                    ContentResolver cr = MainApplication.getContext().getContentResolver();
-                    boolean isUpdated = (!entryLinkString.isEmpty() || guidString != null)
-                            && cr.update(mFeedEntriesUri, values, existenceStringBuilder.toString(), existenceValues) != 0;
-
-                    // Insert it only if necessary
-                    if (!isUpdated && !updateOnly) {
-                        // We put the date only for new entry (no need to change the past, you may already read it)
-                        if (mEntryDate != null) {
-                            values.put(EntryColumns.DATE, mEntryDate.getTime());
-                        } else {
-                            values.put(EntryColumns.DATE, mNow--); // -1 to keep the good entries order
-                        }
-
-                        values.put(EntryColumns.LINK, entryLinkString);
-
-                        // We cannot update, we need to insert it
-                        mInsertedEntriesImages.add(imagesUrls);
-                        mInserts.add(ContentProviderOperation.newInsert(mFeedEntriesUri).withValues(values).build());
-
-                        mNewCount++;
-                    }
-
-                    // No date, but we managed to update an entry => we already parsed the following entries and don't need to continue
-                    if (isUpdated && mEntryDate == null) {
-                        cancel();
-                    }
+                    // The existence of the entries is checked all at once at the end of the document
+                    ParsedEntry entry = new ParsedEntry();
+                    entry.values = values;
+                    entry.link = entryLinkString;
+                    entry.dedupKey = FeedData.getDedupKey(guidString, entryLinkString);
+                    entry.hasDate = mEntryDate != null;
+                    // We put the date only for new entry (no need to change the past, you may already read it)
+                    entry.date = mEntryDate != null ? mEntryDate.getTime() : mNow--; // -1 to keep the good entries order
+                    entry.updateOnly = updateOnly;
+                    entry.imagesUrls = imagesUrls;
+                    mEntries.add(entry);
                 }
             } else {
                 cancel();
@@ -541,61 +492,17 @@ public class RssAtomParser extends DefaultHandler {
         this.mFetchImages = fetchImages;
     }
 
-    public Date parseUpdateDate(String dateStr) {
-        dateStr = improveDateString(dateStr);
-        return parseUpdateDate(dateStr, true);
+    public void setCacheValidators(String etag, String lastModified) {
+        mEtag = etag;
+        mLastModified = lastModified;
     }
 
-    private Date parseUpdateDate(String dateStr, boolean tryAllFormat) {
-        for (DateFormat format : UPDATE_DATE_FORMATS) {
-            try {
-                Date result = format.parse(dateStr);
-                return (result.getTime() > mNow ? new Date(mNow) : result);
-            } catch (ParseException ignored) {
-            } // just do nothing
-        }
-
-        if (tryAllFormat)
-            return parsePubdateDate(dateStr, false);
-        else
+    private Date parseDate(CharSequence dateStr) {
+        long date = mDateParser.parse(dateStr);
+        if (date == FeedDateParser.NO_DATE) {
             return null;
-    }
-
-    public Date parsePubdateDate(String dateStr) {
-        dateStr = improveDateString(dateStr);
-        return parsePubdateDate(dateStr, true);
-    }
-
-    private Date parsePubdateDate(String dateStr, boolean tryAllFormat) {
-        for (DateFormat format : PUBDATE_DATE_FORMATS) {
-            try {
-                Date result = format.parse(dateStr);
-                return (result.getTime() > mNow ? new Date(mNow) : result);
-            } catch (ParseException ignored) {
-            } // just do nothing
         }
-
-        if (tryAllFormat)
-            return parseUpdateDate(dateStr, false);
-        else
-            return null;
-    }
-
-    private String improveDateString(String dateStr) {
-        // We remove the first part if necessary (the day display)
-        int coma = dateStr.indexOf(", ");
-        if (coma != -1) {
-            dateStr = dateStr.substring(coma + 2);
-        }
-
-        dateStr = dateStr.replaceAll("([0-9])T([0-9])", "$1 $2").replaceAll("Z$", "").replaceAll("  ", " ").trim(); // fix useless char
-
-        // Replace bad timezones
-        for (String[] timezoneReplace : TIMEZONES_REPLACE) {
-            dateStr = dateStr.replace(timezoneReplace[0], timezoneReplace[1]);
-        }
-
-        return dateStr;
+        return new Date(Math.min(date, mNow));
     }
 
     @Override
@@ -618,25 +525,64 @@ public class RssAtomParser extends DefaultHandler {
         ContentResolver cr = MainApplication.getContext().getContentResolver();
 
         try {
-            if (!mInserts.isEmpty()) {
-                ContentProviderResult[] results = cr.applyBatch(FeedData.AUTHORITY, mInserts);
-
-                if (mFetchImages) {
-                    for (int i = 0; i < results.length; ++i) {
-                        ArrayList<String> images = mInsertedEntriesImages.get(i);
-                        if (images != null) {
-                            FetcherService.addImagesToDownload(results[i].uri.getLastPathSegment(), images);
+            if (!mEntries.isEmpty()) {
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+                ArrayList<Integer> insertPositions = new ArrayList<>();
+
+                HashMap<String, Long> existingEntries = getExistingEntries();
+
+                for (ParsedEntry entry : mEntries) {
+                    Long existingEntryId = entry.dedupKey != null ? existingEntries.get(entry.dedupKey) : null;
+
+                    if (existingEntryId != null) {
+                        if (existingEntryId != PENDING_INSERT_ID) {
+                            operations.add(ContentProviderOperation.newUpdate(EntryColumns.CONTENT_URI(existingEntryId)).withValues(entry.values).build());
+
+                            // No date, but we found an already existing entry => the following ones are already known
+                            if (!entry.hasDate) {
+                                break;
+                            }
+                        }
+                    } else if (!entry.updateOnly) {
+                        entry.values.put(EntryColumns.DATE, entry.date);
+                        entry.values.put(EntryColumns.LINK, entry.link);
+                        entry.values.put(EntryColumns.DEDUP_KEY, entry.dedupKey);
+
+                        insertPositions.add(operations.size());
+                        operations.add(ContentProviderOperation.newInsert(mFeedEntriesUri).withValues(entry.values).build());
+                        // in the same transaction, referencing the id given to the entry
+                        ImageManifest.addNewEntryImages(operations, operations.size() - 1, entry.imagesUrls, mFetchImages);
+                        mNewCount++;
+
+                        // Do not insert the same entry twice if it is present several times in the feed
+                        if (entry.dedupKey != null) {
+                            existingEntries.put(entry.dedupKey, PENDING_INSERT_ID);
                         }
                     }
                 }
+                mEntries.clear();
+
+                if (!operations.isEmpty()) {
+                    ContentProviderResult[] results = cr.applyBatch(FeedData.AUTHORITY, operations);
+
+                    ArrayList<Long> insertedIds = new ArrayList<>();
+                    for (int i = 0; i < insertPositions.size(); i++) {
+                        Uri insertedUri = results[insertPositions.get(i)].uri;
+                        if (insertedUri == null || !TextUtils.isDigitsOnly(insertedUri.getLastPathSegment())) {
+                            continue; // the insert has been ignored
+                        }
 
-                if (mRetrieveFullText) {
-                    long[] entriesId = new long[results.length];
-                    for (int i = 0; i < results.length; i++) {
-                        entriesId[i] = Long.valueOf(results[i].uri.getLastPathSegment());
+                        insertedIds.add(Long.valueOf(insertedUri.getLastPathSegment()));
                     }
 
-                    FetcherService.addEntriesToMobilize(entriesId);
+                    if (mRetrieveFullText && !insertedIds.isEmpty()) {
+                        long[] entriesId = new long[insertedIds.size()];
+                        for (int i = 0; i < entriesId.length; i++) {
+                            entriesId[i] = insertedIds.get(i);
+                        }
+
+                        FetcherService.addEntriesToMobilize(entriesId);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -650,71 +596,57 @@ public class RssAtomParser extends DefaultHandler {
         values.putNull(FeedColumns.ERROR);
         values.put(FeedColumns.LAST_UPDATE, System.currentTimeMillis() - 3000); // by precaution to not miss some feeds
         values.put(FeedData.FeedColumns.REAL_LAST_UPDATE, mNewRealLastUpdate);
+        values.put(FeedColumns.ETAG, mEtag);
+        values.put(FeedColumns.LAST_MODIFIED, mLastModified);
         cr.update(FeedColumns.CONTENT_URI(mId), values, null, null);
 
         super.endDocument();
     }
 
-    private class FeedFilters {
-
-        private final ArrayList<Rule> mFilters = new ArrayList<>();
-
-        public FeedFilters(String feedId) {
-            ContentResolver cr = MainApplication.getContext().getContentResolver();
-            Cursor c = cr.query(FilterColumns.FILTERS_FOR_FEED_CONTENT_URI(feedId), new String[]{FilterColumns.FILTER_TEXT, FilterColumns.IS_REGEX,
-                    FilterColumns.IS_APPLIED_TO_TITLE, FilterColumns.IS_ACCEPT_RULE}, null, null, null);
-            while (c.moveToNext()) {
-                Rule r = new Rule();
-                r.filterText = c.getString(0);
-                r.isRegex = c.getInt(1) == 1;
-                r.isAppliedToTitle = c.getInt(2) == 1;
-                r.isAcceptRule = c.getInt(3) == 1;
-                mFilters.add(r);
-            }
-            c.close();
+    /**
+     * Retrieves with one indexed query (by chunks of keys) the ids of the already known entries of this feed
+     */
+    private HashMap<String, Long> getExistingEntries() {
+        HashMap<String, Long> existingEntries = new HashMap<>();
 
+        HashSet<String> keys = new HashSet<>();
+        for (ParsedEntry entry : mEntries) {
+            if (entry.dedupKey != null) {
+                keys.add(entry.dedupKey);
+            }
         }
 
-        public boolean isEntryFiltered(String title, String content) {
-
-            boolean isFiltered = false;
-
-            for (Rule r : mFilters) {
+        ContentResolver cr = MainApplication.getContext().getContentResolver();
+        ArrayList<String> keysList = new ArrayList<>(keys);
+        for (int i = 0; i < keysList.size(); i += MAX_SQL_ARGS) {
+            List<String> chunk = keysList.subList(i, Math.min(i + MAX_SQL_ARGS, keysList.size()));
 
-                boolean isMatch = false;
-                if (r.isRegex) {
-                    Pattern p = Pattern.compile(r.filterText);
-                    if (r.isAppliedToTitle) {
-                        Matcher m = p.matcher(title);
-                        isMatch = m.find();
-                    } else if (content != null) {
-                        Matcher m = p.matcher(content);
-                        isMatch = m.find();
-                    }
-                } else if ((r.isAppliedToTitle && title.contains(r.filterText)) || (!r.isAppliedToTitle && content != null && content.contains(r.filterText))) {
-                    isMatch = true;
-                }
+            StringBuilder where = new StringBuilder(EntryColumns.DEDUP_KEY).append(" IN (");
+            for (int j = 0; j < chunk.size(); j++) {
+                where.append(j == 0 ? "?" : ",?");
+            }
+            where.append(')');
 
-                if (r.isAcceptRule) {
-                    if (isMatch) {
-                        // accept rules override reject rules, the rest of the rules must be ignored
-                        isFiltered = false;
-                        break;
-                    }
-                } else if (isMatch) {
-                    isFiltered = true;
-                    // no break, there might be an accept rule later
+            Cursor cursor = cr.query(mFeedEntriesUri, new String[]{EntryColumns._ID, EntryColumns.DEDUP_KEY}, where.toString(),
+                    chunk.toArray(new String[chunk.size()]), null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    existingEntries.put(cursor.getString(1), cursor.getLong(0));
                 }
+                cursor.close();
             }
-
-            return isFiltered;
         }
 
-        private class Rule {
-            public String filterText;
-            public boolean isRegex;
-            public boolean isAppliedToTitle;
-            public boolean isAcceptRule;
-        }
+        return existingEntries;
+    }
+
+    private static class ParsedEntry {
+        public ContentValues values;
+        public String link;
+        public String dedupKey;
+        public long date;
+        public boolean hasDate;
+        public boolean updateOnly;
+        public ArrayList<String> imagesUrls;
     }
 }
@@ -0,0 +1,147 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Coalesces the change notifications of the provider. The uris changed inside a batch (transaction) are only notified once the
+ * batch is done, and the ones changed by the threads of a session (like a refresh) are notified together, at most every
+ * {@link #SESSION_MAX_DELAY} and at the end of the session. Each uri is only notified once per burst. The changes done by the
+ * other threads (like the UI ones) are still notified immediately.
+ */
+class ChangeNotifier {
+
+    private static final long SESSION_MAX_DELAY = 2000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchUris = new ThreadLocal<>();
+    private final ThreadLocal<Integer> mBatchDepth = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> mSessionThread = new ThreadLocal<>();
+    private final LinkedHashSet<Uri> mSessionUris = new LinkedHashSet<>();
+    private int mSessionCount;
+    private ContentResolver mContentResolver;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushSession();
+        }
+    };
+
+    void notifyChange(ContentResolver contentResolver, Uri uri) {
+        LinkedHashSet<Uri> batchUris = mBatchUris.get();
+        if (batchUris != null) {
+            batchUris.add(uri);
+            return;
+        }
+
+        if (mSessionThread.get() != null) {
+            synchronized (mSessionUris) {
+                mContentResolver = contentResolver;
+                if (mSessionCount > 0) {
+                    if (mSessionUris.isEmpty()) {
+                        mHandler.postDelayed(mFlushRunnable, SESSION_MAX_DELAY);
+                    }
+                    mSessionUris.add(uri);
+                    return;
+                }
+            }
+        }
+
+        contentResolver.notifyChange(uri, null);
+    }
+
+    /**
+     * Starts to hold the notifications of the current thread, until the matching {@link #endBatch(ContentResolver)}. Batches can be nested.
+     */
+    void beginBatch() {
+        Integer depth = mBatchDepth.get();
+        mBatchDepth.set(depth == null ? 1 : depth + 1);
+        if (depth == null) {
+            mBatchUris.set(new LinkedHashSet<Uri>());
+        }
+    }
+
+    void endBatch(ContentResolver contentResolver) {
+        int depth = mBatchDepth.get() - 1;
+        if (depth > 0) {
+            mBatchDepth.set(depth);
+            return;
+        }
+
+        LinkedHashSet<Uri> batchUris = mBatchUris.get();
+        mBatchDepth.remove();
+        mBatchUris.remove();
+        for (Uri uri : batchUris) {
+            notifyChange(contentResolver, uri);
+        }
+    }
+
+    /**
+     * Starts a session, which includes the changes of the current thread and of the ones which joined the sessions
+     */
+    void beginSession() {
+        mSessionThread.set(Boolean.TRUE);
+        synchronized (mSessionUris) {
+            mSessionCount++;
+        }
+    }
+
+    void endSession() {
+        boolean flush;
+        synchronized (mSessionUris) {
+            mSessionCount--;
+            flush = mSessionCount == 0;
+        }
+        if (flush) {
+            flushSession();
+        }
+    }
+
+    /**
+     * Includes the changes of the current thread in the sessions, for the worker threads of the background jobs
+     */
+    void joinSessions() {
+        mSessionThread.set(Boolean.TRUE);
+    }
+
+    private void flushSession() {
+        ArrayList<Uri> uris;
+        ContentResolver contentResolver;
+        synchronized (mSessionUris) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            uris = new ArrayList<>(mSessionUris);
+            mSessionUris.clear();
+            contentResolver = mContentResolver;
+        }
+
+        for (Uri uri : uris) {
+            contentResolver.notifyChange(uri, null);
+        }
+    }
+}
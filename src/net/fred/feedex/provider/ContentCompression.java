@@ -0,0 +1,149 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import net.fred.feedex.provider.FeedData.EntryContentColumns;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores the entries HTML bodies deflated. A compressed body is saved as a BLOB (raw deflate with a preset HTML dictionary),
+ * while a small or incompressible one stays a TEXT, so that the storage type tells how to read the value.
+ */
+class ContentCompression {
+
+    static final String[] COMPRESSED_COLUMNS = EntryContentColumns.BODY_COLUMNS;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Below this size, the gain does not worth the decompression cost
+    private static final int MIN_COMPRESSED_LENGTH = 256;
+    private static final int BUFFER_SIZE = 8192;
+
+    // The most frequent strings of our sanitized HTML (the end of the dictionary is the cheapest to reference). It must never
+    // change, the stored bodies need it to be read.
+    private static final byte[] DICTIONARY = ("</span></div></td></tr></table><table><tbody><h1></h1><h2></h2><h3></h3><h4></h4><em></em>"
+            + "<strong></strong><b></b><i></i><ul><ol><li></li></ul></ol><blockquote></blockquote><figure><figcaption></figcaption></figure>"
+            + "<pre></pre><code></code><iframe src=\"https://www.youtube.com/embed/\" width=\"\" height=\"\" alt=\"\" title=\"\" "
+            + "<a href=\"https://twitter.com/\"><img src=\"https://\"> <a href=\"http://\"><img src=\"http://\" The the and that for with "
+            + "this from have are was will you not but which their more also has been can they about would into one www. .com/ .html "
+            + ".jpg\"><br><br></a></p><p><a href=\"https://").getBytes(UTF8);
+
+    /**
+     * @return a copy of the values with the bodies compressed, or the values themselves if there is nothing to compress
+     */
+    static ContentValues compress(ContentValues values) {
+        ContentValues result = values;
+        for (String column : COMPRESSED_COLUMNS) {
+            Object value = values.get(column);
+            if (value instanceof String) {
+                byte[] compressed = compress((String) value);
+                if (compressed != null) {
+                    if (result == values) {
+                        result = new ContentValues(values);
+                    }
+                    result.put(column, compressed);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the deflated text, or null if it does not need to be compressed
+     */
+    static byte[] compress(String text) {
+        if (text.length() < MIN_COMPRESSED_LENGTH) {
+            return null;
+        }
+
+        byte[] input = text.getBytes(UTF8);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 3);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+                if (output.size() >= input.length) { // incompressible, keep it as text
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String decompress(byte[] compressed) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(compressed);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break; // truncated data, return what we have
+                }
+                output.write(buffer, 0, length);
+            }
+            return new String(output.toByteArray(), UTF8);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads a body column, compressed or not
+     */
+    static String getString(Cursor cursor, int columnIndex) {
+        if (cursor.getType(columnIndex) == Cursor.FIELD_TYPE_BLOB) {
+            return decompress(cursor.getBlob(columnIndex));
+        }
+        return cursor.getString(columnIndex);
+    }
+
+    /**
+     * Wraps the cursor to decompress the bodies when read, if it contains some
+     */
+    static Cursor wrap(Cursor cursor) {
+        for (String column : COMPRESSED_COLUMNS) {
+            if (cursor.getColumnIndex(column) != -1) {
+                return new DecompressingCursor(cursor);
+            }
+        }
+        return cursor;
+    }
+}
@@ -44,27 +44,81 @@
 
 package net.fred.feedex.provider;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.os.Handler;
+import android.text.TextUtils;
 
+import net.fred.feedex.Constants;
 import net.fred.feedex.parser.OPML;
+import net.fred.feedex.provider.FeedData.CounterColumns;
 import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.EntryContentColumns;
 import net.fred.feedex.provider.FeedData.FeedColumns;
 import net.fred.feedex.provider.FeedData.FilterColumns;
+import net.fred.feedex.provider.FeedData.ImageColumns;
+import net.fred.feedex.provider.FeedData.PurgedImageColumns;
+import net.fred.feedex.provider.FeedData.SearchColumns;
 import net.fred.feedex.provider.FeedData.TaskColumns;
+import net.fred.feedex.utils.HtmlUtils;
+import net.fred.feedex.utils.NetworkUtils;
 
 import java.io.File;
+import java.util.HashSet;
 
 class DatabaseHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "FeedEx.db";
-    private static final int DATABASE_VERSION = 8;
+    private static final int DATABASE_VERSION = 20;
 
     private static final String ALTER_TABLE = "ALTER TABLE ";
     private static final String ADD = " ADD ";
+    private static final String CREATE_INDEX = "CREATE INDEX IF NOT EXISTS ";
+    private static final String CREATE_UNIQUE_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS ";
+
+    private static final String CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE " + SearchColumns.TABLE_NAME + " USING fts4(" + SearchColumns.TITLE + ", "
+            + SearchColumns.CONTENT + ");";
+    private static final String CREATE_SEARCH_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS " + SearchColumns.TABLE_NAME + "_delete AFTER DELETE ON "
+            + EntryColumns.TABLE_NAME + " BEGIN DELETE FROM " + SearchColumns.TABLE_NAME + " WHERE " + SearchColumns.DOCID + "=old." + EntryColumns._ID + "; END;";
+    private static final String CREATE_CONTENT_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS " + EntryContentColumns.TABLE_NAME + "_delete AFTER DELETE ON "
+            + EntryColumns.TABLE_NAME + " BEGIN DELETE FROM " + EntryContentColumns.TABLE_NAME + " WHERE " + EntryContentColumns.ENTRY_ID + "=old."
+            + EntryColumns._ID + "; END;";
+    private static final String IMAGES_DELETE_TRIGGER = ImageColumns.TABLE_NAME + "_delete";
+    // All the images are queued for the deletion of their file, whatever their state: a download can still be running
+    private static final String CREATE_IMAGES_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS " + IMAGES_DELETE_TRIGGER + " AFTER DELETE ON "
+            + EntryColumns.TABLE_NAME + " BEGIN INSERT INTO " + PurgedImageColumns.TABLE_NAME + " (" + PurgedImageColumns.ENTRY_ID + ", "
+            + PurgedImageColumns.CACHE_KEY + ") SELECT " + ImageColumns.ENTRY_ID + ", " + ImageColumns.CACHE_KEY + " FROM " + ImageColumns.TABLE_NAME
+            + " WHERE " + ImageColumns.ENTRY_ID + "=old." + EntryColumns._ID + "; DELETE FROM " + ImageColumns.TABLE_NAME + " WHERE "
+            + ImageColumns.ENTRY_ID + "=old." + EntryColumns._ID + "; END;";
+
+
+    // Keep the feed_counters table in sync with the entries (a row is created on the first entry of a feed)
+    private static final String COUNT_UNREAD = "(%1$s." + EntryColumns.IS_READ + Constants.DB_IS_NULL + Constants.DB_OR + "%1$s." + EntryColumns.IS_READ
+            + Constants.DB_IS_FALSE + ')';
+    private static final String COUNT_FAVORITE = "(%1$s." + EntryColumns.IS_FAVORITE + Constants.DB_IS_NOT_NULL + Constants.DB_AND + "%1$s."
+            + EntryColumns.IS_FAVORITE + Constants.DB_IS_TRUE + ')';
+    private static final String INSERT_COUNTERS_ROW = "INSERT OR IGNORE INTO " + CounterColumns.TABLE_NAME + " (" + CounterColumns.FEED_ID + ", "
+            + CounterColumns.UNREAD + ", " + CounterColumns.FAVORITES + ") VALUES (%1$s." + EntryColumns.FEED_ID + ", 0, 0);";
+    private static final String UPDATE_COUNTERS_ROW = "UPDATE " + CounterColumns.TABLE_NAME + " SET " + CounterColumns.UNREAD + '=' + CounterColumns.UNREAD
+            + "%2$s" + COUNT_UNREAD + ", " + CounterColumns.FAVORITES + '=' + CounterColumns.FAVORITES + "%2$s" + COUNT_FAVORITE + " WHERE "
+            + CounterColumns.FEED_ID + "=%1$s." + EntryColumns.FEED_ID + ';';
+    private static final String CREATE_COUNTERS_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS " + CounterColumns.TABLE_NAME + "_insert AFTER INSERT ON "
+            + EntryColumns.TABLE_NAME + " BEGIN " + String.format(INSERT_COUNTERS_ROW, "new") + ' ' + String.format(UPDATE_COUNTERS_ROW, "new", "+")
+            + " END;";
+    private static final String CREATE_COUNTERS_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS " + CounterColumns.TABLE_NAME + "_delete AFTER DELETE ON "
+            + EntryColumns.TABLE_NAME + " BEGIN " + String.format(UPDATE_COUNTERS_ROW, "old", "-") + " END;";
+    private static final String CREATE_COUNTERS_UPDATE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS " + CounterColumns.TABLE_NAME + "_update AFTER UPDATE OF "
+            + EntryColumns.IS_READ + ", " + EntryColumns.IS_FAVORITE + ", " + EntryColumns.FEED_ID + " ON " + EntryColumns.TABLE_NAME + " BEGIN "
+            + String.format(UPDATE_COUNTERS_ROW, "old", "-") + ' ' + String.format(INSERT_COUNTERS_ROW, "new") + ' '
+            + String.format(UPDATE_COUNTERS_ROW, "new", "+") + " END;";
+    private static final String CREATE_COUNTERS_FEED_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS " + CounterColumns.TABLE_NAME + "_feed_delete AFTER DELETE ON "
+            + FeedColumns.TABLE_NAME + " BEGIN DELETE FROM " + CounterColumns.TABLE_NAME + " WHERE " + CounterColumns.FEED_ID + "=old." + FeedColumns._ID
+            + "; END;";
 
     private final Handler mHandler;
 
@@ -78,7 +132,17 @@ class DatabaseHelper extends SQLiteOpenHelper {
         database.execSQL(createTable(FeedColumns.TABLE_NAME, FeedColumns.COLUMNS));
         database.execSQL(createTable(FilterColumns.TABLE_NAME, FilterColumns.COLUMNS));
         database.execSQL(createTable(EntryColumns.TABLE_NAME, EntryColumns.COLUMNS));
+        database.execSQL(createTable(EntryContentColumns.TABLE_NAME, EntryContentColumns.COLUMNS));
         database.execSQL(createTable(TaskColumns.TABLE_NAME, TaskColumns.COLUMNS));
+        database.execSQL(createTable(ImageColumns.TABLE_NAME, ImageColumns.COLUMNS));
+        database.execSQL(createTable(CounterColumns.TABLE_NAME, CounterColumns.COLUMNS));
+        database.execSQL(createTable(PurgedImageColumns.TABLE_NAME, PurgedImageColumns.COLUMNS));
+        createIndexes(database);
+        // least recently used images eviction (not in createIndexes(), which is also used by the upgrades done before this table)
+        database.execSQL(createIndex(false, ImageColumns.TABLE_NAME, ImageColumns.STATE, ImageColumns.LAST_ACCESS));
+        database.execSQL(CREATE_SEARCH_TABLE);
+        createEntriesTriggers(database);
+        createCountersTriggers(database);
 
         // Check if we need to import the backup
         if (new File(OPML.BACKUP_OPML).exists()) {
@@ -100,6 +164,28 @@ class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * (Re)computes the full-text index of an entry from its title and its HTML contents
+     */
+    static void indexEntry(SQLiteDatabase database, long entryId, String title, String abstractHtml, String mobilizedHtml) {
+        database.delete(SearchColumns.TABLE_NAME, SearchColumns.DOCID + '=' + entryId, null);
+
+        ContentValues values = new ContentValues();
+        values.put(SearchColumns.DOCID, entryId);
+        values.put(SearchColumns.TITLE, title);
+        values.put(SearchColumns.CONTENT, HtmlUtils.getPlainText(abstractHtml) + ' ' + HtmlUtils.getPlainText(mobilizedHtml));
+        database.insert(SearchColumns.TABLE_NAME, null, values);
+    }
+
+    static void indexEntries(SQLiteDatabase database, String selection) {
+        Cursor cursor = database.query(FeedData.ENTRIES_TABLE_WITH_CONTENT, new String[]{EntryColumns._ID, EntryColumns.TITLE, EntryColumns.ABSTRACT,
+                EntryColumns.MOBILIZED_HTML}, selection, null, null, null, null);
+        while (cursor.moveToNext()) {
+            indexEntry(database, cursor.getLong(0), cursor.getString(1), ContentCompression.getString(cursor, 2), ContentCompression.getString(cursor, 3));
+        }
+        cursor.close();
+    }
+
     public void exportToOPML() {
         try {
             OPML.exportToFile(OPML.BACKUP_OPML);
@@ -125,6 +211,182 @@ class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private String createIndex(boolean unique, String tableName, String... columns) {
+        StringBuilder stringBuilder = new StringBuilder(unique ? CREATE_UNIQUE_INDEX : CREATE_INDEX);
+
+        stringBuilder.append("idx_").append(tableName);
+        for (String column : columns) {
+            stringBuilder.append('_').append(column);
+        }
+        stringBuilder.append(" ON ").append(tableName).append(" (").append(TextUtils.join(", ", columns)).append(");");
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Creates the indexes of the entries and filters tables. Also used by the v10 and v15 upgrades, so it must only rely on the
+     * schema of these versions.
+     */
+    private void createIndexes(SQLiteDatabase database) {
+        // entries lists (all, per feed, unread, favorites) & old entries cleanup
+        database.execSQL(createIndex(false, EntryColumns.TABLE_NAME, EntryColumns.DATE));
+        database.execSQL(createIndex(false, EntryColumns.TABLE_NAME, EntryColumns.FEED_ID, EntryColumns.DATE));
+        database.execSQL(createIndex(false, EntryColumns.TABLE_NAME, EntryColumns.IS_READ, EntryColumns.DATE));
+        database.execSQL(createIndex(false, EntryColumns.TABLE_NAME, EntryColumns.IS_FAVORITE, EntryColumns.DATE));
+        // duplicate detection while parsing a feed
+        database.execSQL(createIndex(true, EntryColumns.TABLE_NAME, EntryColumns.FEED_ID, EntryColumns.DEDUP_KEY));
+        database.execSQL(createIndex(false, FilterColumns.TABLE_NAME, FilterColumns.FEED_ID));
+    }
+
+    /**
+     * Computes the dedup key of the already existing entries. Duplicated entries (which could exist before) keep a null key
+     * in order to be able to create the unique index.
+     */
+    private void fillDedupKeys(SQLiteDatabase database) {
+        SQLiteStatement statement = database.compileStatement("UPDATE " + EntryColumns.TABLE_NAME + " SET " + EntryColumns.DEDUP_KEY + "=? WHERE "
+                + EntryColumns._ID + "=?");
+        HashSet<String> feedKeys = new HashSet<>();
+
+        Cursor cursor = database.query(EntryColumns.TABLE_NAME, new String[]{EntryColumns._ID, EntryColumns.FEED_ID, EntryColumns.GUID, EntryColumns.LINK},
+                null, null, null, null, EntryColumns._ID);
+        while (cursor.moveToNext()) {
+            String dedupKey = FeedData.getDedupKey(cursor.getString(2), cursor.getString(3));
+            if (dedupKey != null && feedKeys.add(cursor.getLong(1) + dedupKey)) {
+                statement.bindString(1, dedupKey);
+                statement.bindLong(2, cursor.getLong(0));
+                statement.executeUpdateDelete();
+            }
+        }
+        cursor.close();
+        statement.close();
+    }
+
+    /**
+     * Builds the images of the already existing entries from their contents. The images which are already in the cache are
+     * marked as downloaded, and the ones having a download task as queued.
+     */
+    private void fillImages(SQLiteDatabase database) {
+        SQLiteStatement statement = database.compileStatement("INSERT INTO " + ImageColumns.TABLE_NAME + " (" + ImageColumns.ENTRY_ID + ", "
+                + ImageColumns.URL + ", " + ImageColumns.CACHE_KEY + ", " + ImageColumns.STATE + ") VALUES (?, ?, ?, ?)");
+
+        Cursor cursor = database.query(EntryColumns.TABLE_NAME, new String[]{EntryColumns._ID, EntryColumns.ABSTRACT, EntryColumns.MOBILIZED_HTML},
+                null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            long entryId = cursor.getLong(0);
+            for (int column = 1; column <= 2; column++) {
+                for (String url : HtmlUtils.getImageUrls(ContentCompression.getString(cursor, column))) {
+                    String cacheKey = NetworkUtils.getImageCacheKey(url);
+                    statement.bindLong(1, entryId);
+                    statement.bindString(2, url);
+                    statement.bindString(3, cacheKey);
+                    statement.bindLong(4, new File(NetworkUtils.getDownloadedImagePathFromKey(entryId, cacheKey)).exists() ? ImageColumns.STATE_DOWNLOADED
+                            : ImageColumns.STATE_PENDING);
+                    statement.executeInsert();
+                }
+            }
+        }
+        cursor.close();
+        statement.close();
+
+        executeCatchedSQL(database, "UPDATE " + ImageColumns.TABLE_NAME + " SET " + ImageColumns.STATE + '=' + ImageColumns.STATE_QUEUED + " WHERE "
+                + ImageColumns.STATE + '=' + ImageColumns.STATE_PENDING + " AND EXISTS (SELECT 1 FROM " + TaskColumns.TABLE_NAME + " WHERE "
+                + TaskColumns.TABLE_NAME + '.' + TaskColumns.ENTRY_ID + '=' + ImageColumns.TABLE_NAME + '.' + ImageColumns.ENTRY_ID + Constants.DB_AND
+                + TaskColumns.TABLE_NAME + '.' + TaskColumns.IMG_URL_TO_DL + '=' + ImageColumns.TABLE_NAME + '.' + ImageColumns.URL + ')');
+    }
+
+    /**
+     * Sets the size and the last access (the modification date of the file) of the already downloaded images
+     */
+    private void fillImagesSizes(SQLiteDatabase database) {
+        Cursor cursor = database.query(ImageColumns.TABLE_NAME, new String[]{ImageColumns._ID, ImageColumns.ENTRY_ID, ImageColumns.CACHE_KEY},
+                ImageColumns.WHERE_DOWNLOADED, null, null, null, null);
+        while (cursor.moveToNext()) {
+            File file = new File(NetworkUtils.getDownloadedImagePathFromKey(cursor.getLong(1), cursor.getString(2)));
+            ContentValues values = new ContentValues();
+            if (file.exists()) {
+                values.put(ImageColumns.SIZE, file.length());
+                values.put(ImageColumns.LAST_ACCESS, file.lastModified());
+            } else {
+                values.put(ImageColumns.STATE, ImageColumns.STATE_PENDING);
+            }
+            database.update(ImageColumns.TABLE_NAME, values, ImageColumns._ID + '=' + cursor.getLong(0), null);
+        }
+        cursor.close();
+    }
+
+    /**
+     * Compresses the bodies of the already existing entries
+     */
+    private void compressEntries(SQLiteDatabase database) {
+        Cursor cursor = database.query(EntryColumns.TABLE_NAME, new String[]{EntryColumns._ID, EntryColumns.ABSTRACT, EntryColumns.MOBILIZED_HTML},
+                null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < ContentCompression.COMPRESSED_COLUMNS.length; i++) {
+                if (cursor.getType(i + 1) == Cursor.FIELD_TYPE_STRING) {
+                    byte[] compressed = ContentCompression.compress(cursor.getString(i + 1));
+                    if (compressed != null) {
+                        values.put(ContentCompression.COMPRESSED_COLUMNS[i], compressed);
+                    }
+                }
+            }
+            if (values.size() > 0) {
+                database.update(EntryColumns.TABLE_NAME, values, EntryColumns._ID + '=' + cursor.getLong(0), null);
+            }
+        }
+        cursor.close();
+    }
+
+    private void createEntriesTriggers(SQLiteDatabase database) {
+        database.execSQL(CREATE_SEARCH_DELETE_TRIGGER);
+        database.execSQL(CREATE_CONTENT_DELETE_TRIGGER);
+        database.execSQL(CREATE_IMAGES_DELETE_TRIGGER);
+    }
+
+    private void createCountersTriggers(SQLiteDatabase database) {
+        database.execSQL(CREATE_COUNTERS_INSERT_TRIGGER);
+        database.execSQL(CREATE_COUNTERS_DELETE_TRIGGER);
+        database.execSQL(CREATE_COUNTERS_UPDATE_TRIGGER);
+        database.execSQL(CREATE_COUNTERS_FEED_DELETE_TRIGGER);
+    }
+
+    /**
+     * Creates the counters of the existing entries. Like the content move, errors are not caught: counters which are not
+     * maintained by the triggers would be wrong forever.
+     */
+    private void createCounters(SQLiteDatabase database) {
+        database.execSQL(createTable(CounterColumns.TABLE_NAME, CounterColumns.COLUMNS));
+        database.execSQL("INSERT INTO " + CounterColumns.TABLE_NAME + " (" + CounterColumns.FEED_ID + ", " + CounterColumns.UNREAD + ", "
+                + CounterColumns.FAVORITES + ") SELECT " + EntryColumns.FEED_ID + ", SUM" + String.format(COUNT_UNREAD, EntryColumns.TABLE_NAME)
+                + ", SUM" + String.format(COUNT_FAVORITE, EntryColumns.TABLE_NAME) + " FROM " + EntryColumns.TABLE_NAME + " GROUP BY "
+                + EntryColumns.FEED_ID);
+        createCountersTriggers(database);
+    }
+
+    /**
+     * Moves the bodies of the entries into their own table. As SQLite cannot drop a column, the entries table is rebuilt without
+     * them (the ids are kept). Errors are not caught here: a failure must rollback everything rather than lose the bodies.
+     */
+    private void moveEntriesContent(SQLiteDatabase database) {
+        database.execSQL(createTable(EntryContentColumns.TABLE_NAME, EntryContentColumns.COLUMNS));
+        database.execSQL("INSERT INTO " + EntryContentColumns.TABLE_NAME + " (" + EntryContentColumns.ENTRY_ID + ", " + EntryColumns.ABSTRACT + ", "
+                + EntryColumns.MOBILIZED_HTML + ") SELECT " + EntryColumns._ID + ", " + EntryColumns.ABSTRACT + ", " + EntryColumns.MOBILIZED_HTML
+                + " FROM " + EntryColumns.TABLE_NAME);
+
+        String newTableName = EntryColumns.TABLE_NAME + "_new";
+        String[] columnNames = new String[EntryColumns.COLUMNS.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = EntryColumns.COLUMNS[i][0];
+        }
+        String columns = TextUtils.join(", ", columnNames);
+
+        database.execSQL(createTable(newTableName, EntryColumns.COLUMNS));
+        database.execSQL("INSERT INTO " + newTableName + " (" + columns + ") SELECT " + columns + " FROM " + EntryColumns.TABLE_NAME);
+        database.execSQL("DROP TABLE " + EntryColumns.TABLE_NAME); // also drops its indexes & triggers
+        database.execSQL(ALTER_TABLE + newTableName + " RENAME TO " + EntryColumns.TABLE_NAME);
+        createIndexes(database);
+        createEntriesTriggers(database);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
         if (oldVersion < 2) {
@@ -153,6 +415,61 @@ class DatabaseHelper extends SQLiteOpenHelper {
         if (oldVersion < 8) {
             executeCatchedSQL(database, ALTER_TABLE + EntryColumns.TABLE_NAME + ADD + EntryColumns.IMAGE_URL + ' ' + FeedData.TYPE_TEXT);
         }
+        if (oldVersion < 9) {
+            executeCatchedSQL(database, ALTER_TABLE + FeedColumns.TABLE_NAME + ADD + FeedColumns.ETAG + ' ' + FeedData.TYPE_TEXT);
+            executeCatchedSQL(database, ALTER_TABLE + FeedColumns.TABLE_NAME + ADD + FeedColumns.LAST_MODIFIED + ' ' + FeedData.TYPE_TEXT);
+        }
+        if (oldVersion < 10) {
+            executeCatchedSQL(database, ALTER_TABLE + EntryColumns.TABLE_NAME + ADD + EntryColumns.DEDUP_KEY + ' ' + FeedData.TYPE_TEXT);
+            fillDedupKeys(database);
+            createIndexes(database);
+        }
+        if (oldVersion < 11) {
+            executeCatchedSQL(database, CREATE_SEARCH_TABLE);
+            executeCatchedSQL(database, CREATE_SEARCH_DELETE_TRIGGER);
+        }
+        if (oldVersion < 12) {
+            executeCatchedSQL(database, ALTER_TABLE + FeedColumns.TABLE_NAME + ADD + FeedColumns.NEXT_REFRESH_DATE + ' ' + FeedData.TYPE_DATE_TIME);
+        }
+        if (oldVersion < 13) {
+            executeCatchedSQL(database, createTable(ImageColumns.TABLE_NAME, ImageColumns.COLUMNS));
+            executeCatchedSQL(database, CREATE_IMAGES_DELETE_TRIGGER);
+            fillImages(database);
+        }
+        if (oldVersion < 14) {
+            compressEntries(database);
+        }
+        if (oldVersion < 15) {
+            moveEntriesContent(database);
+        }
+        if (oldVersion < 16) {
+            executeCatchedSQL(database, ALTER_TABLE + FeedColumns.TABLE_NAME + ADD + FeedColumns.ICON_VERSION + ' ' + FeedData.TYPE_DATE_TIME);
+            executeCatchedSQL(database, "UPDATE " + FeedColumns.TABLE_NAME + " SET " + FeedColumns.ICON_VERSION + "=1 WHERE " + FeedColumns.ICON
+                    + Constants.DB_IS_NOT_NULL);
+        }
+        if (oldVersion < 17) {
+            createCounters(database);
+        }
+        if (oldVersion < 18) {
+            executeCatchedSQL(database, createTable(PurgedImageColumns.TABLE_NAME, PurgedImageColumns.COLUMNS));
+            executeCatchedSQL(database, "DROP TRIGGER IF EXISTS " + IMAGES_DELETE_TRIGGER);
+            executeCatchedSQL(database, CREATE_IMAGES_DELETE_TRIGGER);
+        }
+        if (oldVersion < 19) {
+            executeCatchedSQL(database, ALTER_TABLE + ImageColumns.TABLE_NAME + ADD + ImageColumns.SIZE + ' ' + FeedData.TYPE_INT);
+            executeCatchedSQL(database, ALTER_TABLE + ImageColumns.TABLE_NAME + ADD + ImageColumns.LAST_ACCESS + ' ' + FeedData.TYPE_DATE_TIME);
+            executeCatchedSQL(database, createIndex(false, ImageColumns.TABLE_NAME, ImageColumns.STATE, ImageColumns.LAST_ACCESS));
+            fillImagesSizes(database);
+        }
+        if (oldVersion < 20) {
+            executeCatchedSQL(database, "DROP TRIGGER IF EXISTS " + IMAGES_DELETE_TRIGGER);
+            executeCatchedSQL(database, CREATE_IMAGES_DELETE_TRIGGER);
+        }
+
+        // Done at the end, as it needs the last version of the entries tables
+        if (oldVersion < 11) {
+            indexEntries(database, null);
+        }
     }
 
     private void executeCatchedSQL(SQLiteDatabase database, String query) {
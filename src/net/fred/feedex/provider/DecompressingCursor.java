@@ -0,0 +1,95 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.provider;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Gives the compressed bodies of the entries as plain strings (see {@link ContentCompression}), each body being decompressed
+ * only when it is read
+ */
+class DecompressingCursor extends CursorWrapper {
+
+    private final int[] mColumns;
+    private final int[] mCachedPositions;
+    private final String[] mCachedValues;
+
+    DecompressingCursor(Cursor cursor) {
+        super(cursor);
+
+        String[] columnNames = ContentCompression.COMPRESSED_COLUMNS;
+        mColumns = new int[columnNames.length];
+        mCachedPositions = new int[columnNames.length];
+        mCachedValues = new String[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            mColumns[i] = cursor.getColumnIndex(columnNames[i]);
+            mCachedPositions[i] = -1;
+        }
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        int compressedIndex = getCompressedIndex(columnIndex);
+        if (compressedIndex != -1 && super.getType(columnIndex) == FIELD_TYPE_BLOB) {
+            // The same body is often read several times in a row, do not decompress it each time
+            int position = getPosition();
+            if (mCachedPositions[compressedIndex] != position) {
+                mCachedValues[compressedIndex] = ContentCompression.decompress(super.getBlob(columnIndex));
+                mCachedPositions[compressedIndex] = position;
+            }
+            return mCachedValues[compressedIndex];
+        }
+        return super.getString(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        int type = super.getType(columnIndex);
+        if (type == FIELD_TYPE_BLOB && getCompressedIndex(columnIndex) != -1) {
+            return FIELD_TYPE_STRING;
+        }
+        return type;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean requery() {
+        clearCache();
+        return super.requery();
+    }
+
+    private int getCompressedIndex(int columnIndex) {
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i] == columnIndex) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void clearCache() {
+        for (int i = 0; i < mCachedPositions.length; i++) {
+            mCachedPositions[i] = -1;
+            mCachedValues[i] = null;
+        }
+    }
+}
@@ -50,6 +50,9 @@ import android.provider.BaseColumns;
 import android.text.TextUtils;
 
 import net.fred.feedex.Constants;
+import net.fred.feedex.utils.StringUtils;
+
+import java.util.List;
 
 public class FeedData {
     public static final String CONTENT = "content://";
@@ -58,9 +61,15 @@ public class FeedData {
     public static final String FEEDS_TABLE_WITH_GROUP_PRIORITY = FeedColumns.TABLE_NAME + " LEFT JOIN (SELECT " + FeedColumns._ID + " AS joined_feed_id, " + FeedColumns.PRIORITY +
             " AS group_priority FROM " + FeedColumns.TABLE_NAME + ") AS f ON (" + FeedColumns.TABLE_NAME + '.' + FeedColumns.GROUP_ID + " = f.joined_feed_id)";
     public static final String ENTRIES_TABLE_WITH_FEED_INFO = EntryColumns.TABLE_NAME + " JOIN (SELECT " + FeedColumns._ID + " AS joined_feed_id, " + FeedColumns.NAME + ", " + FeedColumns.URL + ", " +
-            FeedColumns.ICON + ", " + FeedColumns.GROUP_ID + " FROM " + FeedColumns.TABLE_NAME + ") AS f ON (" + EntryColumns.TABLE_NAME + '.' + EntryColumns.FEED_ID + " = f.joined_feed_id)";
-    public static final String ALL_UNREAD_NUMBER = "(SELECT " + Constants.DB_COUNT + " FROM " + EntryColumns.TABLE_NAME + " WHERE " + EntryColumns.IS_READ + " IS NULL)";
-    public static final String FAVORITES_NUMBER = "(SELECT " + Constants.DB_COUNT + " FROM " + EntryColumns.TABLE_NAME + " WHERE " + EntryColumns.IS_FAVORITE + Constants.DB_IS_TRUE + ')';
+            FeedColumns.ICON_VERSION + ", " + FeedColumns.GROUP_ID + " FROM " + FeedColumns.TABLE_NAME + ") AS f ON (" + EntryColumns.TABLE_NAME + '.' + EntryColumns.FEED_ID + " = f.joined_feed_id)";
+    public static final String ENTRIES_TABLE_WITH_CONTENT = EntryColumns.TABLE_NAME + " LEFT JOIN " + EntryContentColumns.TABLE_NAME + " ON ("
+            + EntryColumns.TABLE_NAME + '.' + EntryColumns._ID + " = " + EntryContentColumns.TABLE_NAME + '.' + EntryContentColumns.ENTRY_ID + ')';
+    public static final String ENTRIES_TABLE_WITH_FEED_INFO_AND_CONTENT = ENTRIES_TABLE_WITH_FEED_INFO + " LEFT JOIN " + EntryContentColumns.TABLE_NAME
+            + " ON (" + EntryColumns.TABLE_NAME + '.' + EntryColumns._ID + " = " + EntryContentColumns.TABLE_NAME + '.' + EntryContentColumns.ENTRY_ID + ')';
+    /**
+     * Query parameter limiting the number of rows returned by a query, see {@link #withLimit(Uri, int)}
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
     static final String TYPE_PRIMARY_KEY = "INTEGER PRIMARY KEY AUTOINCREMENT";
     static final String TYPE_EXTERNAL_ID = "INTEGER(7)";
     static final String TYPE_TEXT = "TEXT";
@@ -69,6 +78,10 @@ public class FeedData {
     static final String TYPE_INT = "INT";
     static final String TYPE_BOOLEAN = "INTEGER(1)";
 
+    public static Uri withLimit(Uri uri, int limit) {
+        return uri.buildUpon().appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit)).build();
+    }
+
     public static ContentValues getReadContentValues() {
         ContentValues values = new ContentValues();
         values.put(EntryColumns.IS_READ, true);
@@ -81,6 +94,19 @@ public class FeedData {
         return values;
     }
 
+    /**
+     * The key which identifies an entry inside its feed: a hash of the guid if there is one, else of the link.
+     * Returns null when the entry cannot be identified.
+     */
+    public static String getDedupKey(String guid, String link) {
+        if (!TextUtils.isEmpty(guid)) {
+            return StringUtils.getMd5(guid);
+        } else if (!TextUtils.isEmpty(link)) {
+            return StringUtils.getMd5(link);
+        }
+        return null;
+    }
+
     public static class FeedColumns implements BaseColumns {
         public static final String TABLE_NAME = "feeds";
 
@@ -92,15 +118,21 @@ public class FeedData {
         public static final String REAL_LAST_UPDATE = "reallastupdate";
         public static final String RETRIEVE_FULLTEXT = "retrievefulltext";
         public static final String ICON = "icon";
+        // Changes each time the icon changes (null when there is no icon), the entries only know this version and not the icon itself
+        public static final String ICON_VERSION = "iconversion";
         public static final String ERROR = "error";
         public static final String PRIORITY = "priority";
         public static final String FETCH_MODE = "fetchmode";
+        public static final String ETAG = "etag";
+        public static final String LAST_MODIFIED = "lastmodified";
+        public static final String NEXT_REFRESH_DATE = "nextrefreshdate";
         public static final String[] PROJECTION_ID = new String[]{FeedColumns._ID};
         public static final String[] PROJECTION_GROUP_ID = new String[]{FeedColumns.GROUP_ID};
         public static final String[] PROJECTION_PRIORITY = new String[]{FeedColumns.PRIORITY};
         public static final String[][] COLUMNS = new String[][]{{_ID, TYPE_PRIMARY_KEY}, {URL, TYPE_TEXT_UNIQUE}, {NAME, TYPE_TEXT}, {IS_GROUP, TYPE_BOOLEAN},
                 {GROUP_ID, TYPE_EXTERNAL_ID}, {LAST_UPDATE, TYPE_DATE_TIME}, {REAL_LAST_UPDATE, TYPE_DATE_TIME}, {RETRIEVE_FULLTEXT, TYPE_BOOLEAN},
-                {ICON, "BLOB"}, {ERROR, TYPE_TEXT}, {PRIORITY, TYPE_INT}, {FETCH_MODE, TYPE_INT}};
+                {ICON, "BLOB"}, {ERROR, TYPE_TEXT}, {PRIORITY, TYPE_INT}, {FETCH_MODE, TYPE_INT}, {ETAG, TYPE_TEXT}, {LAST_MODIFIED, TYPE_TEXT},
+                {NEXT_REFRESH_DATE, TYPE_DATE_TIME}, {ICON_VERSION, TYPE_DATE_TIME}};
         public static final Uri CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/feeds");
         public static final Uri GROUPED_FEEDS_CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/grouped_feeds");
         public static final Uri GROUPS_CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/groups");
@@ -154,8 +186,11 @@ public class FeedData {
     public static class EntryColumns implements BaseColumns {
         public static final String TABLE_NAME = "entries";
 
+        private static final String PATH_SEARCH = "search";
+
         public static final String FEED_ID = "feedid";
         public static final String TITLE = "title";
+        // The bodies are stored in the entry_content table, they are only available through the single entry uris
         public static final String ABSTRACT = "abstract";
         public static final String MOBILIZED_HTML = "mobilized";
         public static final String DATE = "date";
@@ -167,16 +202,19 @@ public class FeedData {
         public static final String GUID = "guid";
         public static final String AUTHOR = "author";
         public static final String IMAGE_URL = "image_url";
+        public static final String DEDUP_KEY = "dedup_key";
         public static final String[] PROJECTION_ID = new String[]{EntryColumns._ID};
         public static final String WHERE_READ = EntryColumns.IS_READ + Constants.DB_IS_TRUE;
         public static final String WHERE_UNREAD = "(" + EntryColumns.IS_READ + Constants.DB_IS_NULL + Constants.DB_OR + EntryColumns.IS_READ + Constants.DB_IS_FALSE + ')';
         public static final String WHERE_NOT_FAVORITE = "(" + EntryColumns.IS_FAVORITE + Constants.DB_IS_NULL + Constants.DB_OR + EntryColumns.IS_FAVORITE + Constants.DB_IS_FALSE + ')';
         public static final String[][] COLUMNS = new String[][]{{_ID, TYPE_PRIMARY_KEY}, {FEED_ID, TYPE_EXTERNAL_ID}, {TITLE, TYPE_TEXT},
-                {ABSTRACT, TYPE_TEXT}, {MOBILIZED_HTML, TYPE_TEXT}, {DATE, TYPE_DATE_TIME}, {FETCH_DATE, TYPE_DATE_TIME}, {IS_READ, TYPE_BOOLEAN}, {LINK, TYPE_TEXT},
-                {IS_FAVORITE, TYPE_BOOLEAN}, {ENCLOSURE, TYPE_TEXT}, {GUID, TYPE_TEXT}, {AUTHOR, TYPE_TEXT}, {IMAGE_URL, TYPE_TEXT}};
+                {DATE, TYPE_DATE_TIME}, {FETCH_DATE, TYPE_DATE_TIME}, {IS_READ, TYPE_BOOLEAN}, {LINK, TYPE_TEXT},
+                {IS_FAVORITE, TYPE_BOOLEAN}, {ENCLOSURE, TYPE_TEXT}, {GUID, TYPE_TEXT}, {AUTHOR, TYPE_TEXT}, {IMAGE_URL, TYPE_TEXT}, {DEDUP_KEY, TYPE_TEXT}};
         public static final Uri CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/entries");
         public static final Uri UNREAD_ENTRIES_CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/unread_entries");
         public static final Uri FAVORITES_CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/favorites");
+        // The entries with their bodies, for the background tasks which need them for many entries at once
+        public static final Uri CONTENTS_CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/entries/contents");
 
         public static Uri ENTRIES_FOR_FEED_CONTENT_URI(String feedId) {
             return Uri.parse(CONTENT_AUTHORITY + "/feeds/" + feedId + "/entries");
@@ -210,13 +248,102 @@ public class FeedData {
             return Uri.parse(CONTENT_AUTHORITY + path.substring(0, path.lastIndexOf('/')));
         }
 
+        /**
+         * @return the column by which the entries of the uri are listed, then by id: their date, or the rank of their match for a
+         * search (see {@link SearchColumns#RANK})
+         */
+        public static String KEYSET_COLUMN(Uri uri) {
+            List<String> segments = uri.getPathSegments();
+            return segments.size() >= 3 && PATH_SEARCH.equals(segments.get(1)) ? SearchColumns.RANK : DATE;
+        }
+
+        /**
+         * @return true if the entries of the uri are listed by ascending keys: when the oldest ones are displayed first, but never
+         * for a search, which displays the best matches first
+         */
+        public static boolean IS_KEYSET_ASCENDING(Uri uri, boolean oldestFirst) {
+            return oldestFirst && DATE.equals(KEYSET_COLUMN(uri));
+        }
+
+        /**
+         * Selection of the entries located after (or before) the given one in an ordering by the key column (see
+         * {@link #KEYSET_COLUMN(Uri)}), then by id for the entries with the same key. Allows to read a list by pages from a known
+         * entry, whatever the size of the list.
+         *
+         * @param greater   true for the entries with a greater key (or id), false for the ones with a lower one
+         * @param inclusive true to also select the given entry
+         */
+        public static String WHERE_KEYSET(String keyColumn, long key, long id, boolean greater, boolean inclusive) {
+            String operator = greater ? ">" : "<";
+            return "(" + keyColumn + operator + key + Constants.DB_OR + '(' + keyColumn + '=' + key + Constants.DB_AND + _ID + operator
+                    + (inclusive ? "=" : "") + id + "))";
+        }
+
+        /**
+         * The order matching {@link #WHERE_KEYSET(String, long, long, boolean, boolean)}
+         */
+        public static String KEYSET_ORDER(String keyColumn, boolean ascending) {
+            String direction = ascending ? Constants.DB_ASC : Constants.DB_DESC;
+            return keyColumn + direction + ", " + _ID + direction;
+        }
+
         public static Uri SEARCH_URI(String search) {
-            return Uri.parse(CONTENT_AUTHORITY + "/entries/search/" + (TextUtils.isEmpty(search) ? " " : Uri.encode(search))); // The space is mandatory here with empty search
+            return Uri.parse(CONTENT_AUTHORITY + "/entries/" + PATH_SEARCH + '/' + (TextUtils.isEmpty(search) ? " " : Uri.encode(search))); // The space is mandatory here with empty search
         }
 
 
     }
 
+    /**
+     * The bodies of the entries, kept out of the entries table so that the lists do not need to read them
+     */
+    public static class EntryContentColumns {
+        public static final String TABLE_NAME = "entry_content";
+
+        public static final String ENTRY_ID = "entryid";
+        public static final String[] BODY_COLUMNS = new String[]{EntryColumns.ABSTRACT, EntryColumns.MOBILIZED_HTML};
+        public static final String[][] COLUMNS = new String[][]{{ENTRY_ID, "INTEGER PRIMARY KEY"}, {EntryColumns.ABSTRACT, TYPE_TEXT},
+                {EntryColumns.MOBILIZED_HTML, TYPE_TEXT}};
+    }
+
+    /**
+     * The number of unread & favorite entries of each feed, kept up to date by triggers on the entries table. Only readable,
+     * through {@link #CONTENT_URI}.
+     */
+    public static class CounterColumns {
+        public static final String TABLE_NAME = "feed_counters";
+
+        public static final String FEED_ID = "feedid";
+        public static final String UNREAD = "unread";
+        public static final String FAVORITES = "favorites";
+        public static final String[][] COLUMNS = new String[][]{{FEED_ID, "INTEGER PRIMARY KEY"}, {UNREAD, TYPE_INT}, {FAVORITES, TYPE_INT}};
+        // Projections giving the totals for all the feeds
+        public static final String ALL_UNREAD_NUMBER = "IFNULL(SUM(" + UNREAD + "), 0)";
+        public static final String ALL_FAVORITES_NUMBER = "IFNULL(SUM(" + FAVORITES + "), 0)";
+        public static final Uri CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/counters");
+
+        /**
+         * @return a subquery giving the number of unread entries of the feed (the given column must contain its id)
+         */
+        public static String getFeedUnreadNumber(String feedIdColumn) {
+            return "IFNULL((SELECT " + UNREAD + " FROM " + TABLE_NAME + " WHERE " + FEED_ID + '=' + feedIdColumn + "), 0)";
+        }
+    }
+
+    /**
+     * Full-text index of the entries (docid = entry id), only used through {@link EntryColumns#SEARCH_URI(String)}
+     */
+    public static class SearchColumns {
+        public static final String TABLE_NAME = "entries_fts";
+
+        public static final String DOCID = "docid";
+        public static final String TITLE = "title";
+        public static final String CONTENT = "content";
+        // Only available with the search uri
+        public static final String SNIPPET = "search_snippet";
+        public static final String RANK = "search_rank";
+    }
+
     public static class TaskColumns implements BaseColumns {
         public static final String TABLE_NAME = "tasks";
 
@@ -236,4 +363,60 @@ public class FeedData {
             return Uri.parse(CONTENT_AUTHORITY + "/tasks/" + taskId);
         }
     }
+
+    /**
+     * The images found in the entries contents, filled when the entry is stored so that displaying an entry does not need to
+     * look for its images again
+     */
+    public static class ImageColumns implements BaseColumns {
+        public static final String TABLE_NAME = "entry_images";
+
+        public static final String ENTRY_ID = "entryid";
+        public static final String URL = "url";
+        public static final String CACHE_KEY = "cache_key";
+        public static final String STATE = "state";
+        public static final String WIDTH = "width";
+        public static final String HEIGHT = "height";
+        // Size of the downloaded file, in bytes
+        public static final String SIZE = "size";
+        // Last time the downloaded file was downloaded or displayed, for the eviction of the least recently used ones
+        public static final String LAST_ACCESS = "last_access";
+        public static final String[][] COLUMNS = new String[][]{{_ID, TYPE_PRIMARY_KEY}, {ENTRY_ID, TYPE_EXTERNAL_ID}, {URL, TYPE_TEXT},
+                {CACHE_KEY, TYPE_TEXT}, {STATE, TYPE_INT}, {WIDTH, TYPE_INT}, {HEIGHT, TYPE_INT}, {SIZE, TYPE_INT}, {LAST_ACCESS, TYPE_DATE_TIME},
+                {"UNIQUE", "(" + ENTRY_ID + ", " + URL + ") ON CONFLICT IGNORE"}};
+
+        // Not downloaded, nor waiting for it
+        public static final int STATE_PENDING = 0;
+        // A download task exists
+        public static final int STATE_QUEUED = 1;
+        public static final int STATE_DOWNLOADED = 2;
+
+        public static final String WHERE_DOWNLOADED = STATE + '=' + STATE_DOWNLOADED;
+        public static final String WHERE_FAVORITE_ENTRY = ENTRY_ID + " IN (SELECT " + EntryColumns._ID + " FROM " + EntryColumns.TABLE_NAME
+                + " WHERE " + EntryColumns.IS_FAVORITE + Constants.DB_IS_TRUE + ')';
+
+        public static final Uri CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/images");
+
+        public static Uri IMAGES_FOR_ENTRY_CONTENT_URI(String entryId) {
+            return Uri.parse(CONTENT_AUTHORITY + "/entries/" + entryId + "/images");
+        }
+
+        public static Uri IMAGES_FOR_ENTRY_CONTENT_URI(long entryId) {
+            return Uri.parse(CONTENT_AUTHORITY + "/entries/" + entryId + "/images");
+        }
+    }
+
+    /**
+     * The cached images of the deleted entries, which remain to be deleted from the disk. Filled by a trigger when an entry is
+     * deleted, so that cleaning the cache doesn't need to list it.
+     */
+    public static class PurgedImageColumns implements BaseColumns {
+        public static final String TABLE_NAME = "purged_images";
+
+        public static final String ENTRY_ID = "entryid";
+        public static final String CACHE_KEY = "cache_key";
+        public static final String[][] COLUMNS = new String[][]{{_ID, "INTEGER PRIMARY KEY"}, {ENTRY_ID, TYPE_EXTERNAL_ID}, {CACHE_KEY, TYPE_TEXT}};
+
+        public static final Uri CONTENT_URI = Uri.parse(CONTENT_AUTHORITY + "/purged_images");
+    }
 }
@@ -45,10 +45,13 @@
 package net.fred.feedex.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -62,11 +65,17 @@ import android.widget.Toast;
 import net.fred.feedex.BuildConfig;
 import net.fred.feedex.Constants;
 import net.fred.feedex.R;
+import net.fred.feedex.provider.FeedData.CounterColumns;
 import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.EntryContentColumns;
 import net.fred.feedex.provider.FeedData.FeedColumns;
 import net.fred.feedex.provider.FeedData.FilterColumns;
+import net.fred.feedex.provider.FeedData.ImageColumns;
+import net.fred.feedex.provider.FeedData.PurgedImageColumns;
+import net.fred.feedex.provider.FeedData.SearchColumns;
 import net.fred.feedex.provider.FeedData.TaskColumns;
 
+import java.util.ArrayList;
 import java.util.Date;
 
 public class FeedDataContentProvider extends ContentProvider {
@@ -93,6 +102,11 @@ public class FeedDataContentProvider extends ContentProvider {
     public static final int URI_TASK = 20;
     public static final int URI_SEARCH = 21;
     public static final int URI_SEARCH_ENTRY = 22;
+    public static final int URI_IMAGES = 23;
+    public static final int URI_IMAGES_FOR_ENTRY = 24;
+    public static final int URI_ENTRIES_CONTENTS = 25;
+    public static final int URI_COUNTERS = 26;
+    public static final int URI_PURGED_IMAGES = 27;
 
     public static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -119,8 +133,17 @@ public class FeedDataContentProvider extends ContentProvider {
         URI_MATCHER.addURI(FeedData.AUTHORITY, "tasks/#", URI_TASK);
         URI_MATCHER.addURI(FeedData.AUTHORITY, "entries/search/*", URI_SEARCH);
         URI_MATCHER.addURI(FeedData.AUTHORITY, "entries/search/*/#", URI_SEARCH_ENTRY);
+        URI_MATCHER.addURI(FeedData.AUTHORITY, "images", URI_IMAGES);
+        URI_MATCHER.addURI(FeedData.AUTHORITY, "entries/#/images", URI_IMAGES_FOR_ENTRY);
+        URI_MATCHER.addURI(FeedData.AUTHORITY, "entries/contents", URI_ENTRIES_CONTENTS);
+        URI_MATCHER.addURI(FeedData.AUTHORITY, "counters", URI_COUNTERS);
+        URI_MATCHER.addURI(FeedData.AUTHORITY, "purged_images", URI_PURGED_IMAGES);
     }
 
+    private static final ChangeNotifier CHANGE_NOTIFIER = new ChangeNotifier();
+
+    private static volatile int sFiltersGeneration;
+
     private final String[] MAX_PRIORITY = new String[]{"MAX(" + FeedColumns.PRIORITY + ")"};
 
     private DatabaseHelper mDatabaseHelper;
@@ -153,17 +176,54 @@ public class FeedDataContentProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Transforms the user search into a full-text query: every word is searched as a prefix and all of them must match.
+     * Returns null if there is nothing to search.
+     */
+    private static String getSearchMatchQuery(String uriSearchParam) {
+        String search = Uri.decode(uriSearchParam);
+        StringBuilder matchQuery = new StringBuilder();
+
+        int wordStart = -1;
+        for (int i = 0; i <= search.length(); i++) {
+            if (i < search.length() && Character.isLetterOrDigit(search.charAt(i))) {
+                if (wordStart == -1) {
+                    wordStart = i;
+                }
+            } else if (wordStart != -1) {
+                if (matchQuery.length() > 0) {
+                    matchQuery.append(' ');
+                }
+                matchQuery.append(search, wordStart, i).append('*');
+                wordStart = -1;
+            }
+        }
+
+        return matchQuery.length() > 0 ? DatabaseUtils.sqlEscapeString(matchQuery.toString()) : null;
+    }
+
     private static String getSearchWhereClause(String uriSearchParam) {
-        uriSearchParam = Uri.decode(uriSearchParam).trim();
+        String matchQuery = getSearchMatchQuery(uriSearchParam);
 
-        if (!uriSearchParam.isEmpty()) {
-            uriSearchParam = DatabaseUtils.sqlEscapeString("%" + Uri.decode(uriSearchParam) + "%");
-            return EntryColumns.TITLE + " LIKE " + uriSearchParam + Constants.DB_OR + EntryColumns.ABSTRACT + " LIKE " + uriSearchParam + Constants.DB_OR + EntryColumns.MOBILIZED_HTML + " LIKE " + uriSearchParam;
+        if (matchQuery != null) {
+            return EntryColumns._ID + " IN (SELECT " + SearchColumns.DOCID + " FROM " + SearchColumns.TABLE_NAME + " WHERE " + SearchColumns.TABLE_NAME
+                    + " MATCH " + matchQuery + ')';
         } else {
             return "1 = 2"; // to have 0 result with an empty search
         }
     }
 
+    /**
+     * The entries joined with their full-text matches, which also gives a snippet of the match and a rank (the longer the offsets
+     * list is, the more the words have been found)
+     */
+    private static String getSearchTables(String matchQuery) {
+        return FeedData.ENTRIES_TABLE_WITH_FEED_INFO + " JOIN (SELECT " + SearchColumns.DOCID + " AS search_docid, snippet(" + SearchColumns.TABLE_NAME + ") AS "
+                + SearchColumns.SNIPPET + ", length(offsets(" + SearchColumns.TABLE_NAME + ")) AS " + SearchColumns.RANK + " FROM "
+                + SearchColumns.TABLE_NAME + " WHERE " + SearchColumns.TABLE_NAME + " MATCH " + matchQuery + ") AS s ON ("
+                + EntryColumns.TABLE_NAME + '.' + EntryColumns._ID + " = s.search_docid)";
+    }
+
     @Override
     public String getType(Uri uri) {
         int matchCode = URI_MATCHER.match(uri);
@@ -186,6 +246,7 @@ public class FeedDataContentProvider extends ContentProvider {
             case URI_ENTRIES_FOR_FEED:
             case URI_ENTRIES_FOR_GROUP:
             case URI_SEARCH:
+            case URI_ENTRIES_CONTENTS:
                 return "vnd.android.cursor.dir/vnd.flym.entry";
             case URI_FAVORITES_ENTRY:
             case URI_ENTRY:
@@ -198,6 +259,13 @@ public class FeedDataContentProvider extends ContentProvider {
                 return "vnd.android.cursor.dir/vnd.flym.task";
             case URI_TASK:
                 return "vnd.android.cursor.item/vnd.flym.task";
+            case URI_IMAGES:
+            case URI_IMAGES_FOR_ENTRY:
+                return "vnd.android.cursor.dir/vnd.flym.image";
+            case URI_COUNTERS:
+                return "vnd.android.cursor.dir/vnd.flym.counter";
+            case URI_PURGED_IMAGES:
+                return "vnd.android.cursor.dir/vnd.flym.purged_image";
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -220,6 +288,18 @@ public class FeedDataContentProvider extends ContentProvider {
             return queryBuilder.query(database, projection, selection, selectionArgs, null, null, sortOrder);
         }
 
+        SQLiteDatabase database = mDatabaseHelper.getReadableDatabase();
+
+        Cursor cursor = database.rawQuery(buildQuery(uri, projection, selection, sortOrder), selectionArgs);
+
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return ContentCompression.wrap(cursor);
+    }
+
+    /**
+     * @return the SQL of the query of the given uri, also used by the tests to check its query plan
+     */
+    String buildQuery(Uri uri, String[] projection, String selection, String sortOrder) {
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
 
         int matchCode = URI_MATCHER.match(uri);
@@ -268,7 +348,7 @@ public class FeedDataContentProvider extends ContentProvider {
             case URI_ENTRY_FOR_FEED:
             case URI_ENTRY_FOR_GROUP:
             case URI_SEARCH_ENTRY: {
-                queryBuilder.setTables(FeedData.ENTRIES_TABLE_WITH_FEED_INFO);
+                queryBuilder.setTables(FeedData.ENTRIES_TABLE_WITH_FEED_INFO_AND_CONTENT);
                 queryBuilder.appendWhere(new StringBuilder(EntryColumns._ID).append('=').append(uri.getPathSegments().get(3)));
                 break;
             }
@@ -292,14 +372,22 @@ public class FeedDataContentProvider extends ContentProvider {
                 break;
             }
             case URI_SEARCH: {
-                queryBuilder.setTables(FeedData.ENTRIES_TABLE_WITH_FEED_INFO);
-                queryBuilder.appendWhere(getSearchWhereClause(uri.getPathSegments().get(2)));
+                String matchQuery = getSearchMatchQuery(uri.getPathSegments().get(2));
+                if (matchQuery != null) {
+                    queryBuilder.setTables(getSearchTables(matchQuery));
+                    if (sortOrder == null) {
+                        sortOrder = SearchColumns.RANK + Constants.DB_DESC;
+                    }
+                } else {
+                    queryBuilder.setTables(FeedData.ENTRIES_TABLE_WITH_FEED_INFO);
+                    queryBuilder.appendWhere("1 = 2"); // to have 0 result with an empty search
+                }
                 break;
             }
             case URI_FAVORITES_ENTRY:
             case URI_UNREAD_ENTRIES_ENTRY:
             case URI_ENTRY: {
-                queryBuilder.setTables(FeedData.ENTRIES_TABLE_WITH_FEED_INFO);
+                queryBuilder.setTables(FeedData.ENTRIES_TABLE_WITH_FEED_INFO_AND_CONTENT);
                 queryBuilder.appendWhere(new StringBuilder(EntryColumns._ID).append('=').append(uri.getPathSegments().get(1)));
                 break;
             }
@@ -308,6 +396,10 @@ public class FeedDataContentProvider extends ContentProvider {
                 queryBuilder.appendWhere(new StringBuilder(EntryColumns.IS_FAVORITE).append(Constants.DB_IS_TRUE));
                 break;
             }
+            case URI_ENTRIES_CONTENTS: {
+                queryBuilder.setTables(FeedData.ENTRIES_TABLE_WITH_CONTENT);
+                break;
+            }
             case URI_TASKS: {
                 queryBuilder.setTables(TaskColumns.TABLE_NAME);
                 break;
@@ -317,16 +409,28 @@ public class FeedDataContentProvider extends ContentProvider {
                 queryBuilder.appendWhere(new StringBuilder(EntryColumns._ID).append('=').append(uri.getPathSegments().get(1)));
                 break;
             }
+            case URI_IMAGES: {
+                queryBuilder.setTables(ImageColumns.TABLE_NAME);
+                break;
+            }
+            case URI_IMAGES_FOR_ENTRY: {
+                queryBuilder.setTables(ImageColumns.TABLE_NAME);
+                queryBuilder.appendWhere(new StringBuilder(ImageColumns.ENTRY_ID).append('=').append(uri.getPathSegments().get(1)));
+                break;
+            }
+            case URI_COUNTERS: {
+                queryBuilder.setTables(CounterColumns.TABLE_NAME);
+                break;
+            }
+            case URI_PURGED_IMAGES: {
+                queryBuilder.setTables(PurgedImageColumns.TABLE_NAME);
+                break;
+            }
             default:
                 throw new IllegalArgumentException("Illegal query. Match code=" + matchCode + "; uri=" + uri);
         }
 
-        SQLiteDatabase database = mDatabaseHelper.getReadableDatabase();
-
-        Cursor cursor = queryBuilder.query(database, projection, selection, selectionArgs, null, null, sortOrder);
-
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
-        return cursor;
+        return queryBuilder.buildQuery(projection, selection, null, null, sortOrder, uri.getQueryParameter(FeedData.QUERY_PARAMETER_LIMIT));
     }
 
     @Override
@@ -372,18 +476,39 @@ public class FeedDataContentProvider extends ContentProvider {
             case URI_ENTRIES_FOR_FEED: {
                 values.put(EntryColumns.FEED_ID, uri.getPathSegments().get(1));
                 values.put(EntryColumns.FETCH_DATE, new Date().getTime());
-                newId = database.insert(EntryColumns.TABLE_NAME, null, values);
+                if (!values.containsKey(EntryColumns.DEDUP_KEY)) {
+                    values.put(EntryColumns.DEDUP_KEY, FeedData.getDedupKey(values.getAsString(EntryColumns.GUID), values.getAsString(EntryColumns.LINK)));
+                }
+                ContentValues contentValues = extractBodies(values);
+                // An already known entry of this feed is ignored thanks to the unique dedup key index
+                newId = database.insertWithOnConflict(EntryColumns.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                if (newId > -1) {
+                    contentValues.put(EntryContentColumns.ENTRY_ID, newId);
+                    database.insert(EntryContentColumns.TABLE_NAME, null, ContentCompression.compress(contentValues));
+                    DatabaseHelper.indexEntry(database, newId, values.getAsString(EntryColumns.TITLE), contentValues.getAsString(EntryColumns.ABSTRACT),
+                            contentValues.getAsString(EntryColumns.MOBILIZED_HTML));
+                }
                 break;
             }
             case URI_TASKS: {
                 newId = database.insert(TaskColumns.TABLE_NAME, null, values);
                 break;
             }
+            case URI_IMAGES: {
+                newId = database.insert(ImageColumns.TABLE_NAME, null, values);
+                break;
+            }
+            case URI_IMAGES_FOR_ENTRY: {
+                values.put(ImageColumns.ENTRY_ID, uri.getPathSegments().get(1));
+                newId = database.insert(ImageColumns.TABLE_NAME, null, values);
+                break;
+            }
             default:
                 throw new IllegalArgumentException("Illegal insert. Match code=" + matchCode + "; uri=" + uri);
         }
 
         if (newId > -1) {
+            onFiltersChanged(matchCode);
             notifyChangeOnAllUris(matchCode, uri);
             return ContentUris.withAppendedId(uri, newId);
         } else { // This can happen when an insert failed with "ON CONFLICT IGNORE", this is not an error
@@ -529,6 +654,15 @@ public class FeedDataContentProvider extends ContentProvider {
                 where.append(TaskColumns._ID).append('=').append(uri.getPathSegments().get(1));
                 break;
             }
+            case URI_IMAGES: {
+                table = ImageColumns.TABLE_NAME;
+                break;
+            }
+            case URI_IMAGES_FOR_ENTRY: {
+                table = ImageColumns.TABLE_NAME;
+                where.append(ImageColumns.ENTRY_ID).append('=').append(uri.getPathSegments().get(1));
+                break;
+            }
             default:
                 throw new IllegalArgumentException("Illegal update. Match code=" + matchCode + "; uri=" + uri);
         }
@@ -541,13 +675,35 @@ public class FeedDataContentProvider extends ContentProvider {
             }
         }
 
-        int count = database.update(table, values, where.toString(), selectionArgs);
+        // The bodies are updated in their own table, for the same entries
+        ContentValues contentValues = null;
+        if (EntryColumns.TABLE_NAME.equals(table)) {
+            values = new ContentValues(values);
+            contentValues = extractBodies(values);
+        }
+
+        // The full-text index needs to be recomputed for the modified entries, the refreshes resend the same texts most of the time
+        String entryIds = null;
+        if (contentValues != null && (contentValues.size() > 0 || values.containsKey(EntryColumns.TITLE))) {
+            entryIds = getChangedIds(database, where.toString(), selectionArgs, values, contentValues);
+        }
+
+        int count = values.size() > 0 ? database.update(table, values, where.toString(), selectionArgs) : 0;
+        if (entryIds != null && contentValues.size() > 0) {
+            count = Math.max(count, database.update(EntryContentColumns.TABLE_NAME, ContentCompression.compress(contentValues),
+                    EntryContentColumns.ENTRY_ID + " IN " + entryIds, null));
+        }
+
+        if (entryIds != null && count > 0) {
+            DatabaseHelper.indexEntries(database, EntryColumns._ID + " IN " + entryIds);
+        }
 
         if (FeedColumns.TABLE_NAME.equals(table)
                 && (values.containsKey(FeedColumns.NAME) || values.containsKey(FeedColumns.URL) || values.containsKey(FeedColumns.PRIORITY))) {
             mDatabaseHelper.exportToOPML();
         }
         if (count > 0) {
+            onFiltersChanged(matchCode);
             notifyChangeOnAllUris(matchCode, uri);
         }
 
@@ -710,6 +866,19 @@ public class FeedDataContentProvider extends ContentProvider {
                 where.append(TaskColumns._ID).append('=').append(uri.getPathSegments().get(1));
                 break;
             }
+            case URI_IMAGES: {
+                table = ImageColumns.TABLE_NAME;
+                break;
+            }
+            case URI_IMAGES_FOR_ENTRY: {
+                table = ImageColumns.TABLE_NAME;
+                where.append(ImageColumns.ENTRY_ID).append('=').append(uri.getPathSegments().get(1));
+                break;
+            }
+            case URI_PURGED_IMAGES: {
+                table = PurgedImageColumns.TABLE_NAME;
+                break;
+            }
             default:
                 throw new IllegalArgumentException("Illegal delete. Match code=" + matchCode + "; uri=" + uri);
         }
@@ -728,23 +897,142 @@ public class FeedDataContentProvider extends ContentProvider {
                 mDatabaseHelper.exportToOPML();
             }
 
+            onFiltersChanged(matchCode);
             notifyChangeOnAllUris(matchCode, uri);
         }
         return count;
     }
 
+    /**
+     * Moves the bodies out of the given entry values
+     *
+     * @return the bodies, to be stored in the entry_content table
+     */
+    private static ContentValues extractBodies(ContentValues values) {
+        ContentValues contentValues = new ContentValues();
+        for (String column : EntryContentColumns.BODY_COLUMNS) {
+            if (values.containsKey(column)) {
+                contentValues.put(column, values.getAsString(column));
+                values.remove(column);
+            }
+        }
+        return contentValues;
+    }
+
+    /**
+     * @return the ids of the selected entries whose title or bodies differ from the given ones, as a SQL list, or null if there
+     * is none
+     */
+    private static String getChangedIds(SQLiteDatabase database, String selection, String[] selectionArgs, ContentValues values,
+                                        ContentValues contentValues) {
+        String[] bodyColumns = contentValues.keySet().toArray(new String[contentValues.size()]);
+        String[] projection = new String[bodyColumns.length + 2];
+        projection[0] = EntryColumns._ID;
+        projection[1] = EntryColumns.TITLE;
+        System.arraycopy(bodyColumns, 0, projection, 2, bodyColumns.length);
+
+        boolean hasTitle = values.containsKey(EntryColumns.TITLE);
+        String title = values.getAsString(EntryColumns.TITLE);
+
+        StringBuilder ids = new StringBuilder("(");
+
+        Cursor cursor = database.query(FeedData.ENTRIES_TABLE_WITH_CONTENT, projection, selection, selectionArgs, null, null, null);
+        while (cursor.moveToNext()) {
+            boolean changed = hasTitle && !TextUtils.equals(title, cursor.getString(1));
+            for (int i = 0; !changed && i < bodyColumns.length; i++) {
+                changed = !TextUtils.equals(contentValues.getAsString(bodyColumns[i]), ContentCompression.getString(cursor, i + 2));
+            }
+
+            if (changed) {
+                if (ids.length() > 1) {
+                    ids.append(',');
+                }
+                ids.append(cursor.getLong(0));
+            }
+        }
+        cursor.close();
+
+        return ids.length() > 1 ? ids.append(')').toString() : null;
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        // All the operations are applied in one transaction, this is way faster than one implicit transaction per operation
+        SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
+        CHANGE_NOTIFIER.beginBatch();
+        database.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            return results;
+        } finally {
+            database.endTransaction();
+            CHANGE_NOTIFIER.endBatch(getContext().getContentResolver());
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
+        CHANGE_NOTIFIER.beginBatch();
+        database.beginTransaction();
+        try {
+            int count = super.bulkInsert(uri, values);
+            database.setTransactionSuccessful();
+            return count;
+        } finally {
+            database.endTransaction();
+            CHANGE_NOTIFIER.endBatch(getContext().getContentResolver());
+        }
+    }
+
+    /**
+     * Until the matching {@link #endNotificationSession()}, the changes done by the current thread and by the ones which called
+     * {@link #joinNotificationSessions()} are notified together, with a bounded delay. Used during the long background jobs (like
+     * a refresh) to not reload the UI after each write. The changes done by the other threads are notified immediately.
+     */
+    public static void beginNotificationSession() {
+        CHANGE_NOTIFIER.beginSession();
+    }
+
+    public static void endNotificationSession() {
+        CHANGE_NOTIFIER.endSession();
+    }
+
+    /**
+     * Makes the changes of the current thread part of the notification sessions, for the worker threads of the background jobs
+     */
+    public static void joinNotificationSessions() {
+        CHANGE_NOTIFIER.joinSessions();
+    }
+
+    /**
+     * Changes each time the filters are modified, which allows to cache them
+     */
+    public static int getFiltersGeneration() {
+        return sFiltersGeneration;
+    }
+
+    private static void onFiltersChanged(int matchCode) {
+        if (matchCode == URI_FILTERS || matchCode == URI_FILTERS_FOR_FEED) {
+            sFiltersGeneration++;
+        }
+    }
+
     private void notifyChangeOnAllUris(int matchCode, Uri uri) {
         ContentResolver cr = getContext().getContentResolver();
-        cr.notifyChange(uri, null);
+        CHANGE_NOTIFIER.notifyChange(cr, uri);
 
-        if (matchCode != URI_FILTERS && matchCode != URI_FILTERS_FOR_FEED && matchCode != URI_TASKS && matchCode != URI_TASK) {
+        if (matchCode != URI_FILTERS && matchCode != URI_FILTERS_FOR_FEED && matchCode != URI_TASKS && matchCode != URI_TASK
+                && matchCode != URI_IMAGES && matchCode != URI_IMAGES_FOR_ENTRY && matchCode != URI_PURGED_IMAGES) {
             // Notify everything else (except EntryColumns.CONTENT_URI to not update the
             // entry WebView when clicking on "favorite" button)
-            cr.notifyChange(FeedColumns.GROUPED_FEEDS_CONTENT_URI, null);
-            cr.notifyChange(EntryColumns.UNREAD_ENTRIES_CONTENT_URI, null);
-            cr.notifyChange(EntryColumns.FAVORITES_CONTENT_URI, null);
-            cr.notifyChange(FeedColumns.CONTENT_URI, null);
-            cr.notifyChange(FeedColumns.GROUPS_CONTENT_URI, null);
+            CHANGE_NOTIFIER.notifyChange(cr, FeedColumns.GROUPED_FEEDS_CONTENT_URI);
+            CHANGE_NOTIFIER.notifyChange(cr, EntryColumns.UNREAD_ENTRIES_CONTENT_URI);
+            CHANGE_NOTIFIER.notifyChange(cr, EntryColumns.FAVORITES_CONTENT_URI);
+            CHANGE_NOTIFIER.notifyChange(cr, FeedColumns.CONTENT_URI);
+            CHANGE_NOTIFIER.notifyChange(cr, FeedColumns.GROUPS_CONTENT_URI);
+            CHANGE_NOTIFIER.notifyChange(cr, CounterColumns.CONTENT_URI);
         }
     }
 }
@@ -0,0 +1,106 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.service;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import net.fred.feedex.Constants;
+import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.FeedColumns;
+import net.fred.feedex.utils.PrefUtils;
+
+import java.util.Arrays;
+
+/**
+ * Computes when each feed needs to be refreshed again, according to its own publication cadence
+ */
+public class FeedRefreshScheduler {
+
+    private static final int HISTORY_SIZE = 20;
+    private static final int MIN_HISTORY_SIZE = 3;
+    private static final long MAX_REFRESH_INTERVAL = 86400000L; // 1 day
+    private static final long MAX_ERROR_BACKOFF = 86400000L; // 1 day
+
+    private static final String[] PROJECTION_DATE = new String[]{EntryColumns.DATE};
+
+    /**
+     * The user refresh interval is the minimal interval, no feed will be refreshed more often than that
+     */
+    public static long getBaseInterval() {
+        try {
+            return Math.max(60000L, Long.parseLong(PrefUtils.getString(PrefUtils.REFRESH_INTERVAL, AutoRefreshService.SIXTY_MINUTES)));
+        } catch (Exception ignored) {
+            return Long.parseLong(AutoRefreshService.SIXTY_MINUTES);
+        }
+    }
+
+    /**
+     * Selects the feeds which will be due before the middle of the next refresh period, otherwise they would wait for a whole extra period
+     */
+    public static String getDueFeedsWhereClause(long now, long baseInterval) {
+        return FeedColumns.NEXT_REFRESH_DATE + Constants.DB_IS_NULL + Constants.DB_OR + FeedColumns.NEXT_REFRESH_DATE + "<=" + (now + baseInterval / 2);
+    }
+
+    public static long getNextRefreshDate(ContentResolver cr, String feedId, long now, long baseInterval) {
+        Cursor cursor = cr.query(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(feedId), PROJECTION_DATE, null, null,
+                EntryColumns.DATE + Constants.DB_DESC + " LIMIT " + HISTORY_SIZE);
+        long[] dates = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            dates[i] = cursor.getLong(0);
+        }
+        cursor.close();
+
+        return now + getRefreshInterval(dates, now, baseInterval);
+    }
+
+    /**
+     * Polls about twice per usual gap between two entries, and slows down if the feed has been quiet for a long time
+     *
+     * @param dates the most recent entry dates, from the newest to the oldest
+     */
+    public static long getRefreshInterval(long[] dates, long now, long baseInterval) {
+        if (dates.length < MIN_HISTORY_SIZE) {
+            return baseInterval;
+        }
+
+        long[] gaps = new long[dates.length - 1];
+        for (int i = 0; i < gaps.length; i++) {
+            gaps[i] = Math.max(0, dates[i] - dates[i + 1]);
+        }
+        Arrays.sort(gaps);
+        long medianGap = gaps[gaps.length / 2];
+
+        long interval = Math.max(medianGap / 2, (now - dates[0]) / 4);
+        return Math.min(Math.max(interval, baseInterval), Math.max(MAX_REFRESH_INTERVAL, baseInterval));
+    }
+
+    /**
+     * Retries quickly after a first error, then waits about as long as the feed has been failing
+     */
+    public static long getErrorRetryDate(long now, long lastSuccessDate, boolean wasInError, long baseInterval) {
+        long backoff = baseInterval;
+        if (wasInError && lastSuccessDate > 0) {
+            backoff = Math.min(Math.max(now - lastSuccessDate, baseInterval), Math.max(MAX_ERROR_BACKOFF, baseInterval));
+        }
+        return now + backoff;
+    }
+}
@@ -47,19 +47,23 @@ package net.fred.feedex.service;
 import android.app.IntentService;
 import android.app.Notification;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.text.Html;
 import android.text.TextUtils;
+import android.util.LongSparseArray;
 import android.util.Xml;
 import android.widget.Toast;
 
@@ -69,33 +73,54 @@ import net.fred.feedex.R;
 import net.fred.feedex.activity.HomeActivity;
 import net.fred.feedex.parser.RssAtomParser;
 import net.fred.feedex.provider.FeedData;
+import net.fred.feedex.provider.FeedData.CounterColumns;
 import net.fred.feedex.provider.FeedData.EntryColumns;
 import net.fred.feedex.provider.FeedData.FeedColumns;
+import net.fred.feedex.provider.FeedData.ImageColumns;
 import net.fred.feedex.provider.FeedData.TaskColumns;
+import net.fred.feedex.provider.FeedDataContentProvider;
 import net.fred.feedex.utils.ArticleTextExtractor;
+import net.fred.feedex.utils.BandwidthLimiter;
 import net.fred.feedex.utils.Dog;
-import net.fred.feedex.utils.HtmlUtils;
+import net.fred.feedex.utils.HtmlSanitizer;
+import net.fred.feedex.utils.ImageManifest;
 import net.fred.feedex.utils.NetworkUtils;
+import net.fred.feedex.utils.PerHostLimiter;
 import net.fred.feedex.utils.PrefUtils;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -105,9 +130,47 @@ public class FetcherService extends IntentService {
     public static final String ACTION_MOBILIZE_FEEDS = "net.fred.feedex.MOBILIZE_FEEDS";
     public static final String ACTION_DOWNLOAD_IMAGES = "net.fred.feedex.DOWNLOAD_IMAGES";
 
-    private static final int THREAD_NUMBER = 3;
     private static final int MAX_TASK_ATTEMPT = 3;
 
+    private static final int MIN_REFRESH_THREAD_NUMBER = 3;
+    private static final int MAX_REFRESH_THREAD_NUMBER = 12;
+    private static final int REFRESH_MAX_REQUESTS_PER_HOST = 2;
+    private static final long REFRESH_THREAD_KEEP_ALIVE = 60000;
+    // A feed whose server sends nothing during this delay (while connecting or downloading) is abandoned
+    private static final long FEED_INACTIVITY_TIMEOUT = 20000;
+    private static final long FEED_INACTIVITY_CHECK_INTERVAL = 1000;
+    private static final long REFRESH_PROGRESS_INTERVAL = 5000;
+
+    private static final int MOBILIZE_FETCH_THREAD_NUMBER = 6;
+    private static final int MOBILIZE_MAX_REQUESTS_PER_HOST = 2;
+    private static final int MOBILIZE_WRITE_CHUNK_SIZE = 40;
+
+    private static final int IMAGE_DOWNLOAD_THREAD_NUMBER = 6;
+    private static final int IMAGE_MAX_REQUESTS_PER_HOST = 2;
+    private static final long IMAGE_MAX_BYTES_PER_SECOND = 2 * 1024 * 1024;
+    private static final int IMAGE_WRITE_CHUNK_SIZE = 40;
+    private static final long CANCEL_CHECK_DELAY = 500;
+    private static final long IMAGES_PURGE_MAX_DURATION = 2000;
+    // Part of the images cache in which the images of the favorite entries are never evicted
+    private static final float IMAGES_CACHE_FAVORITES_RATIO = 0.5f;
+
+    // The threads of the background jobs, their changes are notified with the ones of the running job
+    private static final ThreadFactory LOW_PRIORITY_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    FeedDataContentProvider.joinNotificationSessions();
+                    r.run();
+                }
+            });
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    };
+
+    // 0 means the feed url still needs to be checked (it may be a web page), the charset itself is sniffed at each fetch
     private static final int FETCHMODE_DIRECT = 1;
     private static final int FETCHMODE_REENCODE = 2;
 
@@ -116,14 +179,32 @@ public class FetcherService extends IntentService {
     private static final String HREF = "href=\"";
 
     private static final String HTML_BODY = "<body";
-    private static final String ENCODING = "encoding=\"";
+    private static final String ENCODING = "encoding=";
+    private static final String ISO_8859_1 = "ISO-8859-1";
+    private static final String UTF16 = "UTF-16";
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    private static final int PROLOG_SIZE = 256;
+    // The feed links are at the top of the head, no need to buffer more of the page before parsing it as a feed
+    private static final int HTML_SNIFF_LIMIT = 8 * 1024;
 
     /* Allow different positions of the "rel" attribute w.r.t. the "href" attribute */
     private static final Pattern FEED_LINK_PATTERN = Pattern.compile(
             "[.]*<link[^>]* ((rel=alternate|rel=\"alternate\")[^>]* href=\"[^\"]*\"|href=\"[^\"]*\"[^>]* (rel=alternate|rel=\"alternate\"))[^>]*>",
             Pattern.CASE_INSENSITIVE);
 
+    private static final PerHostLimiter REFRESH_HOST_LIMITER = new PerHostLimiter(REFRESH_MAX_REQUESTS_PER_HOST);
+    private static ThreadPoolExecutor sRefreshExecutor;
+    private static final ScheduledThreadPoolExecutor REFRESH_WATCHDOG = new ScheduledThreadPoolExecutor(1);
+
+    static {
+        REFRESH_WATCHDOG.setKeepAliveTime(REFRESH_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+        REFRESH_WATCHDOG.allowCoreThreadTimeOut(true);
+        REFRESH_WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
     private final Handler mHandler;
+    private boolean mNewEntriesNotified;
 
     public FetcherService() {
         super(FetcherService.class.getSimpleName());
@@ -150,7 +231,18 @@ public class FetcherService extends IntentService {
                 values[i].put(TaskColumns.IMG_URL_TO_DL, images.get(i));
             }
 
-            MainApplication.getContext().getContentResolver().bulkInsert(TaskColumns.CONTENT_URI, values);
+            ContentResolver cr = MainApplication.getContext().getContentResolver();
+            cr.bulkInsert(TaskColumns.CONTENT_URI, values);
+
+            StringBuilder where = new StringBuilder(ImageColumns.STATE).append('=').append(ImageColumns.STATE_PENDING).append(Constants.DB_AND)
+                    .append(ImageColumns.URL).append(" IN (");
+            for (int i = 0; i < images.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+            }
+            ContentValues queuedValues = new ContentValues();
+            queuedValues.put(ImageColumns.STATE, ImageColumns.STATE_QUEUED);
+            cr.update(ImageColumns.IMAGES_FOR_ENTRY_CONTENT_URI(entryId), queuedValues, where.append(')').toString(),
+                    images.toArray(new String[images.size()]));
         }
     }
 
@@ -195,180 +287,270 @@ public class FetcherService extends IntentService {
             return;
         }
 
-        if (ACTION_MOBILIZE_FEEDS.equals(intent.getAction())) {
-            mobilizeAllEntries();
-            downloadAllImages();
-        } else if (ACTION_DOWNLOAD_IMAGES.equals(intent.getAction())) {
-            downloadAllImages();
-        } else { // == Constants.ACTION_REFRESH_FEEDS
-            PrefUtils.putBoolean(PrefUtils.IS_REFRESHING, true);
+        // The UI is reloaded from time to time during the work, not after each write
+        FeedDataContentProvider.beginNotificationSession();
+        try {
+            if (ACTION_MOBILIZE_FEEDS.equals(intent.getAction())) {
+                mobilizeAllEntries();
+                downloadAllImages();
+            } else if (ACTION_DOWNLOAD_IMAGES.equals(intent.getAction())) {
+                downloadAllImages();
+            } else { // == Constants.ACTION_REFRESH_FEEDS
+                PrefUtils.putBoolean(PrefUtils.IS_REFRESHING, true);
 
-            long keepTime = Long.parseLong(PrefUtils.getString(PrefUtils.KEEP_TIME, "4")) * 86400000l;
-            long keepDateBorderTime = keepTime > 0 ? System.currentTimeMillis() - keepTime : 0;
+                long keepTime = Long.parseLong(PrefUtils.getString(PrefUtils.KEEP_TIME, "4")) * 86400000l;
+                long keepDateBorderTime = keepTime > 0 ? System.currentTimeMillis() - keepTime : 0;
 
-            deleteOldEntries(keepDateBorderTime);
+                deleteOldEntries(keepDateBorderTime);
+                mNewEntriesNotified = false;
 
-            String feedId = intent.getStringExtra(Constants.FEED_ID);
-            int newCount = (feedId == null ? refreshFeeds(keepDateBorderTime) : refreshFeed(feedId, keepDateBorderTime));
+                String feedId = intent.getStringExtra(Constants.FEED_ID);
+                int newCount = (feedId == null ? refreshFeeds(keepDateBorderTime, isFromAutoRefresh) : refreshFeed(feedId, keepDateBorderTime));
 
-            if (newCount > 0) {
-                if (PrefUtils.getBoolean(PrefUtils.NOTIFICATIONS_ENABLED, true)) {
-                    Cursor cursor = getContentResolver().query(EntryColumns.CONTENT_URI, new String[]{Constants.DB_COUNT}, EntryColumns.WHERE_UNREAD, null, null);
-
-                    cursor.moveToFirst();
-                    newCount = cursor.getInt(0); // The number has possibly changed
-                    cursor.close();
-
-                    if (newCount > 0) {
-                        String text = getResources().getQuantityString(R.plurals.number_of_new_entries, newCount, newCount);
-
-                        Intent notificationIntent = new Intent(FetcherService.this, HomeActivity.class);
-                        PendingIntent contentIntent = PendingIntent.getActivity(FetcherService.this, 0, notificationIntent,
-                                PendingIntent.FLAG_UPDATE_CURRENT);
-
-                        Notification.Builder notifBuilder = new Notification.Builder(MainApplication.getContext()) //
-                                .setContentIntent(contentIntent) //
-                                .setSmallIcon(R.drawable.ic_statusbar_rss) //
-                                .setLargeIcon(BitmapFactory.decodeResource(getResources(), R.mipmap.ic_launcher)) //
-                                .setTicker(text) //
-                                .setWhen(System.currentTimeMillis()) //
-                                .setAutoCancel(true) //
-                                .setContentTitle(getString(R.string.flym_feeds)) //
-                                .setContentText(text) //
-                                .setLights(0xffffffff, 0, 0);
-
-                        if (PrefUtils.getBoolean(PrefUtils.NOTIFICATIONS_VIBRATE, false)) {
-                            notifBuilder.setVibrate(new long[]{0, 1000});
-                        }
+                if (newCount > 0) {
+                    showNewEntriesNotification(mNewEntriesNotified);
+                }
 
-                        String ringtone = PrefUtils.getString(PrefUtils.NOTIFICATIONS_RINGTONE, null);
-                        if (ringtone != null && ringtone.length() > 0) {
-                            notifBuilder.setSound(Uri.parse(ringtone));
-                        }
+                mobilizeAllEntries();
+                downloadAllImages();
 
-                        if (PrefUtils.getBoolean(PrefUtils.NOTIFICATIONS_LIGHT, false)) {
-                            notifBuilder.setLights(0xffffffff, 300, 1000);
-                        }
+                PrefUtils.putBoolean(PrefUtils.IS_REFRESHING, false);
+            }
+        } finally {
+            FeedDataContentProvider.endNotificationSession();
+        }
+    }
 
-                        if (Constants.NOTIF_MGR != null) {
-                            Constants.NOTIF_MGR.notify(0, notifBuilder.getNotification());
-                        }
-                    }
-                } else if (Constants.NOTIF_MGR != null) {
-                    Constants.NOTIF_MGR.cancel(0);
+    /**
+     * The notification can be updated several times during a refresh, the user is only alerted the first time
+     */
+    private void showNewEntriesNotification(boolean onlyAlertOnce) {
+        if (PrefUtils.getBoolean(PrefUtils.NOTIFICATIONS_ENABLED, true)) {
+            Cursor cursor = getContentResolver().query(CounterColumns.CONTENT_URI, new String[]{CounterColumns.ALL_UNREAD_NUMBER}, null, null, null);
+
+            cursor.moveToFirst();
+            int newCount = cursor.getInt(0); // The number has possibly changed
+            cursor.close();
+
+            if (newCount > 0) {
+                String text = getResources().getQuantityString(R.plurals.number_of_new_entries, newCount, newCount);
+
+                Intent notificationIntent = new Intent(FetcherService.this, HomeActivity.class);
+                PendingIntent contentIntent = PendingIntent.getActivity(FetcherService.this, 0, notificationIntent,
+                        PendingIntent.FLAG_UPDATE_CURRENT);
+
+                Notification.Builder notifBuilder = new Notification.Builder(MainApplication.getContext()) //
+                        .setContentIntent(contentIntent) //
+                        .setSmallIcon(R.drawable.ic_statusbar_rss) //
+                        .setLargeIcon(BitmapFactory.decodeResource(getResources(), R.mipmap.ic_launcher)) //
+                        .setTicker(text) //
+                        .setWhen(System.currentTimeMillis()) //
+                        .setAutoCancel(true) //
+                        .setOnlyAlertOnce(onlyAlertOnce) //
+                        .setContentTitle(getString(R.string.flym_feeds)) //
+                        .setContentText(text) //
+                        .setLights(0xffffffff, 0, 0);
+
+                if (PrefUtils.getBoolean(PrefUtils.NOTIFICATIONS_VIBRATE, false)) {
+                    notifBuilder.setVibrate(new long[]{0, 1000});
+                }
+
+                String ringtone = PrefUtils.getString(PrefUtils.NOTIFICATIONS_RINGTONE, null);
+                if (ringtone != null && ringtone.length() > 0) {
+                    notifBuilder.setSound(Uri.parse(ringtone));
                 }
-            }
 
-            mobilizeAllEntries();
-            downloadAllImages();
+                if (PrefUtils.getBoolean(PrefUtils.NOTIFICATIONS_LIGHT, false)) {
+                    notifBuilder.setLights(0xffffffff, 300, 1000);
+                }
 
-            PrefUtils.putBoolean(PrefUtils.IS_REFRESHING, false);
+                if (Constants.NOTIF_MGR != null) {
+                    Constants.NOTIF_MGR.notify(0, notifBuilder.getNotification());
+                    mNewEntriesNotified = true;
+                }
+            }
+        } else if (Constants.NOTIF_MGR != null) {
+            Constants.NOTIF_MGR.cancel(0);
         }
     }
 
     private void mobilizeAllEntries() {
         ContentResolver cr = getContentResolver();
-        Cursor cursor = cr.query(TaskColumns.CONTENT_URI, new String[]{TaskColumns._ID, TaskColumns.ENTRY_ID, TaskColumns.NUMBER_ATTEMPT},
-                TaskColumns.IMG_URL_TO_DL + Constants.DB_IS_NULL, null, null);
 
+        // Load all the tasks and their entries at once
+        LongSparseArray<MobilizeTask> tasksByEntry = new LongSparseArray<>();
         ArrayList<ContentProviderOperation> operations = new ArrayList<>();
 
+        Cursor cursor = cr.query(TaskColumns.CONTENT_URI, new String[]{TaskColumns._ID, TaskColumns.ENTRY_ID, TaskColumns.NUMBER_ATTEMPT},
+                TaskColumns.IMG_URL_TO_DL + Constants.DB_IS_NULL, null, null);
         while (cursor.moveToNext()) {
             long taskId = cursor.getLong(0);
             long entryId = cursor.getLong(1);
-            int nbAttempt = 0;
-            if (!cursor.isNull(2)) {
-                nbAttempt = cursor.getInt(2);
+
+            if (tasksByEntry.get(entryId) != null) { // Duplicated task
+                operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(taskId)).build());
+            } else {
+                MobilizeTask task = new MobilizeTask();
+                task.taskId = taskId;
+                task.entryId = entryId;
+                task.nbAttempt = cursor.isNull(2) ? 0 : cursor.getInt(2);
+                tasksByEntry.put(entryId, task);
             }
+        }
+        cursor.close();
+
+        if (tasksByEntry.size() == 0) {
+            applyOperations(operations);
+            return;
+        }
 
-            boolean success = false;
+        ArrayList<MobilizeTask> tasksToFetch = new ArrayList<>();
+        Cursor entriesCursor = cr.query(EntryColumns.CONTENTS_CONTENT_URI, new String[]{EntryColumns._ID, EntryColumns.LINK, EntryColumns.ABSTRACT,
+                        EntryColumns.MOBILIZED_HTML + Constants.DB_IS_NULL}, EntryColumns._ID + " IN (SELECT " + TaskColumns.ENTRY_ID + " FROM " +
+                        TaskColumns.TABLE_NAME + " WHERE " + TaskColumns.IMG_URL_TO_DL + Constants.DB_IS_NULL + ')', null, null);
+        while (entriesCursor.moveToNext()) {
+            MobilizeTask task = tasksByEntry.get(entriesCursor.getLong(0));
+            if (task != null) {
+                task.entryFound = true;
+                if (entriesCursor.getInt(3) == 1) { // If we didn't already mobilized it
+                    task.link = entriesCursor.getString(1);
+                    task.abstractHtml = entriesCursor.getString(2);
+                    tasksToFetch.add(task);
+                } else { // We already mobilized it
+                    operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(task.taskId)).build());
+                }
+            }
+        }
+        entriesCursor.close();
 
-            Uri entryUri = EntryColumns.CONTENT_URI(entryId);
-            Cursor entryCursor = cr.query(entryUri, null, null, null, null);
+        for (int i = 0; i < tasksByEntry.size(); i++) {
+            MobilizeTask task = tasksByEntry.valueAt(i);
+            if (!task.entryFound) { // The entry has been deleted meanwhile
+                operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(task.taskId)).build());
+            }
+        }
 
-            if (entryCursor.moveToFirst()) {
-                if (entryCursor.isNull(entryCursor.getColumnIndex(EntryColumns.MOBILIZED_HTML))) { // If we didn't already mobilized it
-                    int linkPos = entryCursor.getColumnIndex(EntryColumns.LINK);
-                    int abstractHtmlPos = entryCursor.getColumnIndex(EntryColumns.ABSTRACT);
-                    HttpURLConnection connection = null;
+        // The network fetches and the content extractions are done in parallel, the database writes are done here by chunks
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(MOBILIZE_FETCH_THREAD_NUMBER, LOW_PRIORITY_THREAD_FACTORY);
+        ExecutorService extractExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), LOW_PRIORITY_THREAD_FACTORY);
+        final CompletionService<MobilizeTask> completionService = new ExecutorCompletionService<>(extractExecutor);
+        final PerHostLimiter hostLimiter = new PerHostLimiter(MOBILIZE_MAX_REQUESTS_PER_HOST);
 
+        for (final MobilizeTask task : tasksToFetch) {
+            fetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        String link = entryCursor.getString(linkPos);
-
-                        // Try to find a text indicator for better content extraction
-                        String contentIndicator = null;
-                        String text = entryCursor.getString(abstractHtmlPos);
-                        if (!TextUtils.isEmpty(text)) {
-                            text = Html.fromHtml(text).toString();
-                            if (text.length() > 60) {
-                                contentIndicator = text.substring(20, 40);
+                        task.page = fetchPage(task.link, hostLimiter);
+                    } finally {
+                        completionService.submit(new Callable<MobilizeTask>() {
+                            @Override
+                            public MobilizeTask call() {
+                                extractContent(task);
+                                return task;
                             }
-                        }
+                        });
+                    }
+                }
+            });
+        }
 
-                        connection = NetworkUtils.setupConnection(link);
+        boolean downloadPictures = NetworkUtils.needDownloadPictures();
+        try {
+            for (int i = 0; i < tasksToFetch.size(); i++) {
+                MobilizeTask task = completionService.take().get();
 
-                        String mobilizedHtml = ArticleTextExtractor.extractContent(connection.getInputStream(), contentIndicator);
+                if (task.mobilizedHtml != null) {
+                    ContentValues values = new ContentValues();
+                    values.put(EntryColumns.MOBILIZED_HTML, task.mobilizedHtml);
+                    if (task.mainImgUrl != null) {
+                        values.put(EntryColumns.IMAGE_URL, task.mainImgUrl);
+                    }
 
-                        if (mobilizedHtml != null) {
-                            mobilizedHtml = HtmlUtils.improveHtmlContent(mobilizedHtml, NetworkUtils.getBaseUrl(link));
-                            ContentValues values = new ContentValues();
-                            values.put(EntryColumns.MOBILIZED_HTML, mobilizedHtml);
+                    operations.add(ContentProviderOperation.newUpdate(EntryColumns.CONTENT_URI(task.entryId)).withValues(values).build());
+                    operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(task.taskId)).build());
+                    ImageManifest.addEntryImages(operations, task.entryId, task.imgUrls, downloadPictures);
+                } else if (task.nbAttempt + 1 > MAX_TASK_ATTEMPT) {
+                    operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(task.taskId)).build());
+                } else {
+                    ContentValues values = new ContentValues();
+                    values.put(TaskColumns.NUMBER_ATTEMPT, task.nbAttempt + 1);
+                    operations.add(ContentProviderOperation.newUpdate(TaskColumns.CONTENT_URI(task.taskId)).withValues(values).build());
+                }
 
-                            ArrayList<String> imgUrlsToDownload = null;
-                            if (NetworkUtils.needDownloadPictures()) {
-                                imgUrlsToDownload = HtmlUtils.getImageURLs(mobilizedHtml);
-                            }
+                if (operations.size() >= MOBILIZE_WRITE_CHUNK_SIZE) {
+                    applyOperations(operations);
+                }
+            }
+        } catch (Exception e) {
+            Dog.e("Mobilize error", e);
+        } finally {
+            fetchExecutor.shutdownNow();
+            extractExecutor.shutdownNow();
+        }
 
-                            String mainImgUrl;
-                            if (imgUrlsToDownload != null) {
-                                mainImgUrl = HtmlUtils.getMainImageURL(imgUrlsToDownload);
-                            } else {
-                                mainImgUrl = HtmlUtils.getMainImageURL(mobilizedHtml);
-                            }
+        applyOperations(operations);
+    }
 
-                            if (mainImgUrl != null) {
-                                values.put(EntryColumns.IMAGE_URL, mainImgUrl);
-                            }
+    private static byte[] fetchPage(String link, PerHostLimiter hostLimiter) {
+        HttpURLConnection connection = null;
+        try {
+            hostLimiter.acquire(link);
+            try {
+                connection = NetworkUtils.setupConnection(link);
+                return NetworkUtils.getBytes(connection.getInputStream());
+            } finally {
+                hostLimiter.release(link);
+            }
+        } catch (Throwable e) {
+            Dog.e("Mobilize error", e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        return null;
+    }
 
-                            operations.add(ContentProviderOperation.newUpdate(entryUri).withValues(values).build());
-                            success = true;
-                            operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(taskId)).build());
-                            if (imgUrlsToDownload != null && !imgUrlsToDownload.isEmpty()) {
-                                addImagesToDownload(String.valueOf(entryId), imgUrlsToDownload);
-                            }
-                        }
-                    } catch (Throwable e) {
-                        Dog.e("Mobilize error", e);
-                    } finally {
-                        if (connection != null) {
-                            connection.disconnect();
-                        }
-                    }
-                } else { // We already mobilized it
-                    success = true;
-                    operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(taskId)).build());
+    private static void extractContent(MobilizeTask task) {
+        if (task.page == null) {
+            return;
+        }
+
+        try {
+            // Try to find a text indicator for better content extraction
+            String contentIndicator = null;
+            String text = task.abstractHtml;
+            if (!TextUtils.isEmpty(text)) {
+                text = Html.fromHtml(text).toString();
+                if (text.length() > 60) {
+                    contentIndicator = text.substring(20, 40);
                 }
             }
-            entryCursor.close();
 
-            if (!success) {
-                if (nbAttempt + 1 > MAX_TASK_ATTEMPT) {
-                    operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(taskId)).build());
-                } else {
-                    ContentValues values = new ContentValues();
-                    values.put(TaskColumns.NUMBER_ATTEMPT, nbAttempt + 1);
-                    operations.add(ContentProviderOperation.newUpdate(TaskColumns.CONTENT_URI(taskId)).withValues(values).build());
-                }
+            String mobilizedHtml = ArticleTextExtractor.extractContent(new ByteArrayInputStream(task.page), contentIndicator);
+
+            if (mobilizedHtml != null) {
+                HtmlSanitizer sanitizer = HtmlSanitizer.sanitize(mobilizedHtml, NetworkUtils.getBaseUrl(task.link));
+
+                task.imgUrls = sanitizer.getImageUrls();
+                task.mainImgUrl = sanitizer.getMainImageUrl();
+                task.mobilizedHtml = sanitizer.getHtml();
             }
+        } catch (Throwable e) {
+            Dog.e("Mobilize error", e);
+        } finally {
+            task.page = null; // not needed anymore
         }
+    }
 
-        cursor.close();
-
+    private void applyOperations(ArrayList<ContentProviderOperation> operations) {
         if (!operations.isEmpty()) {
             try {
-                cr.applyBatch(FeedData.AUTHORITY, operations);
+                getContentResolver().applyBatch(FeedData.AUTHORITY, operations);
             } catch (Throwable ignored) {
             }
+            operations.clear();
         }
     }
 
@@ -377,98 +559,231 @@ public class FetcherService extends IntentService {
         Cursor cursor = cr.query(TaskColumns.CONTENT_URI, new String[]{TaskColumns._ID, TaskColumns.ENTRY_ID, TaskColumns.IMG_URL_TO_DL,
                 TaskColumns.NUMBER_ATTEMPT}, TaskColumns.IMG_URL_TO_DL + Constants.DB_IS_NOT_NULL, null, null);
 
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
-
+        ArrayList<ImageTask> tasks = new ArrayList<>();
         while (cursor.moveToNext()) {
-            long taskId = cursor.getLong(0);
-            long entryId = cursor.getLong(1);
-            String imgPath = cursor.getString(2);
-            int nbAttempt = 0;
-            if (!cursor.isNull(3)) {
-                nbAttempt = cursor.getInt(3);
-            }
+            ImageTask task = new ImageTask();
+            task.taskId = cursor.getLong(0);
+            task.entryId = cursor.getLong(1);
+            task.imgUrl = cursor.getString(2);
+            task.nbAttempt = cursor.isNull(3) ? 0 : cursor.getInt(3);
+            tasks.add(task);
+        }
+        cursor.close();
 
-            try {
-                NetworkUtils.downloadImage(entryId, imgPath);
+        if (tasks.isEmpty()) {
+            return;
+        }
 
-                // If we are here, everything is OK
-                operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(taskId)).build());
-            } catch (Exception e) {
-                if (nbAttempt + 1 > MAX_TASK_ATTEMPT) {
-                    operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(taskId)).build());
-                } else {
-                    ContentValues values = new ContentValues();
-                    values.put(TaskColumns.NUMBER_ATTEMPT, nbAttempt + 1);
-                    operations.add(ContentProviderOperation.newUpdate(TaskColumns.CONTENT_URI(taskId)).withValues(values).build());
+        final ExecutorService executor = Executors.newFixedThreadPool(IMAGE_DOWNLOAD_THREAD_NUMBER, LOW_PRIORITY_THREAD_FACTORY);
+        CompletionService<ImageTask> completionService = new ExecutorCompletionService<>(executor);
+        final PerHostLimiter hostLimiter = new PerHostLimiter(IMAGE_MAX_REQUESTS_PER_HOST);
+        final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(IMAGE_MAX_BYTES_PER_SECOND);
+
+        // Stop everything as soon as we lose the connectivity, the remaining tasks will be done next time
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                    cancelled.set(true);
+                    executor.shutdownNow();
                 }
             }
+        };
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        for (final ImageTask task : tasks) {
+            completionService.submit(new Callable<ImageTask>() {
+                @Override
+                public ImageTask call() {
+                    try {
+                        hostLimiter.acquire(task.imgUrl);
+                        try {
+                            NetworkUtils.downloadImage(task.entryId, task.imgUrl, bandwidthLimiter);
+                            task.success = true;
+
+                            BitmapFactory.Options options = new BitmapFactory.Options();
+                            options.inJustDecodeBounds = true;
+                            String path = NetworkUtils.getDownloadedImagePath(task.entryId, task.imgUrl);
+                            BitmapFactory.decodeFile(path, options);
+                            task.width = options.outWidth;
+                            task.height = options.outHeight;
+                            task.size = new File(path).length();
+                        } finally {
+                            hostLimiter.release(task.imgUrl);
+                        }
+                    } catch (Exception ignored) {
+                    }
+                    return task;
+                }
+            });
         }
 
-        cursor.close();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        try {
+            int nbDone = 0;
+            while (nbDone < tasks.size() && !cancelled.get()) {
+                Future<ImageTask> future = completionService.poll(CANCEL_CHECK_DELAY, TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    continue;
+                }
+                nbDone++;
+
+                ImageTask task = future.get();
+                if (task.success) {
+                    operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(task.taskId)).build());
+                    operations.add(ImageManifest.newStateUpdate(task.entryId, task.imgUrl, ImageColumns.STATE_DOWNLOADED, task.width, task.height,
+                            task.size));
+                } else if (task.nbAttempt + 1 > MAX_TASK_ATTEMPT) {
+                    // The image will be asked again if the entry is displayed later
+                    operations.add(ContentProviderOperation.newDelete(TaskColumns.CONTENT_URI(task.taskId)).build());
+                    operations.add(ImageManifest.newStateUpdate(task.entryId, task.imgUrl, ImageColumns.STATE_PENDING));
+                } else if (!cancelled.get()) { // An interrupted download is not a failed attempt
+                    ContentValues values = new ContentValues();
+                    values.put(TaskColumns.NUMBER_ATTEMPT, task.nbAttempt + 1);
+                    operations.add(ContentProviderOperation.newUpdate(TaskColumns.CONTENT_URI(task.taskId)).withValues(values).build());
+                }
 
-        if (!operations.isEmpty()) {
-            try {
-                cr.applyBatch(FeedData.AUTHORITY, operations);
-            } catch (Throwable ignored) {
+                if (operations.size() >= IMAGE_WRITE_CHUNK_SIZE) {
+                    applyOperations(operations);
+                }
             }
+        } catch (Exception e) {
+            Dog.e("Image download error", e);
+        } finally {
+            unregisterReceiver(connectivityReceiver);
+            executor.shutdownNow();
         }
+
+        applyOperations(operations);
+        trimImagesCache();
     }
 
     private void deleteOldEntries(long keepDateBorderTime) {
         if (keepDateBorderTime > 0) {
             String where = EntryColumns.DATE + '<' + keepDateBorderTime + Constants.DB_AND + EntryColumns.WHERE_NOT_FAVORITE;
-            // Delete the entries
+            // Delete the entries (their images are queued for deletion by the database)
             MainApplication.getContext().getContentResolver().delete(EntryColumns.CONTENT_URI, where, null);
-            // Delete the cache files
-            NetworkUtils.deleteEntriesImagesCache(keepDateBorderTime);
         }
+
+        // Delete the cache files
+        if (!PrefUtils.getBoolean(PrefUtils.IMAGES_CACHE_INDEXED, false)) {
+            NetworkUtils.deleteOrphanImages();
+            PrefUtils.putBoolean(PrefUtils.IMAGES_CACHE_INDEXED, true);
+        }
+        ImageManifest.deletePurgedImages(IMAGES_PURGE_MAX_DURATION);
+        trimImagesCache();
+    }
+
+    private void trimImagesCache() {
+        long maxSize = Long.parseLong(PrefUtils.getString(PrefUtils.IMAGES_CACHE_SIZE, "200")) * 1024 * 1024;
+        ImageManifest.trimCache(maxSize, (long) (maxSize * IMAGES_CACHE_FAVORITES_RATIO));
     }
 
-    private int refreshFeeds(final long keepDateBorderTime) {
+    private int refreshFeeds(final long keepDateBorderTime, boolean onlyDueFeeds) {
         ContentResolver cr = getContentResolver();
-        final Cursor cursor = cr.query(FeedColumns.CONTENT_URI, FeedColumns.PROJECTION_ID, null, null, null);
-        int nbFeed = cursor.getCount();
+        // An automatic refresh only fetches the feeds which are due, a manual one fetches everything
+        String where = onlyDueFeeds ? FeedRefreshScheduler.getDueFeedsWhereClause(System.currentTimeMillis(), FeedRefreshScheduler.getBaseInterval()) : null;
+        Cursor cursor = cr.query(FeedColumns.CONTENT_URI, new String[]{FeedColumns._ID, FeedColumns.URL}, where, null, null);
 
-        ExecutorService executor = Executors.newFixedThreadPool(THREAD_NUMBER, new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r);
-                t.setPriority(Thread.MIN_PRIORITY);
-                return t;
+        // Interleave the hosts, so that the workers don't all wait for the same busy host while others are idle
+        LinkedHashMap<String, ArrayDeque<String[]>> feedsByHost = new LinkedHashMap<>();
+        while (cursor.moveToNext()) {
+            String url = cursor.getString(1);
+            String host = PerHostLimiter.getHost(url);
+            ArrayDeque<String[]> hostFeeds = feedsByHost.get(host);
+            if (hostFeeds == null) {
+                hostFeeds = new ArrayDeque<>();
+                feedsByHost.put(host, hostFeeds);
             }
-        });
+            hostFeeds.add(new String[]{cursor.getString(0), url});
+        }
+        cursor.close();
 
+        ThreadPoolExecutor executor = getRefreshExecutor();
         CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
-        while (cursor.moveToNext()) {
-            final String feedId = cursor.getString(0);
-            completionService.submit(new Callable<Integer>() {
-                @Override
-                public Integer call() {
-                    int result = 0;
-                    try {
-                        result = refreshFeed(feedId, keepDateBorderTime);
-                    } catch (Exception ignored) {
-                    }
-                    return result;
+        ArrayList<Future<Integer>> futures = new ArrayList<>();
+
+        while (!feedsByHost.isEmpty()) {
+            Iterator<ArrayDeque<String[]>> iterator = feedsByHost.values().iterator();
+            while (iterator.hasNext()) {
+                ArrayDeque<String[]> hostFeeds = iterator.next();
+                String[] feed = hostFeeds.poll();
+                final String feedId = feed[0];
+                final String feedUrl = feed[1];
+                if (hostFeeds.isEmpty()) {
+                    iterator.remove();
                 }
-            });
+
+                futures.add(completionService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int result = 0;
+                        try {
+                            REFRESH_HOST_LIMITER.acquire(feedUrl);
+                            try {
+                                result = refreshFeed(feedId, keepDateBorderTime);
+                            } finally {
+                                REFRESH_HOST_LIMITER.release(feedUrl);
+                            }
+                        } catch (Exception ignored) {
+                        }
+                        return result;
+                    }
+                }));
+            }
         }
-        cursor.close();
 
         int globalResult = 0;
-        for (int i = 0; i < nbFeed; i++) {
-            try {
-                Future<Integer> f = completionService.take();
-                globalResult += f.get();
-            } catch (Exception ignored) {
+        int notifiedResult = 0;
+        long lastProgressTime = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                globalResult += completionService.take().get();
+
+                // Don't wait for the slowest feeds to tell about the new entries
+                long now = System.currentTimeMillis();
+                if (globalResult > notifiedResult && now - lastProgressTime > REFRESH_PROGRESS_INTERVAL) {
+                    showNewEntriesNotification(mNewEntriesNotified);
+                    notifiedResult = globalResult;
+                    lastProgressTime = now;
+                }
+            }
+        } catch (Exception ignored) {
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
             }
         }
 
-        executor.shutdownNow(); // To purge all threads
-
         return globalResult;
     }
 
+    /**
+     * The executor is kept between the refreshes, its idle threads are released after a while
+     */
+    private static synchronized ThreadPoolExecutor getRefreshExecutor() {
+        ConnectivityManager cm = (ConnectivityManager) MainApplication.getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm.getActiveNetworkInfo();
+        boolean isMetered = ni == null || ni.getType() != ConnectivityManager.TYPE_WIFI;
+
+        int threadNumber = Runtime.getRuntime().availableProcessors() * (isMetered ? 1 : 2);
+        threadNumber = Math.max(MIN_REFRESH_THREAD_NUMBER, Math.min(threadNumber, MAX_REFRESH_THREAD_NUMBER));
+
+        if (sRefreshExecutor == null) {
+            sRefreshExecutor = new ThreadPoolExecutor(threadNumber, threadNumber, REFRESH_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), LOW_PRIORITY_THREAD_FACTORY);
+            sRefreshExecutor.allowCoreThreadTimeOut(true);
+        } else if (threadNumber > sRefreshExecutor.getMaximumPoolSize()) {
+            sRefreshExecutor.setMaximumPoolSize(threadNumber);
+            sRefreshExecutor.setCorePoolSize(threadNumber);
+        } else {
+            sRefreshExecutor.setCorePoolSize(threadNumber);
+            sRefreshExecutor.setMaximumPoolSize(threadNumber);
+        }
+
+        return sRefreshExecutor;
+    }
+
     private int refreshFeed(String feedId, long keepDateBorderTime) {
         RssAtomParser handler = null;
 
@@ -481,186 +796,103 @@ public class FetcherService extends IntentService {
             int titlePosition = cursor.getColumnIndex(FeedColumns.NAME);
             int fetchModePosition = cursor.getColumnIndex(FeedColumns.FETCH_MODE);
             int realLastUpdatePosition = cursor.getColumnIndex(FeedColumns.REAL_LAST_UPDATE);
-            int iconPosition = cursor.getColumnIndex(FeedColumns.ICON);
+            int iconVersionPosition = cursor.getColumnIndex(FeedColumns.ICON_VERSION);
             int retrieveFullscreenPosition = cursor.getColumnIndex(FeedColumns.RETRIEVE_FULLTEXT);
+            int etagPosition = cursor.getColumnIndex(FeedColumns.ETAG);
+            int lastModifiedPosition = cursor.getColumnIndex(FeedColumns.LAST_MODIFIED);
+            int lastUpdatePosition = cursor.getColumnIndex(FeedColumns.LAST_UPDATE);
+            int errorPosition = cursor.getColumnIndex(FeedColumns.ERROR);
 
             String id = cursor.getString(idPosition);
             HttpURLConnection connection = null;
+            boolean failed = false;
+
+            // A hung server must not hold a refresh slot, closing its connection makes the blocked connect or read fail. A slow
+            // download is kept as long as it progresses.
+            final AtomicReference<HttpURLConnection> currentConnection = new AtomicReference<>();
+            final AtomicLong lastActivityTime = new AtomicLong(SystemClock.elapsedRealtime());
+            ScheduledFuture<?> watchdog = REFRESH_WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    HttpURLConnection hungConnection = currentConnection.get();
+                    if (hungConnection != null && SystemClock.elapsedRealtime() - lastActivityTime.get() > FEED_INACTIVITY_TIMEOUT) {
+                        hungConnection.disconnect();
+                    }
+                }
+            }, FEED_INACTIVITY_CHECK_INTERVAL, FEED_INACTIVITY_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
 
             try {
                 String feedUrl = cursor.getString(urlPosition);
-                connection = NetworkUtils.setupConnection(feedUrl);
-                String contentType = connection.getContentType();
                 int fetchMode = cursor.getInt(fetchModePosition);
 
-                handler = new RssAtomParser(new Date(cursor.getLong(realLastUpdatePosition)), keepDateBorderTime, id, cursor.getString(titlePosition), feedUrl,
-                        cursor.getInt(retrieveFullscreenPosition) == 1);
-                handler.setFetchImages(NetworkUtils.needDownloadPictures());
-
-                if (fetchMode == 0) {
-                    if (contentType != null && contentType.startsWith(CONTENT_TYPE_TEXT_HTML)) {
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-
-                        String line;
-                        int posStart = -1;
-
-                        while ((line = reader.readLine()) != null) {
-                            if (line.contains(HTML_BODY)) {
-                                break;
-                            } else {
-                                Matcher matcher = FEED_LINK_PATTERN.matcher(line);
-
-                                if (matcher.find()) { // not "while" as only one link is needed
-                                    line = matcher.group();
-                                    posStart = line.indexOf(HREF);
-
-                                    if (posStart > -1) {
-                                        String url = line.substring(posStart + 6, line.indexOf('"', posStart + 10)).replace(Constants.AMP_SG,
-                                                Constants.AMP);
-
-                                        ContentValues values = new ContentValues();
-
-                                        if (url.startsWith(Constants.SLASH)) {
-                                            int index = feedUrl.indexOf('/', 8);
-
-                                            if (index > -1) {
-                                                url = feedUrl.substring(0, index) + url;
-                                            } else {
-                                                url = feedUrl + url;
-                                            }
-                                        } else if (!url.startsWith(Constants.HTTP_SCHEME) && !url.startsWith(Constants.HTTPS_SCHEME)) {
-                                            url = feedUrl + '/' + url;
-                                        }
-                                        values.put(FeedColumns.URL, url);
-                                        cr.update(FeedColumns.CONTENT_URI(id), values, null, null);
-                                        connection.disconnect();
-                                        connection = NetworkUtils.setupConnection(url);
-                                        contentType = connection.getContentType();
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                        // this indicates a badly configured feed
-                        if (posStart == -1) {
-                            connection.disconnect();
-                            connection = NetworkUtils.setupConnection(feedUrl);
-                            contentType = connection.getContentType();
-                        }
-                    }
-
-                    if (contentType != null) {
-                        int index = contentType.indexOf(CHARSET);
-
-                        if (index > -1) {
-                            int index2 = contentType.indexOf(';', index);
-
-                            try {
-                                Xml.findEncodingByName(index2 > -1 ? contentType.substring(index + 8, index2) : contentType.substring(index + 8));
-                                fetchMode = FETCHMODE_DIRECT;
-                            } catch (UnsupportedEncodingException ignored) {
-                                fetchMode = FETCHMODE_REENCODE;
-                            }
-                        } else {
-                            fetchMode = FETCHMODE_REENCODE;
-                        }
-
-                    } else {
-                        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-
-                        char[] chars = new char[20];
-
-                        int length = bufferedReader.read(chars);
-
-                        String xmlDescription = new String(chars, 0, length);
-
-                        connection.disconnect();
-                        connection = NetworkUtils.setupConnection(connection.getURL());
-
-                        int start = xmlDescription.indexOf(ENCODING);
-
-                        if (start > -1) {
-                            try {
-                                Xml.findEncodingByName(xmlDescription.substring(start + 10, xmlDescription.indexOf('"', start + 11)));
-                                fetchMode = FETCHMODE_DIRECT;
-                            } catch (UnsupportedEncodingException ignored) {
-                                fetchMode = FETCHMODE_REENCODE;
-                            }
-                        } else {
-                            // absolutely no encoding information found
-                            fetchMode = FETCHMODE_DIRECT;
-                        }
-                    }
+                // Conditional GET only once the fetch mode is known, otherwise we need the whole body to determine it
+                if (fetchMode != 0) {
+                    connection = NetworkUtils.openConnection(new URL(feedUrl), cursor.getString(etagPosition), cursor.getString(lastModifiedPosition));
+                } else {
+                    connection = NetworkUtils.openConnection(new URL(feedUrl), null, null);
+                }
+                currentConnection.set(connection);
+                connection.connect();
 
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    // Nothing changed since the last fetch, we don't need to parse anything
                     ContentValues values = new ContentValues();
-                    values.put(FeedColumns.FETCH_MODE, fetchMode);
+                    values.putNull(FeedColumns.ERROR);
+                    values.put(FeedColumns.LAST_UPDATE, System.currentTimeMillis());
                     cr.update(FeedColumns.CONTENT_URI(id), values, null, null);
-                }
+                } else {
+                    String contentType = connection.getContentType();
 
-                switch (fetchMode) {
-                    default:
-                    case FETCHMODE_DIRECT: {
-                        if (contentType != null) {
-                            int index = contentType.indexOf(CHARSET);
+                    handler = new RssAtomParser(new Date(cursor.getLong(realLastUpdatePosition)), keepDateBorderTime, id, cursor.getString(titlePosition), feedUrl,
+                            cursor.getInt(retrieveFullscreenPosition) == 1);
+                    handler.setFetchImages(NetworkUtils.needDownloadPictures());
 
-                            int index2 = contentType.indexOf(';', index);
+                    InputStream inputStream = new BufferedInputStream(new ActivityInputStream(connection.getInputStream(), lastActivityTime),
+                            STREAM_BUFFER_SIZE);
 
-                            InputStream inputStream = connection.getInputStream();
-                            Xml.parse(inputStream,
-                                    Xml.findEncodingByName(index2 > -1 ? contentType.substring(index + 8, index2) : contentType.substring(index + 8)),
-                                    handler);
-                        } else {
-                            InputStreamReader reader = new InputStreamReader(connection.getInputStream());
-                            Xml.parse(reader, handler);
+                    if (fetchMode == 0 && contentType != null && contentType.startsWith(CONTENT_TYPE_TEXT_HTML)) {
+                        // This may be a web page which gives the real feed url, else this indicates a badly configured feed
+                        // and we directly parse the already opened stream
+                        String url = findFeedLink(inputStream, feedUrl);
+
+                        if (url != null) {
+                            ContentValues values = new ContentValues();
+                            values.put(FeedColumns.URL, url);
+                            cr.update(FeedColumns.CONTENT_URI(id), values, null, null);
+                            connection.disconnect();
+                            connection = NetworkUtils.openConnection(new URL(url), null, null);
+                            lastActivityTime.set(SystemClock.elapsedRealtime());
+                            currentConnection.set(connection);
+                            connection.connect();
+                            contentType = connection.getContentType();
+                            inputStream = new BufferedInputStream(new ActivityInputStream(connection.getInputStream(), lastActivityTime),
+                                    STREAM_BUFFER_SIZE);
                         }
-                        break;
                     }
-                    case FETCHMODE_REENCODE: {
-                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                        InputStream inputStream = connection.getInputStream();
 
-                        byte[] byteBuffer = new byte[4096];
-
-                        int n;
-                        while ((n = inputStream.read(byteBuffer)) > 0) {
-                            outputStream.write(byteBuffer, 0, n);
-                        }
+                    String contentTypeCharset = getContentTypeCharset(contentType);
+                    String charset = findCharset(inputStream, contentTypeCharset);
 
-                        String xmlText = outputStream.toString();
+                    if (fetchMode == 0) {
+                        ContentValues values = new ContentValues();
+                        values.put(FeedColumns.FETCH_MODE, contentTypeCharset != null ? FETCHMODE_DIRECT : FETCHMODE_REENCODE);
+                        cr.update(FeedColumns.CONTENT_URI(id), values, null, null);
+                    }
 
-                        int start = xmlText != null ? xmlText.indexOf(ENCODING) : -1;
+                    handler.setCacheValidators(connection.getHeaderField(NetworkUtils.HEADER_ETAG),
+                            connection.getHeaderField(NetworkUtils.HEADER_LAST_MODIFIED));
 
-                        if (start > -1) {
-                            Xml.parse(
-                                    new StringReader(new String(outputStream.toByteArray(),
-                                            xmlText.substring(start + 10, xmlText.indexOf('"', start + 11)))), handler
-                            );
-                        } else {
-                            // use content type
-                            if (contentType != null) {
-                                int index = contentType.indexOf(CHARSET);
-
-                                if (index > -1) {
-                                    int index2 = contentType.indexOf(';', index);
-
-                                    try {
-                                        StringReader reader = new StringReader(new String(outputStream.toByteArray(), index2 > -1 ? contentType.substring(
-                                                index + 8, index2) : contentType.substring(index + 8)));
-                                        Xml.parse(reader, handler);
-                                    } catch (Exception ignored) {
-                                    }
-                                } else {
-                                    StringReader reader = new StringReader(new String(outputStream.toByteArray()));
-                                    Xml.parse(reader, handler);
-                                }
-                            }
-                        }
-                        break;
+                    Xml.Encoding xmlEncoding = getXmlEncoding(charset);
+                    if (xmlEncoding != null) {
+                        Xml.parse(inputStream, xmlEncoding, handler);
+                    } else {
+                        Xml.parse(new InputStreamReader(inputStream, charset), handler);
                     }
                 }
 
                 connection.disconnect();
             } catch (FileNotFoundException e) {
+                failed = true;
                 if (handler == null || (!handler.isDone() && !handler.isCancelled())) {
                     ContentValues values = new ContentValues();
 
@@ -671,6 +903,7 @@ public class FetcherService extends IntentService {
                     cr.update(FeedColumns.CONTENT_URI(id), values, null, null);
                 }
             } catch (Throwable e) {
+                failed = true;
                 if (handler == null || (!handler.isDone() && !handler.isCancelled())) {
                     ContentValues values = new ContentValues();
 
@@ -681,10 +914,11 @@ public class FetcherService extends IntentService {
                     cr.update(FeedColumns.CONTENT_URI(id), values, null, null);
                 }
             } finally {
+                watchdog.cancel(false);
 
 				/* check and optionally find favicon */
                 try {
-                    if (handler != null && cursor.getBlob(iconPosition) == null) {
+                    if (handler != null && cursor.isNull(iconVersionPosition)) {
                         String feedLink = handler.getFeedLink();
                         if (feedLink != null) {
                             NetworkUtils.retrieveFavicon(this, new URL(feedLink), id);
@@ -699,10 +933,196 @@ public class FetcherService extends IntentService {
                     connection.disconnect();
                 }
             }
+
+            long now = System.currentTimeMillis();
+            long baseInterval = FeedRefreshScheduler.getBaseInterval();
+            ContentValues values = new ContentValues();
+            if (failed) {
+                values.put(FeedColumns.NEXT_REFRESH_DATE, FeedRefreshScheduler.getErrorRetryDate(now, cursor.getLong(lastUpdatePosition),
+                        !cursor.isNull(errorPosition), baseInterval));
+            } else {
+                values.put(FeedColumns.NEXT_REFRESH_DATE, FeedRefreshScheduler.getNextRefreshDate(cr, id, now, baseInterval));
+            }
+            cr.update(FeedColumns.CONTENT_URI(id), values, null, null);
         }
 
         cursor.close();
 
         return handler != null ? handler.getNewCount() : 0;
     }
+
+    /**
+     * Looks in the head of the web page for a link to its feed. The stream is reset to its beginning if nothing is found.
+     */
+    private static String findFeedLink(InputStream inputStream, String feedUrl) throws IOException {
+        inputStream.mark(HTML_SNIFF_LIMIT);
+        byte[] head = new byte[HTML_SNIFF_LIMIT];
+        int length = readFully(inputStream, head);
+
+        // Only ASCII chars matter here, no need to know the real page charset
+        String html = new String(head, 0, length, ISO_8859_1);
+        int lineStart = 0;
+        while (lineStart < html.length()) {
+            int lineEnd = html.indexOf('\n', lineStart);
+            if (lineEnd == -1) {
+                lineEnd = html.length();
+            }
+            String line = html.substring(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+
+            if (line.contains(HTML_BODY)) {
+                break;
+            }
+
+            Matcher matcher = FEED_LINK_PATTERN.matcher(line);
+            if (matcher.find()) { // not "while" as only one link is needed
+                line = matcher.group();
+                int posStart = line.indexOf(HREF);
+
+                if (posStart > -1) {
+                    String url = line.substring(posStart + 6, line.indexOf('"', posStart + 10)).replace(Constants.AMP_SG, Constants.AMP);
+
+                    if (url.startsWith(Constants.SLASH)) {
+                        int index = feedUrl.indexOf('/', 8);
+
+                        if (index > -1) {
+                            url = feedUrl.substring(0, index) + url;
+                        } else {
+                            url = feedUrl + url;
+                        }
+                    } else if (!url.startsWith(Constants.HTTP_SCHEME) && !url.startsWith(Constants.HTTPS_SCHEME)) {
+                        url = feedUrl + '/' + url;
+                    }
+                    return url;
+                }
+            }
+        }
+
+        inputStream.reset();
+        return null;
+    }
+
+    private static String getContentTypeCharset(String contentType) {
+        if (contentType != null) {
+            int index = contentType.indexOf(CHARSET);
+
+            if (index > -1) {
+                int index2 = contentType.indexOf(';', index);
+                String charset = (index2 > -1 ? contentType.substring(index + 8, index2) : contentType.substring(index + 8)).replace("\"", "").trim();
+                if (isCharsetSupported(charset)) {
+                    return charset;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Sniffs the BOM and the XML prolog from the beginning of the stream without consuming it. The content type charset
+     * wins over the XML prolog, the BOM wins over both. Defaults to UTF-8 when absolutely no encoding information is found.
+     */
+    private static String findCharset(InputStream inputStream, String contentTypeCharset) throws IOException {
+        inputStream.mark(PROLOG_SIZE);
+        byte[] prolog = new byte[PROLOG_SIZE];
+        int length = readFully(inputStream, prolog);
+        inputStream.reset();
+
+        if (length >= 3 && prolog[0] == (byte) 0xEF && prolog[1] == (byte) 0xBB && prolog[2] == (byte) 0xBF) {
+            return Constants.UTF8;
+        } else if (length >= 2 && ((prolog[0] == (byte) 0xFE && prolog[1] == (byte) 0xFF) || (prolog[0] == (byte) 0xFF && prolog[1] == (byte) 0xFE))) {
+            return UTF16;
+        } else if (contentTypeCharset != null) {
+            return contentTypeCharset;
+        }
+
+        String xmlDescription = new String(prolog, 0, length, ISO_8859_1);
+        int start = xmlDescription.indexOf(ENCODING);
+        if (start > -1 && start + 9 < length && (xmlDescription.charAt(start + 9) == '"' || xmlDescription.charAt(start + 9) == '\'')) {
+            int end = xmlDescription.indexOf(xmlDescription.charAt(start + 9), start + 10);
+            if (end > -1) {
+                String charset = xmlDescription.substring(start + 10, end);
+                if (isCharsetSupported(charset)) {
+                    return charset;
+                }
+            }
+        }
+
+        return Constants.UTF8;
+    }
+
+    private static boolean isCharsetSupported(String charset) {
+        try {
+            return Charset.isSupported(charset);
+        } catch (IllegalCharsetNameException ignored) {
+            return false;
+        }
+    }
+
+    private static Xml.Encoding getXmlEncoding(String charset) {
+        try {
+            return Xml.findEncodingByName(charset);
+        } catch (UnsupportedEncodingException ignored) {
+            return null;
+        }
+    }
+
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int length = 0;
+        int n;
+        while (length < buffer.length && (n = inputStream.read(buffer, length, buffer.length - length)) > 0) {
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * Records the time of the last received bytes, for the inactivity timeout of the refreshes
+     */
+    private static class ActivityInputStream extends FilterInputStream {
+        private final AtomicLong mLastActivityTime;
+
+        ActivityInputStream(InputStream in, AtomicLong lastActivityTime) {
+            super(in);
+            mLastActivityTime = lastActivityTime;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            mLastActivityTime.set(SystemClock.elapsedRealtime());
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int length = super.read(buffer, offset, count);
+            mLastActivityTime.set(SystemClock.elapsedRealtime());
+            return length;
+        }
+    }
+
+    private static class ImageTask {
+        public long taskId;
+        public long entryId;
+        public int nbAttempt;
+        public String imgUrl;
+        public boolean success;
+        public int width;
+        public int height;
+        public long size;
+    }
+
+    private static class MobilizeTask {
+        public long taskId;
+        public long entryId;
+        public int nbAttempt;
+        public boolean entryFound;
+        public String link;
+        public String abstractHtml;
+        public byte[] page;
+        public String mobilizedHtml;
+        public String mainImgUrl;
+        public ArrayList<String> imgUrls;
+    }
 }
@@ -0,0 +1,57 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by several download threads to keep their total throughput under a given budget
+ */
+public class BandwidthLimiter {
+
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final long mBytesPerSecond;
+    // In nanoseconds, so that the small reads are charged too
+    private long mNextFreeTime;
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        mNextFreeTime = System.nanoTime() - BURST_NANOS;
+    }
+
+    /**
+     * Blocks the calling thread until the given amount of bytes fits in the budget
+     */
+    public void consume(int bytes) throws InterruptedException {
+        long waitTime = reserve(bytes);
+        if (waitTime > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitTime);
+        }
+    }
+
+    private synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        // Unused budget can only be accumulated for a short burst
+        mNextFreeTime = Math.max(mNextFreeTime, now - BURST_NANOS) + bytes * TimeUnit.SECONDS.toNanos(1) / mBytesPerSecond;
+        return mNextFreeTime - now;
+    }
+}
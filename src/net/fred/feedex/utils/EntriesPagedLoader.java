@@ -0,0 +1,358 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.fred.feedex.utils;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+
+import net.fred.feedex.Constants;
+import net.fred.feedex.adapter.EntryRowModel;
+import net.fred.feedex.provider.FeedData;
+import net.fred.feedex.provider.FeedData.EntryColumns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads the entries of a list by pages of consecutive entries (by date or search rank, then id), merged in one cursor. Only the
+ * pages around the visible entries are loaded, the next one being prefetched when scrolling. When the entries change, the pages
+ * around the visible entries are reloaded, the other ones are reloaded when they are scrolled to (or dropped when they are after).
+ * <p/>
+ * Each page covers the entries between the last entry of the previous page (excluded) and its own last entry, so that a page
+ * can be reloaded alone without having duplicated or missing entries with its neighbours.
+ */
+public class EntriesPagedLoader extends AsyncTaskLoader<Cursor> {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 30; // in entries
+
+    private final Uri mUri;
+    private final String mSelection;
+    private final String mKeyColumn;
+    private final boolean mAscending;
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserverRegistered;
+
+    // Written on the UI thread, read by the loading thread
+    private volatile List<Page> mPages = Collections.emptyList();
+    private int mChangeVersion, mRequestedCount = PAGE_SIZE, mFirstVisible, mLastVisible;
+
+    private Cursor mCursor;
+    private boolean mLoadPending;
+
+    /**
+     * @param selection the entries to display, among the ones of the uri
+     */
+    public EntriesPagedLoader(Context context, Uri uri, String selection, boolean oldestFirst) {
+        super(context);
+        mUri = uri;
+        mSelection = selection;
+        mKeyColumn = EntryColumns.KEYSET_COLUMN(uri);
+        mAscending = EntryColumns.IS_KEYSET_ASCENDING(uri, oldestFirst);
+    }
+
+    /**
+     * To be called when the list is scrolled, loads the pages which are needed around the visible entries
+     */
+    public void setVisibleRange(int firstVisible, int lastVisible) {
+        boolean needLoad;
+        synchronized (this) {
+            mFirstVisible = firstVisible;
+            mLastVisible = lastVisible;
+            // Only what is needed from the current position: after a change, the pages beyond it are dropped rather than reloaded
+            mRequestedCount = Math.max(PAGE_SIZE, lastVisible + PREFETCH_DISTANCE + 1);
+
+            // Before the first pages are delivered, they are already loading
+            List<Page> pages = mPages;
+            needLoad = !pages.isEmpty() && getEntriesCount(pages) < mRequestedCount && pages.get(pages.size() - 1).hasMore;
+            int count = 0;
+            for (Page page : pages) {
+                if (page.version != mChangeVersion && isAroundVisibleEntries(count, page.count)) {
+                    needLoad = true;
+                }
+                count += page.count;
+            }
+        }
+
+        if (needLoad && !mLoadPending && isStarted()) {
+            mLoadPending = true;
+            forceLoad();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        synchronized (this) {
+            mChangeVersion++;
+        }
+        super.onContentChanged();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        List<Page> pages = mPages;
+        int version, requestedCount, lastVisible;
+        synchronized (this) {
+            version = mChangeVersion;
+            requestedCount = mRequestedCount;
+            lastVisible = mLastVisible;
+        }
+
+        ArrayList<Page> newPages = new ArrayList<>();
+        Page previous = null;
+        int count = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            if (page.version != version) {
+                if (count > lastVisible + PREFETCH_DISTANCE) {
+                    break; // not needed for now, it will be loaded again when scrolling
+                }
+
+                boolean aroundVisibleEntries;
+                synchronized (this) {
+                    aroundVisibleEntries = isAroundVisibleEntries(count, page.count);
+                }
+                if (aroundVisibleEntries) {
+                    page = i == pages.size() - 1 ? loadPage(previous, version) : reloadPage(previous, page, version);
+                }
+            }
+            newPages.add(page);
+            count += page.count;
+            previous = page;
+        }
+
+        while (count < requestedCount && (previous == null || previous.hasMore)) {
+            previous = loadPage(previous, version);
+            newPages.add(previous);
+            count += previous.count;
+        }
+
+        Cursor[] cursors = new Cursor[newPages.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = new PageCursor(newPages.get(i).cursor);
+        }
+        return new PagedCursor(cursors, newPages);
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        PagedCursor pagedCursor = (PagedCursor) cursor;
+        if (isReset()) {
+            releasePages(pagedCursor.pages, Collections.<Page>emptyList());
+            return;
+        }
+
+        List<Page> oldPages = mPages;
+        Cursor oldCursor = mCursor;
+        mPages = pagedCursor.pages;
+        mCursor = cursor;
+        mLoadPending = false;
+
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+
+        // The pages which have not been reused are not displayed anymore
+        if (oldCursor != null && oldCursor != cursor) {
+            oldCursor.close();
+        }
+        releasePages(oldPages, mPages);
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        mLoadPending = false;
+        cursor.close();
+        releasePages(((PagedCursor) cursor).pages, mPages);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(mUri, true, mObserver);
+            mObserverRegistered = true;
+        }
+
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+
+        if (mCursor != null) {
+            mCursor.close();
+        }
+        releasePages(mPages, Collections.<Page>emptyList());
+        mPages = Collections.emptyList();
+        mCursor = null;
+        mLoadPending = false;
+    }
+
+    private boolean isAroundVisibleEntries(int pageStart, int pageCount) {
+        return pageStart + pageCount >= mFirstVisible - PREFETCH_DISTANCE && pageStart <= mLastVisible + PREFETCH_DISTANCE;
+    }
+
+    /**
+     * Loads the page following the given one (or the first one)
+     */
+    private Page loadPage(Page previous, int version) {
+        Cursor cursor = query(getAfterWhere(previous), FeedData.withLimit(mUri, PAGE_SIZE));
+        Page page = new Page(cursor, version);
+        page.hasMore = page.count == PAGE_SIZE;
+        if (cursor.moveToLast()) {
+            page.lastKey = cursor.getLong(cursor.getColumnIndex(mKeyColumn));
+            page.lastId = cursor.getLong(cursor.getColumnIndex(EntryColumns._ID));
+            page.hasBounds = true;
+        } else if (previous != null) {
+            page.lastKey = previous.lastKey;
+            page.lastId = previous.lastId;
+            page.hasBounds = previous.hasBounds;
+        }
+        return page;
+    }
+
+    /**
+     * Loads again the entries of a page, which is followed by other ones
+     */
+    private Page reloadPage(Page previous, Page page, int version) {
+        String where = getAfterWhere(previous);
+        if (page.hasBounds) {
+            String untilLastWhere = EntryColumns.WHERE_KEYSET(mKeyColumn, page.lastKey, page.lastId, !mAscending, true);
+            where = where != null ? where + Constants.DB_AND + untilLastWhere : untilLastWhere;
+        }
+
+        Page newPage = new Page(query(where, mUri), version);
+        newPage.hasMore = true;
+        newPage.lastKey = page.lastKey;
+        newPage.lastId = page.lastId;
+        newPage.hasBounds = page.hasBounds;
+        return newPage;
+    }
+
+    private String getAfterWhere(Page previous) {
+        return previous != null && previous.hasBounds ? EntryColumns.WHERE_KEYSET(mKeyColumn, previous.lastKey, previous.lastId, mAscending,
+                false) : null;
+    }
+
+    private Cursor query(String keysetWhere, Uri uri) {
+        String where = mSelection;
+        if (keysetWhere != null) {
+            where = where != null ? '(' + where + ')' + Constants.DB_AND + keysetWhere : keysetWhere;
+        }
+
+        Cursor cursor = getContext().getContentResolver().query(uri, null, where, null, EntryColumns.KEYSET_ORDER(mKeyColumn, mAscending));
+        if (cursor == null) {
+            cursor = Constants.EMPTY_CURSOR;
+        } else {
+            cursor.getCount(); // fill the window here, not on the UI thread
+            EntryRowModel.prepare(cursor); // same for what the rows display
+        }
+        return cursor;
+    }
+
+    private static int getEntriesCount(List<Page> pages) {
+        int count = 0;
+        for (Page page : pages) {
+            count += page.count;
+        }
+        return count;
+    }
+
+    private static void releasePages(List<Page> pages, List<Page> keptPages) {
+        for (Page page : pages) {
+            if (!keptPages.contains(page) && page.cursor != Constants.EMPTY_CURSOR) {
+                page.cursor.close();
+            }
+        }
+    }
+
+    private static class Page {
+        final Cursor cursor;
+        final int count;
+        final int version;
+        long lastKey, lastId;
+        boolean hasBounds, hasMore;
+
+        Page(Cursor cursor, int version) {
+            this.cursor = cursor;
+            this.count = cursor.getCount();
+            this.version = version;
+        }
+    }
+
+    /**
+     * Closing it does not close its pages, which can be reused by the next one (they are released by the loader)
+     */
+    private static class PagedCursor extends MergeCursor {
+        final List<Page> pages;
+
+        PagedCursor(Cursor[] cursors, List<Page> pages) {
+            super(cursors);
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * The view of a page given to a {@link PagedCursor}. The observer that MergeCursor registers on each of its cursors is not
+     * registered on the page, so that the observers of the old PagedCursors do not pile up on the reused pages (they are never
+     * requeried anyway), and closing it does not close the page.
+     */
+    private static class PageCursor extends CursorWrapper {
+
+        PageCursor(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
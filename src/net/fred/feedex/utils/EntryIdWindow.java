@@ -0,0 +1,289 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.fred.feedex.utils;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import net.fred.feedex.MainApplication;
+import net.fred.feedex.provider.FeedData;
+import net.fred.feedex.provider.FeedData.EntryColumns;
+
+/**
+ * The ids of the entries of a list, loaded in background by pages around an initial entry and extended in both directions on
+ * demand. Pages are selected by keyset on (date or search rank, id), so loading one only costs its own size, whatever the size
+ * of the list.
+ * <p/>
+ * A position is the place of an entry in the currently loaded ids, it changes when ids are added at the beginning. An index
+ * is relative to the first loaded entry and always designates the same entry.
+ */
+public class EntryIdWindow {
+
+    public interface Listener {
+        /**
+         * Called on the UI thread when ids have been loaded, possibly before the previous ones (which changes their position)
+         */
+        void onWindowChanged(EntryIdWindow window);
+    }
+
+    private static final int PAGE_SIZE = 50;
+    private static final int PRELOAD_DISTANCE = 10;
+
+    private final Uri mBaseUri;
+    private final String mKeyColumn;
+    private final boolean mAscending;
+    private final String[] mProjection;
+    private final Listener mListener;
+
+    private long[] mIds = new long[0];
+    private long mFirstKey, mLastKey;
+    private int mFirstIndex;
+    private int mInitialPosition = -1;
+    private boolean mHasMoreBefore = true, mHasMoreAfter = true;
+    private boolean mLoadingBefore, mLoadingAfter, mClosed;
+
+    public EntryIdWindow(Uri baseUri, boolean oldestFirst, Listener listener) {
+        mBaseUri = baseUri;
+        mKeyColumn = EntryColumns.KEYSET_COLUMN(baseUri);
+        mAscending = EntryColumns.IS_KEYSET_ASCENDING(baseUri, oldestFirst);
+        mProjection = new String[]{EntryColumns._ID, mKeyColumn};
+        mListener = listener;
+    }
+
+    /**
+     * Loads the first pages around the given entry (or the beginning of the list if it is not part of it)
+     */
+    public void load(long initialEntryId) {
+        mLoadingBefore = mLoadingAfter = true;
+        new PageTask(initialEntryId).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Stops delivering the results of the pending loads
+     */
+    public void close() {
+        mClosed = true;
+    }
+
+    public int getCount() {
+        return mIds.length;
+    }
+
+    /**
+     * @return the position of the initial entry once loaded, -1 before
+     */
+    public int getInitialPosition() {
+        return mInitialPosition;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public int getIndex(int position) {
+        return mFirstIndex + position;
+    }
+
+    /**
+     * @return the position of the entry designated by the index, or -1 if it is not part of the window
+     */
+    public int getPosition(int index) {
+        int position = index - mFirstIndex;
+        return position >= 0 && position < mIds.length ? position : -1;
+    }
+
+    /**
+     * Loads the next page in the direction the user is going when getting close to an end of the window
+     */
+    public void onPositionSelected(int position) {
+        if (position < PRELOAD_DISTANCE && mHasMoreBefore && !mLoadingBefore && mIds.length > 0) {
+            mLoadingBefore = true;
+            new PageTask(false).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+        if (position >= mIds.length - PRELOAD_DISTANCE && mHasMoreAfter && !mLoadingAfter && mIds.length > 0) {
+            mLoadingAfter = true;
+            new PageTask(true).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    /**
+     * @param next      true for the entries displayed after the given one, false for the ones displayed before
+     * @param inclusive true to also select the given entry
+     */
+    private String getKeysetWhere(boolean next, long key, long id, boolean inclusive) {
+        return EntryColumns.WHERE_KEYSET(mKeyColumn, key, id, next == mAscending, inclusive);
+    }
+
+    /**
+     * @return the order to read the entries from the boundary, going forward (next) or backward
+     */
+    private String getOrder(boolean next) {
+        return EntryColumns.KEYSET_ORDER(mKeyColumn, next == mAscending);
+    }
+
+    /**
+     * @return the entries of the page, in reading order from the boundary
+     */
+    private Page queryPage(boolean next, String where) {
+        Cursor cursor = MainApplication.getContext().getContentResolver().query(FeedData.withLimit(mBaseUri, PAGE_SIZE), mProjection,
+                where, null, getOrder(next));
+        if (cursor == null) {
+            return new Page(0);
+        }
+
+        Page page = new Page(cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            page.ids[i] = cursor.getLong(0);
+            page.keys[i] = cursor.getLong(1);
+        }
+        cursor.close();
+        return page;
+    }
+
+    private void addBefore(Page page) {
+        int count = page.ids.length;
+        if (count > 0) {
+            long[] ids = new long[count + mIds.length];
+            for (int i = 0; i < count; i++) { // the page is read backward from the first entry
+                ids[count - 1 - i] = page.ids[i];
+            }
+            System.arraycopy(mIds, 0, ids, count, mIds.length);
+            if (mIds.length == 0) {
+                mLastKey = page.keys[0];
+            }
+            mIds = ids;
+            mFirstKey = page.keys[count - 1];
+            mFirstIndex -= count;
+            if (mInitialPosition != -1) {
+                mInitialPosition += count;
+            }
+        }
+        mHasMoreBefore = count == PAGE_SIZE;
+    }
+
+    private void addAfter(Page page) {
+        int count = page.ids.length;
+        if (count > 0) {
+            long[] ids = new long[mIds.length + count];
+            System.arraycopy(mIds, 0, ids, 0, mIds.length);
+            System.arraycopy(page.ids, 0, ids, mIds.length, count);
+            if (mIds.length == 0) {
+                mFirstKey = page.keys[0];
+            }
+            mIds = ids;
+            mLastKey = page.keys[count - 1];
+        }
+        mHasMoreAfter = count == PAGE_SIZE;
+    }
+
+    private static class Page {
+        final long[] ids;
+        final long[] keys;
+
+        Page(int count) {
+            ids = new long[count];
+            keys = new long[count];
+        }
+    }
+
+    /**
+     * Loads a page before or after the window, or the initial pages around an entry (the page before, then the one after)
+     */
+    private class PageTask extends AsyncTask<Void, Void, Page[]> {
+
+        private final boolean mInitial, mNext;
+        private final long mInitialEntryId;
+        private final long mBoundaryKey, mBoundaryId;
+
+        PageTask(long initialEntryId) {
+            mInitial = true;
+            mNext = true;
+            mInitialEntryId = initialEntryId;
+            mBoundaryKey = mBoundaryId = 0;
+        }
+
+        PageTask(boolean next) {
+            mInitial = false;
+            mNext = next;
+            mInitialEntryId = -1;
+            mBoundaryKey = next ? mLastKey : mFirstKey;
+            mBoundaryId = next ? mIds[mIds.length - 1] : mIds[0];
+        }
+
+        @Override
+        protected Page[] doInBackground(Void... params) {
+            if (!mInitial) {
+                return new Page[]{queryPage(mNext, getKeysetWhere(mNext, mBoundaryKey, mBoundaryId, false))};
+            }
+
+            // Find the initial entry, then load a page on each side of it
+            Cursor cursor = MainApplication.getContext().getContentResolver().query(mBaseUri, mProjection,
+                    EntryColumns._ID + '=' + mInitialEntryId, null, null);
+            if (cursor != null) {
+                try {
+                    if (cursor.moveToFirst()) {
+                        long key = cursor.getLong(1);
+                        Page before = queryPage(false, getKeysetWhere(false, key, mInitialEntryId, false));
+                        Page after = queryPage(true, getKeysetWhere(true, key, mInitialEntryId, true));
+                        return new Page[]{before, after};
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            return new Page[]{null, queryPage(true, null)};
+        }
+
+        @Override
+        protected void onPostExecute(Page[] pages) {
+            if (mClosed) {
+                return;
+            }
+
+            int previousCount = mIds.length;
+            if (mInitial) {
+                mLoadingBefore = mLoadingAfter = false;
+                addAfter(pages[1]);
+                if (pages[0] != null) {
+                    mInitialPosition = 0;
+                    addBefore(pages[0]);
+                } else {
+                    mHasMoreBefore = false;
+                    mInitialPosition = mIds.length > 0 ? 0 : -1;
+                }
+                mListener.onWindowChanged(EntryIdWindow.this);
+            } else if (mNext) {
+                mLoadingAfter = false;
+                addAfter(pages[0]);
+                if (mIds.length != previousCount) {
+                    mListener.onWindowChanged(EntryIdWindow.this);
+                }
+            } else {
+                mLoadingBefore = false;
+                addBefore(pages[0]);
+                if (mIds.length != previousCount) {
+                    mListener.onWindowChanged(EntryIdWindow.this);
+                }
+            }
+        }
+    }
+}
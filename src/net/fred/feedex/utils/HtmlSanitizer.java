@@ -0,0 +1,345 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.utils;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Cleans the HTML of the entries with a whitelist (the Jsoup "relaxed" one plus the media tags), in one traversal of the parsed
+ * document. The same traversal removes the ads, the lazy loading, the empty images and links and the useless line breaks, fixes the
+ * protocol-relative urls and collects the images.
+ */
+public class HtmlSanitizer {
+
+    private static final String TAG_A = "a";
+    private static final String TAG_BR = "br";
+    private static final String TAG_DIV = "div";
+    private static final String TAG_IMG = "img";
+
+    private static final String ATTR_CLASS = "class";
+    private static final String ATTR_HEIGHT = "height";
+    private static final String ATTR_HREF = "href";
+    private static final String ATTR_SRC = "src";
+    private static final String ATTR_WIDTH = "width";
+
+    private static final String ADS_CLASS = "mf-viral";
+    private static final String[] LAZY_LOADING_ATTRIBUTES = {"data-src", "original-src", "data-original"};
+    private static final String BAD_IMAGE_EXTENSION = ".img";
+    private static final String PROTOCOL_RELATIVE_PREFIX = "//";
+    private static final String HTTP_PROTOCOL = "http:";
+    private static final String URL_SPACE = "%20";
+    private static final int MAX_CONSECUTIVE_BR = 2;
+
+    private static final HashMap<String, String[]> ALLOWED_TAGS = new HashMap<>();
+    private static final HashMap<String, String[]> PROTOCOLS = new HashMap<>();
+    private static final HashSet<String> VOID_TAGS = new HashSet<>();
+
+    static {
+        String[] noAttributes = new String[0];
+        for (String tag : new String[]{"b", "br", "caption", "cite", "code", "dd", "div", "dl", "dt", "em", "h1", "h2", "h3", "h4", "h5", "h6", "i",
+                "li", "p", "pre", "small", "span", "strike", "strong", "sub", "sup", "tbody", "tfoot", "thead", "tr", "u"}) {
+            ALLOWED_TAGS.put(tag, noAttributes);
+        }
+        ALLOWED_TAGS.put("a", new String[]{"href", "title"});
+        ALLOWED_TAGS.put("blockquote", new String[]{"cite"});
+        ALLOWED_TAGS.put("col", new String[]{"span", "width"});
+        ALLOWED_TAGS.put("colgroup", new String[]{"span", "width"});
+        ALLOWED_TAGS.put("img", new String[]{"align", "alt", "height", "src", "title", "width"});
+        ALLOWED_TAGS.put("ol", new String[]{"start", "type"});
+        ALLOWED_TAGS.put("q", new String[]{"cite"});
+        ALLOWED_TAGS.put("table", new String[]{"summary", "width"});
+        ALLOWED_TAGS.put("td", new String[]{"abbr", "axis", "colspan", "rowspan", "width"});
+        ALLOWED_TAGS.put("th", new String[]{"abbr", "axis", "colspan", "rowspan", "scope", "width"});
+        ALLOWED_TAGS.put("ul", new String[]{"type"});
+        ALLOWED_TAGS.put("iframe", new String[]{"src", "frameborder", "height", "width"});
+        ALLOWED_TAGS.put("video", new String[]{"src", "controls", "height", "width", "poster"});
+        ALLOWED_TAGS.put("audio", new String[]{"src", "controls"});
+        ALLOWED_TAGS.put("source", new String[]{"src", "type"});
+        ALLOWED_TAGS.put("track", new String[]{"src", "kind", "srclang", "label"});
+
+        // These attributes are made absolute and are only kept with one of these protocols
+        PROTOCOLS.put("a.href", new String[]{"ftp:", "http:", "https:", "mailto:"});
+        PROTOCOLS.put("blockquote.cite", new String[]{"http:", "https:"});
+        PROTOCOLS.put("q.cite", new String[]{"http:", "https:"});
+        PROTOCOLS.put("img.src", new String[]{"http:", "https:"});
+        // Not in the Jsoup whitelist, but the media sources must not run scripts either
+        String[] mediaProtocols = new String[]{"http:", "https:"};
+        for (String mediaAttribute : new String[]{"iframe.src", "video.src", "video.poster", "audio.src", "source.src", "track.src"}) {
+            PROTOCOLS.put(mediaAttribute, mediaProtocols);
+        }
+
+        VOID_TAGS.add("br");
+        VOID_TAGS.add("col");
+        VOID_TAGS.add("img");
+        VOID_TAGS.add("source");
+        VOID_TAGS.add("track");
+    }
+
+    private final StringBuilder mHtml;
+    private final ArrayList<String> mImageUrls = new ArrayList<>();
+    private String mMainImageUrl;
+    private int mPendingBrCount;
+
+    private HtmlSanitizer(int capacity) {
+        mHtml = new StringBuilder(capacity);
+    }
+
+    public static HtmlSanitizer sanitize(String content, String baseUri) {
+        HtmlSanitizer sanitizer = new HtmlSanitizer(content.length());
+        sanitizer.traverse(Jsoup.parseBodyFragment(content, baseUri != null ? baseUri : "").body());
+        return sanitizer;
+    }
+
+    public String getHtml() {
+        return mHtml.toString();
+    }
+
+    /**
+     * The urls of the kept images, in the same form than in the html
+     */
+    public ArrayList<String> getImageUrls() {
+        return mImageUrls;
+    }
+
+    public String getMainImageUrl() {
+        return mMainImageUrl;
+    }
+
+    private void traverse(Element root) {
+        Node node = root.childNodeSize() > 0 ? root.childNode(0) : null;
+        while (node != null) {
+            if (enter(node) && node.childNodeSize() > 0) {
+                node = node.childNode(0);
+                continue;
+            }
+
+            while (node != root && node.nextSibling() == null) {
+                exit(node);
+                node = node.parentNode();
+            }
+            if (node == root) {
+                break;
+            }
+            exit(node);
+            node = node.nextSibling();
+        }
+        // The trailing line breaks are dropped
+    }
+
+    /**
+     * @return true if the children of the node need to be visited
+     */
+    private boolean enter(Node node) {
+        if (node instanceof TextNode) {
+            String text = ((TextNode) node).getWholeText();
+            if (isBlank(text)) {
+                // Collapsed with the surrounding line breaks
+                if (mPendingBrCount == 0 && mHtml.length() > 0) {
+                    appendEscaped(text, false);
+                }
+            } else {
+                flushBr();
+                appendEscaped(text, false);
+            }
+            return false;
+        }
+
+        if (!(node instanceof Element)) { // Comments, scripts and styles contents, ...
+            return false;
+        }
+
+        Element element = (Element) node;
+        String tag = element.tagName();
+        if (isAds(element)) {
+            return false;
+        }
+        if (!ALLOWED_TAGS.containsKey(tag)) {
+            return true; // The tag is removed, but not its content
+        }
+
+        if (TAG_BR.equals(tag)) {
+            mPendingBrCount++;
+            return false;
+        }
+
+        if (TAG_IMG.equals(tag)) {
+            String src = getImageSrc(element);
+            if (src != null) {
+                flushBr();
+                mHtml.append('<').append(TAG_IMG);
+                appendAttribute(ATTR_SRC, src);
+                appendAttributes(element, tag, ATTR_SRC);
+                mHtml.append('>');
+
+                mImageUrls.add(src);
+                if (mMainImageUrl == null && HtmlUtils.isCorrectImage(src)) {
+                    mMainImageUrl = src;
+                }
+            }
+            return false;
+        }
+
+        if (TAG_A.equals(tag) && element.childNodeSize() == 0) { // Empty link
+            return false;
+        }
+
+        flushBr();
+        mHtml.append('<').append(tag);
+        appendAttributes(element, tag, null);
+        mHtml.append('>');
+        return true;
+    }
+
+    private void exit(Node node) {
+        if (node instanceof Element) {
+            Element element = (Element) node;
+            String tag = element.tagName();
+            if (ALLOWED_TAGS.containsKey(tag) && !VOID_TAGS.contains(tag) && !isAds(element)
+                    && !(TAG_A.equals(tag) && element.childNodeSize() == 0)) {
+                flushBr();
+                mHtml.append("</").append(tag).append('>');
+            }
+        }
+    }
+
+    /**
+     * @return the url of the image, or null if it needs to be removed
+     */
+    private String getImageSrc(Element img) {
+        // 1x1 images are only trackers
+        if ("1".equals(img.attr(ATTR_WIDTH)) && "1".equals(img.attr(ATTR_HEIGHT))) {
+            return null;
+        }
+
+        String src = null;
+        for (String lazyAttribute : LAZY_LOADING_ATTRIBUTES) {
+            if (img.hasAttr(lazyAttribute)) {
+                src = getAbsoluteUrl(img, lazyAttribute, PROTOCOLS.get("img.src"));
+                if (src != null) {
+                    break;
+                }
+            }
+        }
+        if (src == null) {
+            src = getAbsoluteUrl(img, ATTR_SRC, PROTOCOLS.get("img.src"));
+        }
+
+        if (src == null || src.endsWith(BAD_IMAGE_EXTENSION)) {
+            return null;
+        }
+        return src.replace(" ", URL_SPACE);
+    }
+
+    private void appendAttributes(Element element, String tag, String excludedAttribute) {
+        for (String attribute : ALLOWED_TAGS.get(tag)) {
+            if (!attribute.equals(excludedAttribute) && element.hasAttr(attribute)) {
+                String[] protocols = PROTOCOLS.get(tag + '.' + attribute);
+                String value;
+                if (protocols != null) {
+                    value = getAbsoluteUrl(element, attribute, protocols);
+                } else {
+                    value = element.attr(attribute);
+                    if ((ATTR_SRC.equals(attribute) || ATTR_HREF.equals(attribute)) && value.startsWith(PROTOCOL_RELATIVE_PREFIX)) {
+                        value = HTTP_PROTOCOL + value;
+                    }
+                }
+
+                if (value != null) {
+                    appendAttribute(attribute, value);
+                }
+            }
+        }
+    }
+
+    private void appendAttribute(String name, String value) {
+        mHtml.append(' ').append(name).append("=\"");
+        appendEscaped(value, true);
+        mHtml.append('"');
+    }
+
+    private static String getAbsoluteUrl(Element element, String attribute, String[] protocols) {
+        String url = element.absUrl(attribute);
+        if (url.isEmpty() && element.attr(attribute).startsWith(PROTOCOL_RELATIVE_PREFIX)) { // No base uri to resolve it
+            url = HTTP_PROTOCOL + element.attr(attribute);
+        }
+        for (String protocol : protocols) {
+            if (url.regionMatches(true, 0, protocol, 0, protocol.length())) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAds(Element element) {
+        return TAG_DIV.equals(element.tagName()) && element.classNames().contains(ADS_CLASS);
+    }
+
+    private void flushBr() {
+        // No line break at the beginning and no more than two in a row
+        if (mPendingBrCount > 0 && mHtml.length() > 0) {
+            for (int i = 0; i < Math.min(mPendingBrCount, MAX_CONSECUTIVE_BR); i++) {
+                mHtml.append("<br>");
+            }
+        }
+        mPendingBrCount = 0;
+    }
+
+    private void appendEscaped(String text, boolean inAttribute) {
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    mHtml.append("&amp;");
+                    break;
+                case '\u00a0':
+                    mHtml.append("&nbsp;");
+                    break;
+                case '<':
+                    mHtml.append(inAttribute ? "<" : "&lt;");
+                    break;
+                case '>':
+                    mHtml.append(inAttribute ? ">" : "&gt;");
+                    break;
+                case '"':
+                    mHtml.append(inAttribute ? "&quot;" : "\"");
+                    break;
+                default:
+                    mHtml.append(c);
+            }
+        }
+    }
+
+    private static boolean isBlank(String text) {
+        for (int i = 0, length = text.length(); i < length; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
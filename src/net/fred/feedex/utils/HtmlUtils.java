@@ -19,79 +19,60 @@
 
 package net.fred.feedex.utils;
 
-import android.content.Context;
-import android.content.Intent;
 import android.text.TextUtils;
 
-import net.fred.feedex.Constants;
-import net.fred.feedex.MainApplication;
-import net.fred.feedex.service.FetcherService;
+import org.jsoup.parser.Parser;
 
-import org.jsoup.Jsoup;
-import org.jsoup.safety.Whitelist;
-
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class HtmlUtils {
 
-    private static final Whitelist JSOUP_WHITELIST = Whitelist.relaxed().addTags("iframe", "video", "audio", "source", "track")
-            .addAttributes("iframe", "src", "frameborder", "height", "width")
-            .addAttributes("video", "src", "controls", "height", "width", "poster")
-            .addAttributes("audio", "src", "controls")
-            .addAttributes("source", "src", "type")
-            .addAttributes("track", "src", "kind", "srclang", "label");
-
     private static final String URL_SPACE = "%20";
 
+    private static final String IMG_TAG_START = "<img";
+    private static final String SRC_ATTRIBUTE = "src=";
+
     private static final Pattern IMG_PATTERN = Pattern.compile("<img\\s+[^>]*src=\\s*['\"]([^'\"]+)['\"][^>]*>", Pattern.CASE_INSENSITIVE);
-    private static final Pattern ADS_PATTERN = Pattern.compile("<div class=('|\")mf-viral('|\")><table border=('|\")0('|\")>.*", Pattern.CASE_INSENSITIVE);
-    private static final Pattern LAZY_LOADING_PATTERN = Pattern.compile("\\s+src=[^>]+\\s+(original|data)[-]*src=(\"|')", Pattern.CASE_INSENSITIVE);
-    private static final Pattern EMPTY_IMAGE_PATTERN = Pattern.compile("<img\\s+(height=['\"]1['\"]\\s+width=['\"]1['\"]|width=['\"]1['\"]\\s+height=['\"]1['\"])\\s+[^>]*src=\\s*['\"]([^'\"]+)['\"][^>]*>", Pattern.CASE_INSENSITIVE);
-    private static final Pattern NON_HTTP_IMAGE_PATTERN = Pattern.compile("\\s+(href|src)=(\"|')//", Pattern.CASE_INSENSITIVE);
-    private static final Pattern BAD_IMAGE_PATTERN = Pattern.compile("<img\\s+[^>]*src=\\s*['\"]([^'\"]+)\\.img['\"][^>]*>", Pattern.CASE_INSENSITIVE);
-    private static final Pattern START_BR_PATTERN = Pattern.compile("^(\\s*<br\\s*[/]*>\\s*)*", Pattern.CASE_INSENSITIVE);
-    private static final Pattern END_BR_PATTERN = Pattern.compile("(\\s*<br\\s*[/]*>\\s*)*$", Pattern.CASE_INSENSITIVE);
-    private static final Pattern MULTIPLE_BR_PATTERN = Pattern.compile("(\\s*<br\\s*[/]*>\\s*){3,}", Pattern.CASE_INSENSITIVE);
-    private static final Pattern EMPTY_LINK_PATTERN = Pattern.compile("<a\\s+[^>]*></a>", Pattern.CASE_INSENSITIVE);
-
-
-    public static String improveHtmlContent(String content, String baseUri) {
-        content = ADS_PATTERN.matcher(content).replaceAll("");
-
-        if (content != null) {
-            // remove some ads
-            content = ADS_PATTERN.matcher(content).replaceAll("");
-            // remove lazy loading images stuff
-            content = LAZY_LOADING_PATTERN.matcher(content).replaceAll(" src=$2");
-
-            // clean by JSoup
-            content = Jsoup.clean(content, baseUri, JSOUP_WHITELIST);
-
-            // remove empty or bad images
-            content = EMPTY_IMAGE_PATTERN.matcher(content).replaceAll("");
-            content = BAD_IMAGE_PATTERN.matcher(content).replaceAll("");
-            // remove empty links
-            content = EMPTY_LINK_PATTERN.matcher(content).replaceAll("");
-            // fix non http image paths
-            content = NON_HTTP_IMAGE_PATTERN.matcher(content).replaceAll(" $1=$2http://");
-            // remove trailing BR & too much BR
-            content = START_BR_PATTERN.matcher(content).replaceAll("");
-            content = END_BR_PATTERN.matcher(content).replaceAll("");
-            content = MULTIPLE_BR_PATTERN.matcher(content).replaceAll("<br><br>");
+
+    /**
+     * Returns the text of the given HTML, without the tags and with the entities decoded. Tags are replaced by a space to keep
+     * the words separated.
+     */
+    public static String getPlainText(String content) {
+        if (TextUtils.isEmpty(content)) {
+            return "";
+        }
+
+        StringBuilder text = new StringBuilder(content.length());
+        boolean inTag = false;
+        for (int i = 0, length = content.length(); i < length; i++) {
+            char c = content.charAt(i);
+            if (inTag) {
+                if (c == '>') {
+                    inTag = false;
+                    text.append(' ');
+                }
+            } else if (c == '<') {
+                inTag = true;
+            } else {
+                text.append(c);
+            }
         }
 
-        return content;
+        return Parser.unescapeEntities(text.toString(), false);
     }
 
-    public static ArrayList<String> getImageURLs(String content) {
+    /**
+     * Returns the urls of the images of the given HTML. Only used to find the images of contents stored without their image list.
+     */
+    public static ArrayList<String> getImageUrls(String content) {
         ArrayList<String> images = new ArrayList<>();
 
         if (!TextUtils.isEmpty(content)) {
             Matcher matcher = IMG_PATTERN.matcher(content);
-
             while (matcher.find()) {
                 images.add(matcher.group(1).replace(" ", URL_SPACE));
             }
@@ -100,66 +81,78 @@ public class HtmlUtils {
         return images;
     }
 
-    public static String replaceImageURLs(String content, final long entryId) {
-
-        if (!TextUtils.isEmpty(content)) {
-            boolean needDownloadPictures = NetworkUtils.needDownloadPictures();
-            final ArrayList<String> imagesToDl = new ArrayList<>();
-
-            Matcher matcher = IMG_PATTERN.matcher(content);
-            while (matcher.find()) {
-                String match = matcher.group(1).replace(" ", URL_SPACE);
-
-                String imgPath = NetworkUtils.getDownloadedImagePath(entryId, match);
-                if (new File(imgPath).exists()) {
-                    content = content.replace(match, Constants.FILE_SCHEME + imgPath);
-                } else if (needDownloadPictures) {
-                    imagesToDl.add(match);
-                }
-            }
-
-            // Download the images if needed
-            if (!imagesToDl.isEmpty()) {
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        FetcherService.addImagesToDownload(String.valueOf(entryId), imagesToDl);
-                        Context context = MainApplication.getContext();
-                        context.startService(new Intent(context, FetcherService.class).setAction(FetcherService.ACTION_DOWNLOAD_IMAGES));
-                    }
-                }).start();
-            }
+    /**
+     * Replaces the src of the images of the given HTML by their local url, in only one pass over the content.
+     *
+     * @param localUrls the local url of each downloaded image, by image url
+     */
+    public static String replaceImageURLs(String content, Map<String, String> localUrls) {
+        if (TextUtils.isEmpty(content) || localUrls.isEmpty()) {
+            return content;
         }
 
-        return content;
-    }
-
-    public static String getMainImageURL(String content) {
-        if (!TextUtils.isEmpty(content)) {
-            Matcher matcher = IMG_PATTERN.matcher(content);
+        StringBuilder result = new StringBuilder(content.length());
+        int length = content.length();
+        int copied = 0;
+        int tagStart = 0;
+        while ((tagStart = indexOfIgnoreCase(content, IMG_TAG_START, tagStart)) != -1) {
+            int i = tagStart + IMG_TAG_START.length();
+            while (i < length) {
+                char c = content.charAt(i);
+                if (c == '>') {
+                    break;
+                } else if (c == '"' || c == '\'') { // skip the attribute values
+                    int quoteEnd = content.indexOf(c, i + 1);
+                    i = quoteEnd == -1 ? length : quoteEnd + 1;
+                } else if (Character.isWhitespace(content.charAt(i - 1)) && content.regionMatches(true, i, SRC_ATTRIBUTE, 0, SRC_ATTRIBUTE.length())) {
+                    int urlStart = i + SRC_ATTRIBUTE.length();
+                    int urlEnd;
+                    char quote = urlStart < length ? content.charAt(urlStart) : ' ';
+                    boolean quoted = quote == '"' || quote == '\'';
+                    if (quoted) {
+                        urlStart++;
+                        urlEnd = content.indexOf(quote, urlStart);
+                    } else {
+                        urlEnd = urlStart;
+                        while (urlEnd < length && !Character.isWhitespace(content.charAt(urlEnd)) && content.charAt(urlEnd) != '>') {
+                            urlEnd++;
+                        }
+                    }
+                    if (urlEnd == -1) {
+                        i = length;
+                        break;
+                    }
 
-            while (matcher.find()) {
-                String imgUrl = matcher.group(1).replace(" ", URL_SPACE);
-                if (isCorrectImage(imgUrl)) {
-                    return imgUrl;
+                    String url = content.substring(urlStart, urlEnd);
+                    String localUrl = localUrls.get(url);
+                    if (localUrl == null && (url.indexOf('&') != -1 || url.indexOf(' ') != -1)) {
+                        localUrl = localUrls.get(url.replace(" ", URL_SPACE).replace("&quot;", "\"").replace("&amp;", "&"));
+                    }
+                    if (localUrl != null) {
+                        result.append(content, copied, urlStart).append(localUrl);
+                        copied = urlEnd;
+                    }
+                    i = quoted ? urlEnd + 1 : urlEnd;
+                } else {
+                    i++;
                 }
             }
+            tagStart = i;
         }
 
-        return null;
+        return copied == 0 ? content : result.append(content, copied, length).toString();
     }
 
-    public static String getMainImageURL(ArrayList<String> imgUrls) {
-        for (String imgUrl : imgUrls) {
-            if (isCorrectImage(imgUrl)) {
-                return imgUrl;
+    private static int indexOfIgnoreCase(String content, String str, int fromIndex) {
+        for (int i = fromIndex, last = content.length() - str.length(); i <= last; i++) {
+            if (content.charAt(i) == '<' && content.regionMatches(true, i, str, 0, str.length())) {
+                return i;
             }
         }
-
-        return null;
+        return -1;
     }
 
-    private static boolean isCorrectImage(String imgUrl) {
+    static boolean isCorrectImage(String imgUrl) {
         return !imgUrl.endsWith(".gif") && !imgUrl.endsWith(".GIF") && !imgUrl.endsWith(".img") && !imgUrl.endsWith(".IMG");
 
     }
@@ -0,0 +1,297 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.utils;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+import net.fred.feedex.Constants;
+import net.fred.feedex.MainApplication;
+import net.fred.feedex.provider.FeedData;
+import net.fred.feedex.provider.FeedData.ImageColumns;
+import net.fred.feedex.provider.FeedData.PurgedImageColumns;
+import net.fred.feedex.provider.FeedData.TaskColumns;
+import net.fred.feedex.service.FetcherService;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Access to the images of each entry (see {@link ImageColumns}), which are stored with the entry so that displaying it is only a lookup
+ */
+public class ImageManifest {
+
+    private static final String[] PROJECTION_IMAGES = new String[]{ImageColumns.URL, ImageColumns.CACHE_KEY, ImageColumns.STATE};
+    private static final String[] PROJECTION_PURGED_IMAGES = new String[]{PurgedImageColumns._ID, PurgedImageColumns.ENTRY_ID,
+            PurgedImageColumns.CACHE_KEY};
+    private static final String[] PROJECTION_CACHE_SIZE = new String[]{"IFNULL(SUM(" + ImageColumns.SIZE + "), 0)",
+            "IFNULL(SUM(CASE WHEN " + ImageColumns.WHERE_FAVORITE_ENTRY + " THEN " + ImageColumns.SIZE + " ELSE 0 END), 0)"};
+    private static final String[] PROJECTION_EVICTED_IMAGES = new String[]{ImageColumns._ID, ImageColumns.ENTRY_ID, ImageColumns.CACHE_KEY,
+            ImageColumns.SIZE};
+    private static final String WHERE_NOT_FAVORITE_ENTRY = "NOT " + ImageColumns.WHERE_FAVORITE_ENTRY;
+    private static final int PURGE_BATCH_SIZE = 200;
+    private static final int EVICTION_BATCH_SIZE = 100;
+
+    /**
+     * Adds to the operations the insertion of the images found in the content of a new entry, and of their download tasks if they
+     * are to be downloaded
+     *
+     * @param entryInsertIndex the index of the operation inserting the entry, which gives its id
+     */
+    public static void addNewEntryImages(ArrayList<ContentProviderOperation> operations, int entryInsertIndex, ArrayList<String> imgUrls,
+                                         boolean download) {
+        if (imgUrls != null) {
+            for (String imgUrl : imgUrls) {
+                operations.add(ContentProviderOperation.newInsert(ImageColumns.CONTENT_URI)
+                        .withValues(newImageValues(imgUrl, download ? ImageColumns.STATE_QUEUED : ImageColumns.STATE_PENDING))
+                        .withValueBackReference(ImageColumns.ENTRY_ID, entryInsertIndex).build());
+                if (download) {
+                    operations.add(ContentProviderOperation.newInsert(TaskColumns.CONTENT_URI).withValue(TaskColumns.IMG_URL_TO_DL, imgUrl)
+                            .withValueBackReference(TaskColumns.ENTRY_ID, entryInsertIndex).build());
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #addNewEntryImages(ArrayList, int, ArrayList, boolean)} for an existing entry, the already known images are
+     * ignored
+     */
+    public static void addEntryImages(ArrayList<ContentProviderOperation> operations, long entryId, ArrayList<String> imgUrls, boolean download) {
+        if (imgUrls != null && !imgUrls.isEmpty()) {
+            for (String imgUrl : imgUrls) {
+                operations.add(ContentProviderOperation.newInsert(ImageColumns.IMAGES_FOR_ENTRY_CONTENT_URI(entryId))
+                        .withValues(newImageValues(imgUrl, ImageColumns.STATE_PENDING)).build());
+            }
+
+            if (download) {
+                StringBuilder where = new StringBuilder(ImageColumns.STATE).append('=').append(ImageColumns.STATE_PENDING).append(Constants.DB_AND)
+                        .append(ImageColumns.URL).append(" IN (");
+                for (int i = 0; i < imgUrls.size(); i++) {
+                    where.append(i == 0 ? "?" : ",?");
+                    operations.add(ContentProviderOperation.newInsert(TaskColumns.CONTENT_URI).withValue(TaskColumns.ENTRY_ID, entryId)
+                            .withValue(TaskColumns.IMG_URL_TO_DL, imgUrls.get(i)).build());
+                }
+                operations.add(ContentProviderOperation.newUpdate(ImageColumns.IMAGES_FOR_ENTRY_CONTENT_URI(entryId))
+                        .withValue(ImageColumns.STATE, ImageColumns.STATE_QUEUED)
+                        .withSelection(where.append(')').toString(), imgUrls.toArray(new String[imgUrls.size()])).build());
+            }
+        }
+    }
+
+    private static ContentValues newImageValues(String imgUrl, int state) {
+        ContentValues values = new ContentValues();
+        values.put(ImageColumns.URL, imgUrl);
+        values.put(ImageColumns.CACHE_KEY, NetworkUtils.getImageCacheKey(imgUrl));
+        values.put(ImageColumns.STATE, state);
+        return values;
+    }
+
+    /**
+     * @param imagesToDownload filled with the images which are neither downloaded nor queued
+     * @return the local url of the downloaded images of the entry, by image url
+     */
+    public static HashMap<String, String> getLocalImages(long entryId, ArrayList<String> imagesToDownload) {
+        HashMap<String, String> localUrls = new HashMap<>();
+
+        Cursor cursor = MainApplication.getContext().getContentResolver().query(ImageColumns.IMAGES_FOR_ENTRY_CONTENT_URI(entryId), PROJECTION_IMAGES,
+                null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                int state = cursor.getInt(2);
+                if (state == ImageColumns.STATE_DOWNLOADED) {
+                    localUrls.put(cursor.getString(0), Constants.FILE_SCHEME + NetworkUtils.getDownloadedImagePathFromKey(entryId, cursor.getString(1)));
+                } else if (state == ImageColumns.STATE_PENDING) {
+                    imagesToDownload.add(cursor.getString(0));
+                }
+            }
+            cursor.close();
+        }
+
+        if (!localUrls.isEmpty()) {
+            setImagesAccessed(entryId);
+        }
+
+        return localUrls;
+    }
+
+    /**
+     * Marks the downloaded images of the entry as just used, in background, so that they are the last ones to be evicted from the
+     * cache
+     */
+    private static void setImagesAccessed(final long entryId) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put(ImageColumns.LAST_ACCESS, System.currentTimeMillis());
+                MainApplication.getContext().getContentResolver().update(ImageColumns.IMAGES_FOR_ENTRY_CONTENT_URI(entryId), values,
+                        ImageColumns.WHERE_DOWNLOADED, null);
+            }
+        });
+    }
+
+    /**
+     * Creates the download tasks of the given images and starts the download, in background
+     */
+    public static void downloadImages(final long entryId, final ArrayList<String> imgUrls) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                FetcherService.addImagesToDownload(String.valueOf(entryId), imgUrls);
+                Context context = MainApplication.getContext();
+                context.startService(new Intent(context, FetcherService.class).setAction(FetcherService.ACTION_DOWNLOAD_IMAGES));
+            }
+        });
+    }
+
+    /**
+     * Deletes the cached images of the deleted entries (see {@link PurgedImageColumns}), by batches until the given duration is
+     * elapsed. The remaining ones are deleted by the next call.
+     */
+    public static void deletePurgedImages(long maxDuration) {
+        ContentResolver cr = MainApplication.getContext().getContentResolver();
+        long endTime = SystemClock.elapsedRealtime() + maxDuration;
+
+        boolean hasMore;
+        do {
+            Cursor cursor = cr.query(FeedData.withLimit(PurgedImageColumns.CONTENT_URI, PURGE_BATCH_SIZE), PROJECTION_PURGED_IMAGES, null, null,
+                    PurgedImageColumns._ID);
+            if (cursor == null) {
+                return;
+            }
+
+            long lastId = -1;
+            hasMore = cursor.getCount() == PURGE_BATCH_SIZE;
+            while (cursor.moveToNext()) {
+                new File(NetworkUtils.getDownloadedImagePathFromKey(cursor.getLong(1), cursor.getString(2))).delete();
+                lastId = cursor.getLong(0);
+            }
+            cursor.close();
+
+            if (lastId != -1) {
+                cr.delete(PurgedImageColumns.CONTENT_URI, PurgedImageColumns._ID + "<=" + lastId, null);
+            }
+        } while (hasMore && SystemClock.elapsedRealtime() < endTime);
+    }
+
+    /**
+     * Deletes the least recently used downloaded images until the cache fits in maxSize. The images of the favorite entries are
+     * only evicted beyond favoritesQuota, the other ones being evicted first. The evicted images are downloaded again if their
+     * entry is displayed.
+     */
+    public static void trimCache(long maxSize, long favoritesQuota) {
+        Cursor cursor = MainApplication.getContext().getContentResolver().query(ImageColumns.CONTENT_URI, PROJECTION_CACHE_SIZE,
+                ImageColumns.WHERE_DOWNLOADED, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        long size = 0, favoritesSize = 0;
+        if (cursor.moveToFirst()) {
+            size = cursor.getLong(0);
+            favoritesSize = cursor.getLong(1);
+        }
+        cursor.close();
+
+        if (favoritesSize > favoritesQuota) {
+            long evictedSize = evictImages(ImageColumns.WHERE_FAVORITE_ENTRY, favoritesSize - favoritesQuota);
+            size -= evictedSize;
+        }
+        if (size > maxSize) {
+            evictImages(WHERE_NOT_FAVORITE_ENTRY, size - maxSize);
+        }
+    }
+
+    /**
+     * @return the size of the deleted images, which is at least sizeToEvict unless there is no more image matching the selection
+     */
+    private static long evictImages(String selection, long sizeToEvict) {
+        ContentResolver cr = MainApplication.getContext().getContentResolver();
+        String where = ImageColumns.WHERE_DOWNLOADED + Constants.DB_AND + selection;
+
+        ContentValues values = new ContentValues();
+        values.put(ImageColumns.STATE, ImageColumns.STATE_PENDING);
+        values.putNull(ImageColumns.SIZE);
+        values.putNull(ImageColumns.LAST_ACCESS);
+
+        long evictedSize = 0;
+        boolean hasMore = true;
+        while (hasMore && evictedSize < sizeToEvict) {
+            Cursor cursor = cr.query(FeedData.withLimit(ImageColumns.CONTENT_URI, EVICTION_BATCH_SIZE), PROJECTION_EVICTED_IMAGES, where, null,
+                    ImageColumns.LAST_ACCESS + Constants.DB_ASC + ", " + ImageColumns._ID);
+            if (cursor == null) {
+                break;
+            }
+
+            hasMore = cursor.getCount() == EVICTION_BATCH_SIZE;
+            StringBuilder ids = new StringBuilder();
+            while (evictedSize < sizeToEvict && cursor.moveToNext()) {
+                new File(NetworkUtils.getDownloadedImagePathFromKey(cursor.getLong(1), cursor.getString(2))).delete();
+                evictedSize += cursor.getLong(3);
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(cursor.getLong(0));
+            }
+            cursor.close();
+
+            if (ids.length() == 0) {
+                break;
+            }
+            cr.update(ImageColumns.CONTENT_URI, values, ImageColumns._ID + " IN (" + ids + ')', null);
+        }
+
+        return evictedSize;
+    }
+
+    public static ContentProviderOperation newStateUpdate(long entryId, String imgUrl, int state) {
+        return newStateUpdate(entryId, imgUrl, state, 0, 0, 0);
+    }
+
+    /**
+     * @param width  the width of the downloaded image, or 0 if unknown
+     * @param height the height of the downloaded image, or 0 if unknown
+     * @param size   the size of the downloaded file, in bytes
+     */
+    public static ContentProviderOperation newStateUpdate(long entryId, String imgUrl, int state, int width, int height, long size) {
+        ContentValues values = new ContentValues();
+        values.put(ImageColumns.STATE, state);
+        if (width > 0 && height > 0) {
+            values.put(ImageColumns.WIDTH, width);
+            values.put(ImageColumns.HEIGHT, height);
+        }
+        if (state == ImageColumns.STATE_DOWNLOADED) {
+            values.put(ImageColumns.SIZE, size);
+            values.put(ImageColumns.LAST_ACCESS, System.currentTimeMillis());
+        }
+
+        return ContentProviderOperation.newUpdate(ImageColumns.IMAGES_FOR_ENTRY_CONTENT_URI(entryId)).withValues(values)
+                .withSelection(ImageColumns.URL + "=?", new String[]{imgUrl}).build();
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.utils;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Reduces the downloaded images to the size at which they are displayed, so that displaying them doesn't need to decode
+ * multi-megapixel files. Done by the download threads, before the image is put in the cache.
+ */
+public class ImageTranscoder {
+
+    // The images which aren't larger than the screen are kept as they are below this file size
+    private static final long KEEP_ORIGINAL_MAX_SIZE = 100 * 1024;
+    private static final int QUALITY = 80;
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+    private static final String MIME_TYPE_PNG = "image/png";
+
+    /**
+     * Writes into destFile a WebP version of the image of srcFile, no larger than the screen
+     *
+     * @return false if the image should be kept as it is (already small, animated or in an unknown format), destFile is not
+     * written in this case
+     */
+    public static boolean transcode(File srcFile, File destFile) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(srcFile.getPath(), options);
+
+        // GIF images can be animated, and the other formats are rare enough
+        boolean isJpeg = MIME_TYPE_JPEG.equals(options.outMimeType);
+        if ((!isJpeg && !MIME_TYPE_PNG.equals(options.outMimeType)) || options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+
+        int maxDimension = getMaxDimension();
+        int largestDimension = Math.max(options.outWidth, options.outHeight);
+        if (largestDimension <= maxDimension && srcFile.length() <= KEEP_ORIGINAL_MAX_SIZE) {
+            return false;
+        }
+
+        // Only the needed pixels are decoded (still at least as many as the screen ones), to bound the used memory
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (largestDimension / (options.inSampleSize * 2) >= maxDimension) {
+            options.inSampleSize *= 2;
+        }
+        if (isJpeg) { // no alpha channel
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeFile(srcFile.getPath(), options);
+        if (bitmap == null) {
+            return false;
+        }
+
+        try {
+            int sampledLargestDimension = Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (sampledLargestDimension > maxDimension) {
+                float scale = (float) maxDimension / sampledLargestDimension;
+                Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                        Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+                if (scaledBitmap != bitmap) {
+                    bitmap.recycle();
+                    bitmap = scaledBitmap;
+                }
+            }
+
+            FileOutputStream output = new FileOutputStream(destFile);
+            try {
+                if (!bitmap.compress(Bitmap.CompressFormat.WEBP, QUALITY, output)) {
+                    throw new IOException("Cannot encode " + srcFile);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            bitmap.recycle();
+        }
+
+        // Not worth it
+        if (destFile.length() >= srcFile.length()) {
+            destFile.delete();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The images are at most displayed at the screen width, which is its largest dimension in landscape
+     */
+    private static int getMaxDimension() {
+        DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+        return Math.max(metrics.widthPixels, metrics.heightPixels);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.utils;
+
+import java.util.ArrayDeque;
+
+/**
+ * Aho-Corasick automaton which looks for many keywords at once, in a single pass over the text.
+ * Each keyword carries some flags and a match returns the union of the flags of all the keywords found.
+ * The keywords must all be added before the first match, then the matcher can be shared between threads.
+ */
+public class KeywordMatcher {
+
+    private final Node mRoot = new Node();
+    private volatile boolean mIsBuilt;
+
+    public void addKeyword(String keyword, int flags) {
+        if (mIsBuilt) {
+            throw new IllegalStateException("Keywords can't be added once the matcher has been used");
+        }
+
+        Node node = mRoot;
+        for (int i = 0; i < keyword.length(); i++) {
+            char c = keyword.charAt(i);
+            Node child = node.getChild(c);
+            if (child == null) {
+                child = node.addChild(c);
+            }
+            node = child;
+        }
+        node.flags |= flags;
+    }
+
+    /**
+     * @param stopFlags the search stops as soon as one of these flags is found
+     * @return the union of the flags of the found keywords
+     */
+    public int match(CharSequence text, int stopFlags) {
+        if (!mIsBuilt) {
+            build();
+        }
+
+        int result = mRoot.flags;
+        Node node = mRoot;
+        for (int i = 0; i < text.length() && (result & stopFlags) == 0; i++) {
+            char c = text.charAt(i);
+
+            Node next = node.getChild(c);
+            while (next == null && node != mRoot) {
+                node = node.fail;
+                next = node.getChild(c);
+            }
+            node = next != null ? next : mRoot;
+            result |= node.flags;
+        }
+
+        return result;
+    }
+
+    private synchronized void build() {
+        if (mIsBuilt) {
+            return;
+        }
+
+        // Breadth-first computation of the failure links, the flags of the suffixes are merged into each node
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        for (int i = 0; i < mRoot.childCount; i++) {
+            mRoot.children[i].fail = mRoot;
+            queue.add(mRoot.children[i]);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (int i = 0; i < node.childCount; i++) {
+                Node child = node.children[i];
+                char c = node.keys[i];
+
+                Node fail = node.fail;
+                while (fail != mRoot && fail.getChild(c) == null) {
+                    fail = fail.fail;
+                }
+                Node failChild = fail.getChild(c);
+                child.fail = failChild != null ? failChild : mRoot;
+                child.flags |= child.fail.flags;
+
+                queue.add(child);
+            }
+        }
+
+        mIsBuilt = true;
+    }
+
+    private static class Node {
+        private char[] keys = new char[2];
+        private Node[] children = new Node[2];
+        private int childCount;
+        private Node fail;
+        private int flags;
+
+        private Node getChild(char c) {
+            for (int i = 0; i < childCount; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node addChild(char c) {
+            if (childCount == keys.length) {
+                char[] newKeys = new char[childCount * 2];
+                Node[] newChildren = new Node[childCount * 2];
+                System.arraycopy(keys, 0, newKeys, 0, childCount);
+                System.arraycopy(children, 0, newChildren, 0, childCount);
+                keys = newKeys;
+                children = newChildren;
+            }
+            Node child = new Node();
+            keys[childCount] = c;
+            children[childCount] = child;
+            childCount++;
+            return child;
+        }
+    }
+}
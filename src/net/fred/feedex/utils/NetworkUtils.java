@@ -28,6 +28,7 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.text.Html;
+import android.text.TextUtils;
 
 import net.fred.feedex.Constants;
 import net.fred.feedex.MainApplication;
@@ -38,12 +39,15 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
 import okhttp3.OkUrlFactory;
 
@@ -53,14 +57,40 @@ public class NetworkUtils {
     public static final String IMAGE_FOLDER = IMAGE_FOLDER_FILE.getAbsolutePath() + '/';
     public static final String TEMP_PREFIX = "TEMP__";
     public static final String ID_SEPARATOR = "__";
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
 
     private static final String FILE_FAVICON = "/favicon.ico";
+    private static final String TRANSCODED_SUFFIX = "__transcoded";
     private static final String PROTOCOL_SEPARATOR = "://";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+    private static final int TIMEOUT = 30000;
+    private static final int IMAGE_BUFFER_SIZE = 16 * 1024;
 
     private static final CookieManager COOKIE_MANAGER = new CookieManager() {{
         CookieHandler.setDefault(this);
     }};
 
+    // Shared by all the requests of the app to reuse the pooled connections, the TLS sessions and the HTTP/2 streams.
+    // Gzip is transparently negotiated and decoded by OkHttp as long as nobody sets the "Accept-Encoding" header.
+    private static final OkHttpClient HTTP_CLIENT;
+    private static final OkUrlFactory URL_FACTORY;
+
+    static {
+        HTTP_CLIENT = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                .connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                .readTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                .followRedirects(true)
+                .followSslRedirects(true)
+                .build();
+        URL_FACTORY = new OkUrlFactory(HTTP_CLIENT);
+    }
+
     public static String getDownloadedOrDistantImageUrl(long entryId, String imgUrl) {
         File dlImgFile = new File(NetworkUtils.getDownloadedImagePath(entryId, imgUrl));
         if (dlImgFile.exists()) {
@@ -71,19 +101,35 @@ public class NetworkUtils {
     }
 
     public static String getDownloadedImagePath(long entryId, String imgUrl) {
-        return IMAGE_FOLDER + entryId + ID_SEPARATOR + StringUtils.getMd5(imgUrl);
+        return getDownloadedImagePathFromKey(entryId, getImageCacheKey(imgUrl));
+    }
+
+    /**
+     * The cache key of an image, which is stored with the entry images to avoid computing it again
+     */
+    public static String getImageCacheKey(String imgUrl) {
+        return StringUtils.getMd5(imgUrl);
+    }
+
+    public static String getDownloadedImagePathFromKey(long entryId, String cacheKey) {
+        return IMAGE_FOLDER + entryId + ID_SEPARATOR + cacheKey;
     }
 
     private static String getTempDownloadedImagePath(long entryId, String imgUrl) {
         return IMAGE_FOLDER + TEMP_PREFIX + entryId + ID_SEPARATOR + StringUtils.getMd5(imgUrl);
     }
 
-    public static void downloadImage(long entryId, String imgUrl) throws IOException {
+    /**
+     * Downloads the image into the cache, the download can be stopped by interrupting the calling thread
+     */
+    public static void downloadImage(long entryId, String imgUrl, BandwidthLimiter bandwidthLimiter) throws IOException {
         String tempImgPath = getTempDownloadedImagePath(entryId, imgUrl);
         String finalImgPath = getDownloadedImagePath(entryId, imgUrl);
 
         if (!new File(tempImgPath).exists() && !new File(finalImgPath).exists()) {
             HttpURLConnection imgURLConnection = null;
+            FileOutputStream fileOutput = null;
+            InputStream inputStream = null;
             try {
                 IMAGE_FOLDER_FILE.mkdir(); // create images dir
 
@@ -91,23 +137,56 @@ public class NetworkUtils {
                 String realUrl = Html.fromHtml(imgUrl).toString();
                 imgURLConnection = setupConnection(realUrl);
 
-                FileOutputStream fileOutput = new FileOutputStream(tempImgPath);
-                InputStream inputStream = imgURLConnection.getInputStream();
+                fileOutput = new FileOutputStream(tempImgPath);
+                inputStream = imgURLConnection.getInputStream();
 
-                byte[] buffer = new byte[2048];
+                byte[] buffer = new byte[IMAGE_BUFFER_SIZE];
                 int bufferLength;
                 while ((bufferLength = inputStream.read(buffer)) > 0) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException();
+                    }
+                    if (bandwidthLimiter != null) {
+                        bandwidthLimiter.consume(bufferLength);
+                    }
                     fileOutput.write(buffer, 0, bufferLength);
                 }
-                fileOutput.flush();
                 fileOutput.close();
-                inputStream.close();
+                fileOutput = null;
+
+                File imgFile = new File(tempImgPath);
+                File transcodedImgFile = new File(tempImgPath + TRANSCODED_SUFFIX);
+                try {
+                    if (ImageTranscoder.transcode(imgFile, transcodedImgFile)) {
+                        imgFile.delete();
+                        imgFile = transcodedImgFile;
+                    }
+                } catch (IOException | OutOfMemoryError e) { // the original image is kept
+                    transcodedImgFile.delete();
+                }
 
-                new File(tempImgPath).renameTo(new File(finalImgPath));
+                imgFile.renameTo(new File(finalImgPath));
+            } catch (InterruptedException e) {
+                new File(tempImgPath).delete();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
             } catch (IOException e) {
                 new File(tempImgPath).delete();
                 throw e;
             } finally {
+                if (fileOutput != null) {
+                    try {
+                        fileOutput.close();
+                    } catch (IOException ignored) {
+                    }
+                    new File(tempImgPath).delete();
+                }
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException ignored) {
+                    }
+                }
                 if (imgURLConnection != null) {
                     imgURLConnection.disconnect();
                 }
@@ -115,35 +194,32 @@ public class NetworkUtils {
         }
     }
 
-    public static synchronized void deleteEntriesImagesCache(long keepDateBorderTime) {
-        if (IMAGE_FOLDER_FILE.exists()) {
-
-            // We need to exclude favorite entries images to this cleanup
-            Cursor cursor = MainApplication.getContext().getContentResolver().query(FeedData.EntryColumns.FAVORITES_CONTENT_URI, FeedData.EntryColumns.PROJECTION_ID, null, null, null);
+    /**
+     * Deletes the cached images of the entries which don't exist anymore, by listing the cache. It is normally cleaned from the
+     * purged images instead (see {@link ImageManifest#deletePurgedImages(long)}), this is only needed once for the images cached
+     * before they were tracked.
+     */
+    public static synchronized void deleteOrphanImages() {
+        File[] files = IMAGE_FOLDER_FILE.listFiles();
+        if (files != null && files.length > 0) {
+            Cursor cursor = MainApplication.getContext().getContentResolver().query(FeedData.EntryColumns.CONTENT_URI, FeedData.EntryColumns.PROJECTION_ID, null, null, null);
             if (cursor != null) {
-                HashSet<Long> favIds = new HashSet<>();
+                HashSet<String> entryIds = new HashSet<>();
                 while (cursor.moveToNext()) {
-                    favIds.add(cursor.getLong(0));
+                    entryIds.add(cursor.getString(0));
                 }
+                cursor.close();
 
-                File[] files = IMAGE_FOLDER_FILE.listFiles();
-                if (files != null) {
-                    for (File file : files) {
-                        if (file.lastModified() < keepDateBorderTime) {
-                            boolean isAFavoriteEntryImage = false;
-                            for (Long favId : favIds) {
-                                if (file.getName().startsWith(favId + ID_SEPARATOR)) {
-                                    isAFavoriteEntryImage = true;
-                                    break;
-                                }
-                            }
-                            if (!isAFavoriteEntryImage) {
-                                file.delete();
-                            }
-                        }
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.startsWith(TEMP_PREFIX)) {
+                        name = name.substring(TEMP_PREFIX.length());
+                    }
+                    int separatorPos = name.indexOf(ID_SEPARATOR);
+                    if (separatorPos == -1 || !entryIds.contains(name.substring(0, separatorPos))) {
+                        file.delete();
                     }
                 }
-                cursor.close();
             }
         }
     }
@@ -207,6 +283,7 @@ public class NetworkUtils {
                     if (bitmap.getWidth() != 0 && bitmap.getHeight() != 0) {
                         ContentValues values = new ContentValues();
                         values.put(FeedData.FeedColumns.ICON, iconBytes);
+                        values.put(FeedData.FeedColumns.ICON_VERSION, System.currentTimeMillis());
                         context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
                         success = true;
                     }
@@ -224,6 +301,7 @@ public class NetworkUtils {
             // no icon found or error
             ContentValues values = new ContentValues();
             values.putNull(FeedData.FeedColumns.ICON);
+            values.putNull(FeedData.FeedColumns.ICON_VERSION);
             context.getContentResolver().update(FeedData.FeedColumns.CONTENT_URI(id), values, null, null);
         }
     }
@@ -233,19 +311,43 @@ public class NetworkUtils {
     }
 
     public static HttpURLConnection setupConnection(URL url) throws IOException {
-        HttpURLConnection connection = new OkUrlFactory(new OkHttpClient()).open(url);
+        return setupConnection(url, null, null);
+    }
+
+    /**
+     * Same as {@link #setupConnection(URL)} but sends the given validators so that the server can answer with a
+     * "304 Not Modified" when the content did not change since the last fetch.
+     */
+    public static HttpURLConnection setupConnection(URL url, String etag, String lastModified) throws IOException {
+        HttpURLConnection connection = openConnection(url, etag, lastModified);
+        connection.connect();
+
+        return connection;
+    }
+
+    /**
+     * Same as {@link #setupConnection(URL, String, String)} but doesn't connect, so that the connection can be disconnected by
+     * another thread if connecting hangs
+     */
+    public static HttpURLConnection openConnection(URL url, String etag, String lastModified) throws IOException {
+        HttpURLConnection connection = URL_FACTORY.open(url);
 
         connection.setDoInput(true);
         connection.setDoOutput(false);
         connection.setRequestProperty("User-agent", "Mozilla/5.0 (compatible) AppleWebKit Chrome Safari"); // some feeds need this to work properly
-        connection.setConnectTimeout(30000);
-        connection.setReadTimeout(30000);
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
         connection.setUseCaches(false);
         connection.setInstanceFollowRedirects(true);
         connection.setRequestProperty("accept", "*/*");
+        if (!TextUtils.isEmpty(etag)) {
+            connection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (!TextUtils.isEmpty(lastModified)) {
+            connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
 
         COOKIE_MANAGER.getCookieStore().removeAll(); // Cookie is important for some sites, but we clean them each times
-        connection.connect();
 
         return connection;
     }
@@ -0,0 +1,60 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.fred.feedex.utils;
+
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of simultaneous requests done to the same host, in order to not hammer a server which hosts many of our urls
+ */
+public class PerHostLimiter {
+
+    private final int mMaxPerHost;
+    private final HashMap<String, Semaphore> mSemaphores = new HashMap<>();
+
+    public PerHostLimiter(int maxPerHost) {
+        mMaxPerHost = maxPerHost;
+    }
+
+    public static String getHost(String url) {
+        String host = url != null ? Uri.parse(url).getHost() : null;
+        return host != null ? host.toLowerCase() : "";
+    }
+
+    public void acquire(String url) throws InterruptedException {
+        getSemaphore(getHost(url)).acquire();
+    }
+
+    public void release(String url) {
+        getSemaphore(getHost(url)).release();
+    }
+
+    private synchronized Semaphore getSemaphore(String host) {
+        Semaphore semaphore = mSemaphores.get(host);
+        if (semaphore == null) {
+            semaphore = new Semaphore(mMaxPerHost, true);
+            mSemaphores.put(host, semaphore);
+        }
+        return semaphore;
+    }
+}
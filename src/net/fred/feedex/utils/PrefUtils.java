@@ -31,6 +31,7 @@ public class PrefUtils {
     public static final String DISPLAY_TIP = "DISPLAY_TIP";
 
     public static final String IS_REFRESHING = "IS_REFRESHING";
+    public static final String IMAGES_CACHE_INDEXED = "IMAGES_CACHE_INDEXED";
 
     public static final String REFRESH_INTERVAL = "refresh.interval";
     public static final String REFRESH_ENABLED = "refresh.enabled";
@@ -49,6 +50,7 @@ public class PrefUtils {
     public static final String DISPLAY_ENTRIES_FULLSCREEN = "display_entries_fullscreen";
 
     public static final String KEEP_TIME = "keeptime";
+    public static final String IMAGES_CACHE_SIZE = "images_cache_size";
 
     public static final String FONT_SIZE = "fontsize";
 
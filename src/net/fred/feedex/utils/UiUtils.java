@@ -26,17 +26,28 @@ import android.graphics.BitmapFactory;
 import android.support.annotation.NonNull;
 import android.support.annotation.StringRes;
 import android.support.design.widget.Snackbar;
-import android.support.v4.util.LongSparseArray;
+import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.View;
 import android.widget.ListView;
 
 import net.fred.feedex.MainApplication;
 import net.fred.feedex.R;
+import net.fred.feedex.provider.FeedData.FeedColumns;
 
 public class UiUtils {
 
-    static private final LongSparseArray<Bitmap> FAVICON_CACHE = new LongSparseArray<>();
+    static private final int FAVICON_SIZE_DP = 18;
+    static private final int FAVICON_CACHE_SIZE = 2 * 1024 * 1024; // in bytes
+    static private final String[] PROJECTION_ICON = new String[]{FeedColumns.ICON};
+
+    // The decoded favicons of the feeds, shared by all the screens (and the widget)
+    static private final LruCache<Long, Favicon> FAVICON_CACHE = new LruCache<Long, Favicon>(FAVICON_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long feedId, Favicon favicon) {
+            return favicon.bitmap != null ? favicon.bitmap.getByteCount() : 1;
+        }
+    };
 
     static public void setPreferenceTheme(Activity a) {
         if (!PrefUtils.getBoolean(PrefUtils.LIGHT_THEME, false)) {
@@ -66,16 +77,42 @@ public class UiUtils {
         snackbar.show();
     }
 
-    static public Bitmap getFaviconBitmap(long feedId, Cursor cursor, int iconCursorPos) {
-        Bitmap bitmap = UiUtils.FAVICON_CACHE.get(feedId);
-        if (bitmap == null) {
-            byte[] iconBytes = cursor.getBlob(iconCursorPos);
-            if (iconBytes != null && iconBytes.length > 0) {
-                bitmap = UiUtils.getScaledBitmap(iconBytes, 18);
-                UiUtils.FAVICON_CACHE.put(feedId, bitmap);
+    /**
+     * Returns the favicon of a feed, the icon is only read from the database when it is not already in the cache
+     *
+     * @param iconVersion the {@link FeedColumns#ICON_VERSION} of the feed, 0 if it has no icon
+     */
+    static public Bitmap getFaviconBitmap(long feedId, long iconVersion) {
+        return getFaviconBitmap(feedId, iconVersion, null, -1);
+    }
+
+    /**
+     * Same as {@link #getFaviconBitmap(long, long)}, but takes the icon from the given feeds cursor when needed
+     */
+    static public Bitmap getFaviconBitmap(long feedId, long iconVersion, Cursor cursor, int iconCursorPos) {
+        if (iconVersion == 0) {
+            return null;
+        }
+
+        Favicon favicon = FAVICON_CACHE.get(feedId);
+        if (favicon == null || favicon.version != iconVersion) {
+            byte[] iconBytes = cursor != null ? cursor.getBlob(iconCursorPos) : getFaviconBytes(feedId);
+            favicon = new Favicon(iconVersion, getScaledBitmap(iconBytes, FAVICON_SIZE_DP));
+            FAVICON_CACHE.put(feedId, favicon);
+        }
+        return favicon.bitmap;
+    }
+
+    static private byte[] getFaviconBytes(long feedId) {
+        byte[] iconBytes = null;
+        Cursor cursor = MainApplication.getContext().getContentResolver().query(FeedColumns.CONTENT_URI(feedId), PROJECTION_ICON, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                iconBytes = cursor.getBlob(0);
             }
+            cursor.close();
         }
-        return bitmap;
+        return iconBytes;
     }
 
     static public Bitmap getScaledBitmap(byte[] iconBytes, int sizeInDp) {
@@ -95,4 +132,14 @@ public class UiUtils {
 
         return null;
     }
+
+    static private class Favicon {
+        final long version;
+        final Bitmap bitmap; // null if the icon cannot be decoded
+
+        Favicon(long version, Bitmap bitmap) {
+            this.version = version;
+            this.bitmap = bitmap;
+        }
+    }
 }
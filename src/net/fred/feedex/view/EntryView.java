@@ -64,10 +64,13 @@ import net.fred.feedex.Constants;
 import net.fred.feedex.R;
 import net.fred.feedex.utils.FileUtils;
 import net.fred.feedex.utils.HtmlUtils;
+import net.fred.feedex.utils.ImageManifest;
+import net.fred.feedex.utils.NetworkUtils;
 import net.fred.feedex.utils.PrefUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 
 public class EntryView extends WebView {
@@ -143,7 +146,11 @@ public class EntryView extends WebView {
 
     public void setHtml(long entryId, String title, String link, String contentText, String enclosure, String author, long timestamp, boolean preferFullText) {
         if (PrefUtils.getBoolean(PrefUtils.DISPLAY_IMAGES, true)) {
-            contentText = HtmlUtils.replaceImageURLs(contentText, entryId);
+            ArrayList<String> imagesToDownload = new ArrayList<>();
+            contentText = HtmlUtils.replaceImageURLs(contentText, ImageManifest.getLocalImages(entryId, imagesToDownload));
+            if (!imagesToDownload.isEmpty() && NetworkUtils.needDownloadPictures()) {
+                ImageManifest.downloadImages(entryId, imagesToDownload);
+            }
             if (getSettings().getBlockNetworkImage()) {
                 // setBlockNetworkImage(false) calls postSync, which takes time, so we clean up the html first and change the value afterwards
                 loadData("", TEXT_HTML, Constants.UTF8);
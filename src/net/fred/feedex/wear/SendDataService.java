@@ -61,7 +61,7 @@ public class SendDataService extends WearableListenerService {
         putDataMapRequest.getDataMap().putLong(DATE_KEY, SystemClock.elapsedRealtime());
 
         long nbUnread = 0;
-        Cursor unread = getContentResolver().query(FeedData.EntryColumns.CONTENT_URI, new String[]{FeedData.ALL_UNREAD_NUMBER}, null, null, null);
+        Cursor unread = getContentResolver().query(FeedData.CounterColumns.CONTENT_URI, new String[]{FeedData.CounterColumns.ALL_UNREAD_NUMBER}, null, null, null);
         if (unread != null) {
             if (unread.moveToFirst()) {
                 nbUnread = unread.getLong(0);
@@ -63,7 +63,7 @@ public class TickerWidgetService extends Service {
         RemoteViews widget = new RemoteViews(getPackageName(), R.layout.ticker_widget);
         widget.setOnClickPendingIntent(R.id.feed_ticker_tap_area, PendingIntent.getActivity(this, 0, new Intent(this, HomeActivity.class), 0));
 
-        Cursor unread = getContentResolver().query(FeedData.EntryColumns.CONTENT_URI, new String[]{FeedData.ALL_UNREAD_NUMBER}, null, null, null);
+        Cursor unread = getContentResolver().query(FeedData.CounterColumns.CONTENT_URI, new String[]{FeedData.CounterColumns.ALL_UNREAD_NUMBER}, null, null, null);
         if (unread != null) {
             if (unread.moveToFirst()) {
                 int unread_count = unread.getInt(0);
@@ -25,7 +25,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
@@ -36,6 +35,7 @@ import net.fred.feedex.provider.FeedData;
 import net.fred.feedex.provider.FeedData.EntryColumns;
 import net.fred.feedex.utils.PrefUtils;
 import net.fred.feedex.utils.ThrottledContentObserver;
+import net.fred.feedex.utils.UiUtils;
 
 public class WidgetService extends RemoteViewsService {
     @Override
@@ -96,14 +96,9 @@ class WidgetFeedsFactory implements RemoteViewsService.RemoteViewsFactory {
             row.setImageViewResource(android.R.id.icon, R.mipmap.ic_launcher);
             if (!mCursor.isNull(2)) {
                 try {
-                    byte[] iconBytes = mCursor.getBlob(2);
-
-                    if (iconBytes != null && iconBytes.length > 0) {
-                        Bitmap bitmap = BitmapFactory.decodeByteArray(iconBytes, 0, iconBytes.length);
-
-                        if (bitmap != null) {
-                            row.setImageViewBitmap(android.R.id.icon, bitmap);
-                        }
+                    Bitmap bitmap = UiUtils.getFaviconBitmap(mCursor.getLong(3), mCursor.getLong(2));
+                    if (bitmap != null) {
+                        row.setImageViewBitmap(android.R.id.icon, bitmap);
                     }
                 } catch (Throwable ignored) {
                 }
@@ -152,7 +147,7 @@ class WidgetFeedsFactory implements RemoteViewsService.RemoteViewsFactory {
         }
 
         ContentResolver cr = mContext.getContentResolver();
-        mCursor = cr.query(EntryColumns.CONTENT_URI, new String[]{EntryColumns.TITLE, EntryColumns._ID, FeedData.FeedColumns.ICON}, selection.toString(), null,
-                EntryColumns.DATE + Constants.DB_DESC);
+        mCursor = cr.query(EntryColumns.CONTENT_URI, new String[]{EntryColumns.TITLE, EntryColumns._ID, FeedData.FeedColumns.ICON_VERSION,
+                EntryColumns.FEED_ID}, selection.toString(), null, EntryColumns.DATE + Constants.DB_DESC);
     }
 }
\ No newline at end of file
@@ -0,0 +1,207 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package net.fred.feedex.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.fred.feedex.MainApplication;
+import net.fred.feedex.provider.FeedData.CounterColumns;
+import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.FeedColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that the counters maintained by the triggers always match the entries, through the provider
+ */
+@RunWith(AndroidJUnit4.class)
+public class CountersConsistencyTest {
+
+    private static final String[] PROJECTION_COUNTERS = new String[]{CounterColumns.UNREAD, CounterColumns.FAVORITES};
+    private static final String[] PROJECTION_ENTRIES = new String[]{EntryColumns.IS_READ, EntryColumns.IS_FAVORITE};
+
+    private ContentResolver mContentResolver;
+    private long mFeedId;
+
+    @Before
+    public void setUp() {
+        mContentResolver = MainApplication.getContext().getContentResolver();
+        mFeedId = addFeed();
+    }
+
+    @After
+    public void tearDown() {
+        mContentResolver.delete(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), null, null);
+        mContentResolver.delete(FeedColumns.CONTENT_URI(mFeedId), null, null);
+    }
+
+    @Test
+    public void countsTheInsertedEntries() {
+        addEntry("1", false, false);
+        addEntry("2", false, true);
+        addEntry("3", true, false);
+        addEntry("4", true, true);
+        assertCounters(2, 2);
+
+        // Already known, ignored by the dedup key index
+        addEntry("1", false, true);
+        assertCounters(2, 2);
+
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = newEntryValues("bulk" + i, false, i == 0);
+        }
+        mContentResolver.bulkInsert(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), values);
+        assertCounters(5, 3);
+    }
+
+    @Test
+    public void followsTheReadAndFavoriteChanges() {
+        long entryId1 = addEntry("1", false, false);
+        long entryId2 = addEntry("2", true, true);
+        addEntry("3", false, true);
+
+        mContentResolver.update(EntryColumns.CONTENT_URI(entryId1), FeedData.getReadContentValues(), null, null);
+        assertCounters(1, 2);
+
+        // Already read, nothing changes
+        mContentResolver.update(EntryColumns.CONTENT_URI(entryId1), FeedData.getReadContentValues(), null, null);
+        assertCounters(1, 2);
+
+        mContentResolver.update(EntryColumns.CONTENT_URI(entryId2), FeedData.getUnreadContentValues(), null, null);
+        assertCounters(2, 2);
+
+        ContentValues values = new ContentValues();
+        values.put(EntryColumns.IS_FAVORITE, 0);
+        mContentResolver.update(EntryColumns.CONTENT_URI(entryId2), values, null, null);
+        assertCounters(2, 1);
+
+        values.put(EntryColumns.IS_FAVORITE, 1);
+        mContentResolver.update(EntryColumns.CONTENT_URI(entryId1), values, null, null);
+        assertCounters(2, 2);
+
+        // Mark all as read
+        mContentResolver.update(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), FeedData.getReadContentValues(), EntryColumns.WHERE_UNREAD, null);
+        assertCounters(0, 2);
+    }
+
+    @Test
+    public void followsTheDeletedEntries() {
+        long entryId1 = addEntry("1", false, true);
+        addEntry("2", false, false);
+        addEntry("3", true, false);
+
+        mContentResolver.delete(EntryColumns.CONTENT_URI(entryId1), null, null);
+        assertCounters(1, 0);
+
+        mContentResolver.delete(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), null, null);
+        assertCounters(0, 0);
+    }
+
+    @Test
+    public void keepsTheOtherFeedsCounters() {
+        long otherFeedId = addFeed();
+        try {
+            addEntry("1", false, true);
+            mContentResolver.insert(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(otherFeedId), newEntryValues("1", false, false));
+
+            mContentResolver.delete(FeedColumns.CONTENT_URI(otherFeedId), null, null);
+
+            assertFalse(hasCounters(otherFeedId));
+            assertCounters(1, 1);
+        } finally {
+            mContentResolver.delete(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(otherFeedId), null, null);
+        }
+    }
+
+    private long addFeed() {
+        ContentValues values = new ContentValues();
+        values.put(FeedColumns.URL, "http://localhost/" + System.nanoTime() + "/feed.xml");
+        values.put(FeedColumns.NAME, "CountersConsistencyTest");
+        return ContentUris.parseId(mContentResolver.insert(FeedColumns.CONTENT_URI, values));
+    }
+
+    private long addEntry(String guid, boolean read, boolean favorite) {
+        return ContentUris.parseId(mContentResolver.insert(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), newEntryValues(guid, read, favorite)));
+    }
+
+    private static ContentValues newEntryValues(String guid, boolean read, boolean favorite) {
+        ContentValues values = new ContentValues();
+        values.put(EntryColumns.TITLE, "Entry " + guid);
+        values.put(EntryColumns.GUID, guid);
+        values.put(EntryColumns.LINK, "http://localhost/" + guid);
+        values.put(EntryColumns.DATE, System.currentTimeMillis());
+        if (read) {
+            values.put(EntryColumns.IS_READ, 1);
+        }
+        if (favorite) {
+            values.put(EntryColumns.IS_FAVORITE, 1);
+        }
+        return values;
+    }
+
+    /**
+     * Checks the expected numbers against both the counters and a count of the entries
+     */
+    private void assertCounters(int unread, int favorites) {
+        int countedUnread = 0, countedFavorites = 0;
+        Cursor cursor = mContentResolver.query(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), PROJECTION_ENTRIES, null, null, null);
+        while (cursor.moveToNext()) {
+            if (cursor.isNull(0) || cursor.getInt(0) == 0) {
+                countedUnread++;
+            }
+            if (!cursor.isNull(1) && cursor.getInt(1) == 1) {
+                countedFavorites++;
+            }
+        }
+        cursor.close();
+        assertEquals(unread, countedUnread);
+        assertEquals(favorites, countedFavorites);
+
+        cursor = mContentResolver.query(CounterColumns.CONTENT_URI, PROJECTION_COUNTERS, CounterColumns.FEED_ID + '=' + mFeedId, null, null);
+        if (cursor.moveToFirst()) {
+            assertEquals(unread, cursor.getInt(0));
+            assertEquals(favorites, cursor.getInt(1));
+        } else { // no row until the first entry
+            assertEquals(0, unread);
+            assertEquals(0, favorites);
+        }
+        cursor.close();
+    }
+
+    private boolean hasCounters(long feedId) {
+        Cursor cursor = mContentResolver.query(CounterColumns.CONTENT_URI, PROJECTION_COUNTERS, CounterColumns.FEED_ID + '=' + feedId, null, null);
+        boolean hasCounters = cursor.moveToFirst();
+        cursor.close();
+        return hasCounters;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package net.fred.feedex.provider;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.fred.feedex.Constants;
+import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.TaskColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on the queries done on the entries through each provider uri, as the lists and the other callers do
+ * them, and fails if one of them reads the whole entries table instead of using an index
+ */
+@RunWith(AndroidJUnit4.class)
+public class EntriesQueryPlanTest {
+
+    // "SCAN TABLE entries" for the SQLite versions before 3.24, "SCAN entries" after. A scan of an index is walked in the
+    // requested order and stopped at the page limit.
+    private static final Pattern FULL_SCAN_PATTERN = Pattern.compile("^SCAN (TABLE )?" + EntryColumns.TABLE_NAME + "\\b(?!.* USING )");
+
+    private static final long ID = 1;
+    // Same selection than the entries list, which hides the entries fetched since it was displayed
+    private static final String LIST_SELECTION = "(" + EntryColumns.FETCH_DATE + Constants.DB_IS_NULL + Constants.DB_OR + EntryColumns.FETCH_DATE
+            + "<=" + System.currentTimeMillis() + ')';
+
+    private ContentProviderClient mProviderClient;
+    private FeedDataContentProvider mProvider;
+    private DatabaseHelper mDatabaseHelper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mProviderClient = context.getContentResolver().acquireContentProviderClient(FeedData.AUTHORITY);
+        mProvider = (FeedDataContentProvider) mProviderClient.getLocalContentProvider();
+        mDatabaseHelper = new DatabaseHelper(new Handler(Looper.getMainLooper()), context);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabaseHelper.close();
+        mProviderClient.close();
+    }
+
+    @Test
+    public void listsUseAnIndex() {
+        assertListUsesAnIndex(EntryColumns.CONTENT_URI);
+        assertListUsesAnIndex(EntryColumns.UNREAD_ENTRIES_CONTENT_URI);
+        assertListUsesAnIndex(EntryColumns.FAVORITES_CONTENT_URI);
+        assertListUsesAnIndex(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(ID));
+        assertListUsesAnIndex(EntryColumns.ENTRIES_FOR_GROUP_CONTENT_URI(ID));
+        assertListUsesAnIndex(EntryColumns.SEARCH_URI("android"));
+    }
+
+    @Test
+    public void entryUsesItsId() {
+        assertUsesAnIndex(EntryColumns.CONTENT_URI(ID), null, null);
+        assertUsesAnIndex(EntryColumns.UNREAD_ENTRIES_CONTENT_URI(String.valueOf(ID)), null, null);
+        assertUsesAnIndex(ContentUris.withAppendedId(EntryColumns.FAVORITES_CONTENT_URI, ID), null, null);
+        assertUsesAnIndex(ContentUris.withAppendedId(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(ID), ID), null, null);
+        assertUsesAnIndex(ContentUris.withAppendedId(EntryColumns.ENTRIES_FOR_GROUP_CONTENT_URI(ID), ID), null, null);
+        assertUsesAnIndex(ContentUris.withAppendedId(EntryColumns.SEARCH_URI("android"), ID), null, null);
+    }
+
+    @Test
+    public void backgroundQueriesUseAnIndex() {
+        // Mobilization of the entries which have a task
+        assertUsesAnIndex(EntryColumns.CONTENTS_CONTENT_URI, EntryColumns._ID + " IN (SELECT " + TaskColumns.ENTRY_ID + " FROM "
+                + TaskColumns.TABLE_NAME + " WHERE " + TaskColumns.IMG_URL_TO_DL + Constants.DB_IS_NULL + ')', null);
+        // Entries of the widget
+        assertUsesAnIndex(EntryColumns.CONTENT_URI, EntryColumns.FEED_ID + " IN (" + ID + ',' + (ID + 1) + ')', EntryColumns.DATE + Constants.DB_DESC);
+        // Latest publication dates of a feed, for its next refresh
+        assertUsesAnIndex(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(ID), null, EntryColumns.DATE + Constants.DB_DESC + " LIMIT 10");
+        // Mark a feed as read
+        assertUsesAnIndex(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(ID), EntryColumns.WHERE_UNREAD, null);
+    }
+
+    /**
+     * Checks the first page of the list and the next ones, in each order
+     */
+    private void assertListUsesAnIndex(Uri uri) {
+        String keyColumn = EntryColumns.KEYSET_COLUMN(uri);
+        Uri firstPageUri = FeedData.withLimit(uri, 50);
+        for (boolean oldestFirst : new boolean[]{false, true}) {
+            boolean ascending = EntryColumns.IS_KEYSET_ASCENDING(uri, oldestFirst);
+            String order = EntryColumns.KEYSET_ORDER(keyColumn, ascending);
+            String nextPageSelection = '(' + LIST_SELECTION + ')' + Constants.DB_AND + EntryColumns.WHERE_KEYSET(keyColumn, System.currentTimeMillis(),
+                    ID, ascending, false);
+
+            assertUsesAnIndex(firstPageUri, LIST_SELECTION, order);
+            assertUsesAnIndex(firstPageUri, nextPageSelection, order);
+        }
+    }
+
+    private void assertUsesAnIndex(Uri uri, String selection, String sortOrder) {
+        String query = mProvider.buildQuery(uri, null, selection, sortOrder);
+        SQLiteDatabase database = mDatabaseHelper.getReadableDatabase();
+
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        int detailPosition = cursor.getColumnIndex("detail");
+        assertTrue(cursor.getCount() > 0);
+        while (cursor.moveToNext()) {
+            String detail = cursor.getString(detailPosition);
+            assertFalse(uri + ": " + detail + " in " + query, FULL_SCAN_PATTERN.matcher(detail).find());
+        }
+        cursor.close();
+    }
+}
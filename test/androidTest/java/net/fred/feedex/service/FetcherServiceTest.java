@@ -0,0 +1,223 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package net.fred.feedex.service;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.fred.feedex.Constants;
+import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.FeedColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Refreshes a feed served by a local stand-in server, which answers with a "304 Not Modified" when the client sends back its
+ * validators
+ */
+@RunWith(AndroidJUnit4.class)
+public class FetcherServiceTest {
+
+    private static final String FEED_PATH = "/feed.xml";
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Sun, 01 Jan 2017 10:00:00 GMT";
+    private static final long REFRESH_TIMEOUT = 30000;
+    private static final String[] PROJECTION_FEED = new String[]{FeedColumns.ETAG, FeedColumns.LAST_MODIFIED, FeedColumns.FETCH_MODE,
+            FeedColumns.LAST_UPDATE, FeedColumns.REAL_LAST_UPDATE, FeedColumns.ERROR};
+
+    private final BlockingQueue<RecordedRequest> mFeedRequests = new LinkedBlockingQueue<>();
+    private Context mContext;
+    private ContentResolver mContentResolver;
+    private MockWebServer mServer;
+    private long mFeedId;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContentResolver = mContext.getContentResolver();
+
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (!FEED_PATH.equals(request.getPath())) { // favicon
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_FOUND);
+                }
+
+                mFeedRequests.add(request);
+                if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED).setHeader("ETag", ETAG);
+                }
+                return new MockResponse().setHeader("Content-Type", "application/rss+xml; charset=UTF-8").setHeader("ETag", ETAG)
+                        .setHeader("Last-Modified", LAST_MODIFIED).setBody(getFeed());
+            }
+        });
+        mServer.start();
+
+        ContentValues values = new ContentValues();
+        values.put(FeedColumns.URL, mServer.url(FEED_PATH).toString());
+        values.put(FeedColumns.NAME, "FetcherServiceTest");
+        mFeedId = ContentUris.parseId(mContentResolver.insert(FeedColumns.CONTENT_URI, values));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mContentResolver.delete(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), null, null);
+        mContentResolver.delete(FeedColumns.CONTENT_URI(mFeedId), null, null);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void skipsTheParsingWhenNotModified() throws InterruptedException {
+        // First refresh: nothing to send back, the validators of the answer are stored with the parsed entries
+        RecordedRequest request = refreshFeed();
+        assertNull(request.getHeader("If-None-Match"));
+        assertNull(request.getHeader("If-Modified-Since"));
+
+        Cursor cursor = queryFeed();
+        assertEquals(ETAG, cursor.getString(0));
+        assertEquals(LAST_MODIFIED, cursor.getString(1));
+        int fetchMode = cursor.getInt(2);
+        assertTrue(fetchMode != 0);
+        long lastUpdate = cursor.getLong(3);
+        long realLastUpdate = cursor.getLong(4);
+        assertNull(cursor.getString(5));
+        cursor.close();
+        assertEquals(1, getEntriesCount());
+
+        // Second refresh: the server answers 304 to the validators, only the update date changes
+        request = refreshFeed();
+        assertEquals(ETAG, request.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, request.getHeader("If-Modified-Since"));
+
+        cursor = queryFeed();
+        assertEquals(ETAG, cursor.getString(0));
+        assertEquals(LAST_MODIFIED, cursor.getString(1));
+        // A parsing of the empty answer would have failed, reset the fetch mode and set an error
+        assertEquals(fetchMode, cursor.getInt(2));
+        assertTrue(cursor.getLong(3) > lastUpdate);
+        assertEquals(realLastUpdate, cursor.getLong(4));
+        assertNull(cursor.getString(5));
+        cursor.close();
+        assertEquals(1, getEntriesCount());
+        assertEquals(0, mFeedRequests.size());
+    }
+
+    @Test
+    public void clearsThePreviousErrorWhenNotModified() throws InterruptedException {
+        refreshFeed();
+
+        // The previous refresh failed, but not its parsing: the fetch mode and the validators are kept
+        ContentValues values = new ContentValues();
+        values.put(FeedColumns.ERROR, "Connection reset");
+        mContentResolver.update(FeedColumns.CONTENT_URI(mFeedId), values, null, null);
+
+        RecordedRequest request = refreshFeed();
+        assertEquals(ETAG, request.getHeader("If-None-Match"));
+
+        Cursor cursor = queryFeed();
+        assertNull(cursor.getString(5));
+        cursor.close();
+    }
+
+    /**
+     * Starts the refresh of the feed and waits for its end
+     *
+     * @return the request received by the server for the feed
+     */
+    private RecordedRequest refreshFeed() throws InterruptedException {
+        ContentValues values = new ContentValues();
+        values.putNull(FeedColumns.NEXT_REFRESH_DATE);
+        mContentResolver.update(FeedColumns.CONTENT_URI(mFeedId), values, null, null);
+
+        mContext.startService(new Intent(mContext, FetcherService.class).setAction(FetcherService.ACTION_REFRESH_FEEDS)
+                .putExtra(Constants.FEED_ID, String.valueOf(mFeedId)));
+
+        RecordedRequest request = mFeedRequests.poll(REFRESH_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(request);
+
+        // The next refresh date is computed at the end of the refresh
+        long endTime = SystemClock.elapsedRealtime() + REFRESH_TIMEOUT;
+        while (!isRefreshScheduled()) {
+            assertTrue(SystemClock.elapsedRealtime() < endTime);
+            Thread.sleep(100);
+        }
+
+        return request;
+    }
+
+    private boolean isRefreshScheduled() {
+        Cursor cursor = mContentResolver.query(FeedColumns.CONTENT_URI(mFeedId), new String[]{FeedColumns.NEXT_REFRESH_DATE}, null, null, null);
+        boolean scheduled = cursor.moveToFirst() && !cursor.isNull(0);
+        cursor.close();
+        return scheduled;
+    }
+
+    private Cursor queryFeed() {
+        Cursor cursor = mContentResolver.query(FeedColumns.CONTENT_URI(mFeedId), PROJECTION_FEED, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        return cursor;
+    }
+
+    private int getEntriesCount() {
+        Cursor cursor = mContentResolver.query(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), new String[]{EntryColumns._ID}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private static String getFeed() {
+        String date = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US).format(new Date());
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><rss version=\"2.0\"><channel><title>Test</title>"
+                + "<item><title>Entry</title><link>http://localhost/entry</link><guid>entry</guid><pubDate>" + date + "</pubDate>"
+                + "<description>Content</description></item></channel></rss>";
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package net.fred.feedex.utils;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.fred.feedex.MainApplication;
+import net.fred.feedex.provider.FeedData.EntryColumns;
+import net.fred.feedex.provider.FeedData.FeedColumns;
+import net.fred.feedex.provider.FeedData.ImageColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ImageManifestTest {
+
+    private static final long IMAGE_SIZE = 100;
+
+    private ContentResolver mContentResolver;
+    private long mFeedId;
+    private long mCacheSize, mFavoritesSize;
+
+    @Before
+    public void setUp() {
+        mContentResolver = MainApplication.getContext().getContentResolver();
+
+        ContentValues values = new ContentValues();
+        values.put(FeedColumns.URL, "http://localhost/" + System.nanoTime() + "/feed.xml");
+        values.put(FeedColumns.NAME, "ImageManifestTest");
+        mFeedId = ContentUris.parseId(mContentResolver.insert(FeedColumns.CONTENT_URI, values));
+
+        // The images of the device are taken into account, the test ones are older so that they are evicted first
+        Cursor cursor = mContentResolver.query(ImageColumns.CONTENT_URI, new String[]{"IFNULL(SUM(" + ImageColumns.SIZE + "), 0)",
+                "IFNULL(SUM(CASE WHEN " + ImageColumns.WHERE_FAVORITE_ENTRY + " THEN " + ImageColumns.SIZE + " ELSE 0 END), 0)"},
+                ImageColumns.WHERE_DOWNLOADED, null, null);
+        cursor.moveToFirst();
+        mCacheSize = cursor.getLong(0);
+        mFavoritesSize = cursor.getLong(1);
+        cursor.close();
+
+        NetworkUtils.IMAGE_FOLDER_FILE.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        mContentResolver.delete(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), null, null);
+        mContentResolver.delete(FeedColumns.CONTENT_URI(mFeedId), null, null);
+        ImageManifest.deletePurgedImages(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedImagesFirst() throws IOException {
+        long entryId = addEntry(false);
+        File image1 = addImage(entryId, "1", 4);
+        File image2 = addImage(entryId, "2", 1);
+        File image3 = addImage(entryId, "3", 3);
+        File image4 = addImage(entryId, "4", 2);
+        long favoriteEntryId = addEntry(true);
+        File favoriteImage = addImage(favoriteEntryId, "1", 0);
+
+        ImageManifest.trimCache(mCacheSize + 3 * IMAGE_SIZE, Long.MAX_VALUE);
+
+        assertDownloaded(entryId, "1", image1);
+        assertEvicted(entryId, "2", image2);
+        assertDownloaded(entryId, "3", image3);
+        assertEvicted(entryId, "4", image4);
+        // The oldest one, but favorites are only evicted beyond their quota
+        assertDownloaded(favoriteEntryId, "1", favoriteImage);
+    }
+
+    @Test
+    public void evictsTheFavoritesBeyondTheirQuota() throws IOException {
+        long favoriteEntryId = addEntry(true);
+        File favoriteImage1 = addImage(favoriteEntryId, "1", 1);
+        File favoriteImage2 = addImage(favoriteEntryId, "2", 3);
+        File favoriteImage3 = addImage(favoriteEntryId, "3", 2);
+        long entryId = addEntry(false);
+        File image = addImage(entryId, "1", 0);
+
+        ImageManifest.trimCache(Long.MAX_VALUE, mFavoritesSize + IMAGE_SIZE * 3 / 2);
+
+        assertEvicted(favoriteEntryId, "1", favoriteImage1);
+        assertDownloaded(favoriteEntryId, "2", favoriteImage2);
+        assertEvicted(favoriteEntryId, "3", favoriteImage3);
+        // The cache fits, the other images are kept
+        assertDownloaded(entryId, "1", image);
+    }
+
+    @Test
+    public void evictsTheOtherImagesBeforeTheFavorites() throws IOException {
+        long favoriteEntryId = addEntry(true);
+        File favoriteImage = addImage(favoriteEntryId, "1", 0);
+        long entryId = addEntry(false);
+        File image1 = addImage(entryId, "1", 1);
+        File image2 = addImage(entryId, "2", 2);
+
+        ImageManifest.trimCache(mCacheSize + IMAGE_SIZE, Long.MAX_VALUE);
+
+        assertDownloaded(favoriteEntryId, "1", favoriteImage);
+        assertEvicted(entryId, "1", image1);
+        assertEvicted(entryId, "2", image2);
+    }
+
+    private long addEntry(boolean favorite) {
+        ContentValues values = new ContentValues();
+        values.put(EntryColumns.TITLE, "Entry");
+        values.put(EntryColumns.LINK, "http://localhost/" + System.nanoTime());
+        values.put(EntryColumns.DATE, System.currentTimeMillis());
+        values.put(EntryColumns.IS_FAVORITE, favorite ? 1 : 0);
+        return ContentUris.parseId(mContentResolver.insert(EntryColumns.ENTRIES_FOR_FEED_CONTENT_URI(mFeedId), values));
+    }
+
+    private File addImage(long entryId, String name, long lastAccess) throws IOException {
+        String url = getImageUrl(name);
+        String cacheKey = NetworkUtils.getImageCacheKey(url);
+
+        ContentValues values = new ContentValues();
+        values.put(ImageColumns.URL, url);
+        values.put(ImageColumns.CACHE_KEY, cacheKey);
+        values.put(ImageColumns.STATE, ImageColumns.STATE_DOWNLOADED);
+        values.put(ImageColumns.SIZE, IMAGE_SIZE);
+        values.put(ImageColumns.LAST_ACCESS, lastAccess);
+        mContentResolver.insert(ImageColumns.IMAGES_FOR_ENTRY_CONTENT_URI(entryId), values);
+
+        File file = new File(NetworkUtils.getDownloadedImagePathFromKey(entryId, cacheKey));
+        assertTrue(file.createNewFile());
+        return file;
+    }
+
+    private void assertDownloaded(long entryId, String name, File file) {
+        assertEquals(ImageColumns.STATE_DOWNLOADED, getState(entryId, name));
+        assertTrue(file.exists());
+    }
+
+    private void assertEvicted(long entryId, String name, File file) {
+        assertEquals(ImageColumns.STATE_PENDING, getState(entryId, name));
+        assertFalse(file.exists());
+    }
+
+    private int getState(long entryId, String name) {
+        Cursor cursor = mContentResolver.query(ImageColumns.IMAGES_FOR_ENTRY_CONTENT_URI(entryId), new String[]{ImageColumns.STATE},
+                ImageColumns.URL + "=?", new String[]{getImageUrl(name)}, null);
+        assertTrue(cursor.moveToFirst());
+        int state = cursor.getInt(0);
+        cursor.close();
+        return state;
+    }
+
+    private static String getImageUrl(String name) {
+        return "http://localhost/images/" + name + ".png";
+    }
+}
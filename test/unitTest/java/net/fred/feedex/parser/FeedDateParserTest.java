@@ -0,0 +1,142 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.parser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class FeedDateParserTest {
+
+    private static final long HOUR = 3600000L;
+    private static final long MINUTE = 60000L;
+
+    private TimeZone mDefaultTimeZone;
+    private FeedDateParser mParser;
+
+    @Before
+    public void setUp() {
+        // The dates without timezone are local times, June 2003 is UTC+2 here
+        mDefaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Paris"));
+        mParser = new FeedDateParser(utc(2017, 1, 1, 0, 0, 0));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    @Test
+    public void parsesRfc822Dates() {
+        long date = utc(2003, 6, 10, 4, 0, 0);
+        assertEquals(date, mParser.parse("Tue, 10 Jun 2003 04:00:00 GMT"));
+        assertEquals(date, mParser.parse("Tue, 10 Jun 2003 04:00:00 UT"));
+        assertEquals(date, mParser.parse("Tue, 10 Jun 2003 04:00:00 Z"));
+        assertEquals(date - 2 * HOUR, mParser.parse("Tue, 10 Jun 2003 04:00:00 +0200"));
+        assertEquals(date + 5 * HOUR + 30 * MINUTE, mParser.parse("Tue, 10 Jun 2003 04:00:00 -0530"));
+        assertEquals(date + 5 * HOUR, mParser.parse("10 Jun 2003 04:00 EST"));
+        assertEquals(date + 7 * HOUR, mParser.parse("Tue, 10 Jun 2003 04:00:00 PDT"));
+        assertEquals(date - HOUR, mParser.parse("Tue, 10 Jun 2003 04:00:00 CET"));
+    }
+
+    @Test
+    public void parsesMalformedRfc822Dates() {
+        long date = utc(2003, 6, 10, 4, 0, 0);
+        assertEquals(date, mParser.parse("  Tue, 10 Jun 2003 04:00:00 GMT  "));
+        assertEquals(date, mParser.parse("Tuesday, 10 June 2003 04:00:00 GMT"));
+        assertEquals(date, mParser.parse("Tue 10 Jun 2003 04:00:00 GMT"));
+        assertEquals(date, mParser.parse("Tue, 10-Jun-2003 04:00:00 GMT"));
+        assertEquals(date, mParser.parse("tue, 10 jun 2003 04:00:00 gmt"));
+        assertEquals(date, mParser.parse("Tue, 10 Jun 2003 04:00:00.123 GMT"));
+        assertEquals(date, mParser.parse("Tue, 10 Jun 03 04:00:00 GMT"));
+        assertEquals(date - HOUR, mParser.parse("Tue, 10 Jun 2003 04:00:00 GMT+01:00"));
+        assertEquals(utc(2003, 6, 1, 4, 0, 0), mParser.parse("Sun, 1 Jun 2003 04:00:00 GMT"));
+    }
+
+    @Test
+    public void parsesRfc822DatesWithoutTimezoneAsLocalTimes() {
+        assertEquals(utc(2003, 6, 10, 2, 0, 0), mParser.parse("Tue, 10 Jun 2003 04:00:00"));
+        assertEquals(utc(2003, 6, 10, 2, 0, 0), mParser.parse("Tue, 10 Jun 2003 04:00:00 XYZ"));
+        assertEquals(utc(2003, 6, 9, 22, 0, 0), mParser.parse("Tue, 10 Jun 2003"));
+        assertEquals(utc(2003, 1, 10, 3, 0, 0), mParser.parse("Fri, 10 Jan 2003 04:00:00")); // UTC+1 in winter
+    }
+
+    @Test
+    public void usesTheCenturyPivotForTwoDigitsYears() {
+        assertEquals(utc(2037, 6, 10, 0, 0, 0), mParser.parse("10 Jun 37 00:00:00 GMT"));
+        assertEquals(utc(1938, 6, 10, 0, 0, 0), mParser.parse("10 Jun 38 00:00:00 GMT"));
+    }
+
+    @Test
+    public void parsesIso8601Dates() {
+        long date = utc(2003, 6, 10, 4, 0, 0);
+        assertEquals(date, mParser.parse("2003-06-10T04:00:00Z"));
+        assertEquals(date, mParser.parse("2003-06-10t04:00:00z"));
+        assertEquals(date + 123, mParser.parse("2003-06-10T04:00:00.123Z"));
+        assertEquals(date + 123, mParser.parse("2003-06-10T04:00:00.123456Z"));
+        assertEquals(date + 500 - 2 * HOUR, mParser.parse("2003-06-10T04:00:00.5+02:00"));
+        assertEquals(date - 2 * HOUR, mParser.parse("2003-06-10T04:00:00+0200"));
+        assertEquals(date + 5 * HOUR, mParser.parse("2003-06-10T04:00-05:00"));
+        assertEquals(date - 2 * HOUR, mParser.parse("2003-06-10 04:00:00 +02"));
+        assertEquals(date, mParser.parse(" 2003-06-10T04:00:00 GMT"));
+        assertEquals(utc(2004, 2, 29, 12, 0, 0), mParser.parse("2004-02-29T12:00:00Z"));
+        assertEquals(-1000, mParser.parse("1969-12-31T23:59:59Z"));
+    }
+
+    @Test
+    public void parsesIso8601DatesWithoutTimezoneAsLocalTimes() {
+        assertEquals(utc(2003, 6, 10, 2, 0, 0), mParser.parse("2003-06-10T04:00:00"));
+        assertEquals(utc(2003, 6, 9, 22, 0, 0), mParser.parse("2003-06-10"));
+    }
+
+    @Test
+    public void switchesBetweenDialects() {
+        long date = utc(2003, 6, 10, 4, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(date, mParser.parse("2003-06-10T04:00:00Z"));
+            assertEquals(date, mParser.parse("2003-06-10T04:00:00Z"));
+            assertEquals(date, mParser.parse("Tue, 10 Jun 2003 04:00:00 GMT"));
+        }
+    }
+
+    @Test
+    public void rejectsInvalidDates() {
+        String[] invalidDates = {"", "   ", "not a date", "32 Jun 2003 04:00:00 GMT", "0 Jun 2003 04:00:00 GMT", "10 Foo 2003 04:00:00 GMT",
+                "10 Ju 2003 04:00:00 GMT", "Tue, 10 Jun 2003 04-00 GMT", "Tue, 10 Jun 2003 25:00:00 GMT", "Tue, 10 Jun 2003 04:61:00 GMT",
+                "2003-13-10T04:00:00Z", "2003-06-32T04:00:00Z", "2003-06-10T25:00:00Z", "2003-06-10T04Z", "03-06-10", "2003/06/10"};
+        for (String invalidDate : invalidDates) {
+            assertEquals(invalidDate, FeedDateParser.NO_DATE, mParser.parse(invalidDate));
+        }
+    }
+
+    private static long utc(int year, int month, int day, int hour, int minute, int second) {
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+}
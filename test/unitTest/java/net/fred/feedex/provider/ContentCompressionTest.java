@@ -0,0 +1,123 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package net.fred.feedex.provider;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentCompressionTest {
+
+    private static final String SAMPLE = "<p>The new version of the app is out, with <a href=\"https://example.com/changelog.html\">many changes</a>.</p>"
+            + "<p><img src=\"https://example.com/images/screenshot.jpg\"></p><ul><li>Faster sync</li><li>A dark theme</li></ul>"
+            + "<blockquote>This is the best release that we have ever made.</blockquote><br><br><p>Caf\u00e9, \u65e5\u672c\u8a9e</p>";
+    // SAMPLE as compressed when the dictionary was created. The stored bodies are read with the same dictionary, so it must never
+    // stop decompressing this.
+    private static final String COMPRESSED_SAMPLE = "6592410e82400c45afd2b82678031263e209bc4085024666984c51e0246e8c3b171a6fe15d88c7b06325c190cc6c9ae9f4fdfe2fb"
+            + "5006fa9851379165ba0ce558b7320ec322e5229b35eead0b84a5d484bb4055575f1055824066d0f5ae4303f1e01663b9efeb23728ef979c7a11cd65ddfc8484d"
+            + "ea3a66f832c8e01f736d520ca5d4186fe10a80d4dd239c9e236d8202708db1137e0a9226452b75a527748560006338aff833ceed1256bcc5ff70886f36db83cdf"
+            + "8f6b20fb00";
+
+    private static final String[] WORDS = {"the", "feed", "<p>", "</p>", "<a href=\"https://example.com/", "\">", "</a>", "entry", "news",
+            "<br>", "with", "image", "<img src=\"https://example.com/", ".jpg\">", "today", "reader"};
+
+    @Test
+    public void keepsTheShortBodiesAsText() {
+        assertNull(ContentCompression.compress(""));
+        assertNull(ContentCompression.compress(repeat("a", 255)));
+        assertNotNull(ContentCompression.compress(repeat("a", 256)));
+    }
+
+    @Test
+    public void keepsTheIncompressibleBodiesAsText() {
+        // Random characters of all the UTF-8 lengths, in the proportions making the encoded bytes nearly uniformly distributed
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1000) {
+            int type = random.nextInt(179);
+            if (type < 128) {
+                text.append((char) random.nextInt(0x80));
+            } else if (type < 158) {
+                text.append((char) (0x80 + random.nextInt(0x780)));
+            } else if (type < 174) {
+                char c = (char) (0x800 + random.nextInt(0xF800));
+                text.append(Character.isSurrogate(c) ? 'a' : c);
+            } else {
+                text.appendCodePoint(0x10000 + random.nextInt(0x100000));
+            }
+        }
+
+        assertNull(ContentCompression.compress(text.toString()));
+    }
+
+    @Test
+    public void compressesTheBodies() {
+        byte[] compressed = ContentCompression.compress(SAMPLE);
+
+        assertTrue(compressed.length < SAMPLE.length());
+        assertEquals(SAMPLE, ContentCompression.decompress(compressed));
+    }
+
+    @Test
+    public void handlesTheBodiesLargerThanTheBuffer() {
+        Random random = new Random(42);
+        StringBuilder html = new StringBuilder();
+        while (html.length() < 200000) {
+            html.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000)).append(' ');
+        }
+
+        byte[] compressed = ContentCompression.compress(html.toString());
+
+        assertTrue(compressed.length > 8192); // several deflate and inflate calls
+        assertEquals(html.toString(), ContentCompression.decompress(compressed));
+    }
+
+    @Test
+    public void keepsTheNonAsciiCharacters() {
+        String text = repeat("<p>\u00c9t\u00e9 \u00e0 Z\u00fcrich, \u041c\u043e\u0441\u043a\u0432\u0430, \u6771\u4eac \ud83d\udcf0</p>", 20);
+
+        assertEquals(text, ContentCompression.decompress(ContentCompression.compress(text)));
+    }
+
+    @Test
+    public void readsTheBodiesCompressedWithTheFirstDictionary() {
+        byte[] compressed = new byte[COMPRESSED_SAMPLE.length() / 2];
+        for (int i = 0; i < compressed.length; i++) {
+            compressed[i] = (byte) Integer.parseInt(COMPRESSED_SAMPLE.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        assertEquals(SAMPLE, ContentCompression.decompress(compressed));
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder(text.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+}
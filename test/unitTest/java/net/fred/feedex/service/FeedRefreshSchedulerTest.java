@@ -0,0 +1,197 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package net.fred.feedex.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays publication histories against the scheduler, and compares the requests and the staleness (delay between the publication
+ * of an entry and its fetch) with a refresh of every feed at each period
+ */
+public class FeedRefreshSchedulerTest {
+
+    private static final long MINUTE = 60000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long BASE_INTERVAL = HOUR;
+    private static final long START = 1483228800000L; // 2017-01-01
+    private static final long DURATION = 60 * DAY;
+    private static final long KNOWN_HISTORY = 30 * DAY;
+
+    @Test
+    public void keepsTheUserIntervalForTheBusyFeeds() {
+        // A news wire, publishing every 20 minutes
+        Result result = simulate(getHistory(20 * MINUTE, 5 * MINUTE), BASE_INTERVAL);
+        Result fixedResult = simulate(getHistory(20 * MINUTE, 5 * MINUTE), 0);
+
+        assertEquals(fixedResult.requests, result.requests);
+        assertEquals(fixedResult.getMeanStaleness(), result.getMeanStaleness());
+    }
+
+    @Test
+    public void pollsTheDailyFeedsLess() {
+        Result result = simulate(getHistory(DAY, 2 * HOUR), BASE_INTERVAL);
+        Result fixedResult = simulate(getHistory(DAY, 2 * HOUR), 0);
+        report("Daily", result, fixedResult);
+
+        // About twice a day instead of 24 times
+        assertTrue(result.requests * 8 < fixedResult.requests);
+        assertTrue(result.getMeanStaleness() <= 6 * HOUR + BASE_INTERVAL);
+        assertTrue(result.maxStaleness <= 12 * HOUR + BASE_INTERVAL);
+    }
+
+    @Test
+    public void pollsTheRareFeedsOnceADay() {
+        // Twice a month
+        Result result = simulate(getHistory(15 * DAY, DAY), BASE_INTERVAL);
+        Result fixedResult = simulate(getHistory(15 * DAY, DAY), 0);
+        report("Twice a month", result, fixedResult);
+
+        assertTrue(result.requests * 20 < fixedResult.requests);
+        assertTrue(result.requests >= DURATION / DAY);
+        assertTrue(result.maxStaleness <= DAY + BASE_INTERVAL);
+    }
+
+    @Test
+    public void slowsDownForTheFeedsWhichStopped() {
+        // Daily during the known history, then nothing during the simulation
+        ArrayList<Long> history = new ArrayList<>();
+        for (long date = START - KNOWN_HISTORY; date < START; date += DAY) {
+            history.add(date);
+        }
+        Result result = simulate(history, BASE_INTERVAL);
+
+        // Twice a day at first, then once a day when the feed has been quiet for two days
+        assertTrue(result.requests <= DURATION / DAY + 4);
+    }
+
+    @Test
+    public void usesTheUserIntervalWithoutEnoughHistory() {
+        assertEquals(BASE_INTERVAL, FeedRefreshScheduler.getRefreshInterval(new long[0], START, BASE_INTERVAL));
+        assertEquals(BASE_INTERVAL, FeedRefreshScheduler.getRefreshInterval(new long[]{START - DAY, START - 10 * DAY}, START, BASE_INTERVAL));
+    }
+
+    @Test
+    public void neverPollsMoreOftenThanTheUserInterval() {
+        long[] dates = new long[]{START - DAY, START - 2 * DAY, START - 3 * DAY};
+        long userInterval = 2 * DAY;
+        assertEquals(userInterval, FeedRefreshScheduler.getRefreshInterval(dates, START, userInterval));
+    }
+
+    @Test
+    public void retriesAfterTheUserIntervalAfterAFirstError() {
+        assertEquals(START + BASE_INTERVAL, FeedRefreshScheduler.getErrorRetryDate(START, START - 10 * DAY, false, BASE_INTERVAL));
+        assertEquals(START + BASE_INTERVAL, FeedRefreshScheduler.getErrorRetryDate(START, 0, true, BASE_INTERVAL));
+    }
+
+    @Test
+    public void backsOffWhileTheFeedKeepsFailing() {
+        assertEquals(START + BASE_INTERVAL, FeedRefreshScheduler.getErrorRetryDate(START, START - 10 * MINUTE, true, BASE_INTERVAL));
+        assertEquals(START + 5 * HOUR, FeedRefreshScheduler.getErrorRetryDate(START, START - 5 * HOUR, true, BASE_INTERVAL));
+        assertEquals(START + DAY, FeedRefreshScheduler.getErrorRetryDate(START, START - 10 * DAY, true, BASE_INTERVAL));
+    }
+
+    /**
+     * @param gap    the usual delay between two entries
+     * @param jitter the maximal variation of this delay, in both directions
+     * @return the publication dates from the start of the known history to the end of the simulation, from the oldest
+     */
+    private static ArrayList<Long> getHistory(long gap, long jitter) {
+        Random random = new Random(42);
+        ArrayList<Long> dates = new ArrayList<>();
+        for (long date = START - KNOWN_HISTORY; date < START + DURATION; date += gap) {
+            dates.add(date + (long) ((random.nextDouble() * 2 - 1) * jitter));
+        }
+        return dates;
+    }
+
+    /**
+     * Runs the refresh cycles of the simulation period, one per base interval, the feed being only refreshed when it is due like
+     * in FetcherService.refreshFeeds()
+     *
+     * @param baseInterval the user interval, or 0 to refresh the feed at each cycle (every hour)
+     */
+    private static Result simulate(ArrayList<Long> history, long baseInterval) {
+        Result result = new Result();
+        ArrayList<Long> knownDates = new ArrayList<>();
+        int nextPublication = 0;
+        while (nextPublication < history.size() && history.get(nextPublication) < START) {
+            knownDates.add(history.get(nextPublication++));
+        }
+
+        long cycle = baseInterval > 0 ? baseInterval : HOUR;
+        long nextRefreshDate = START;
+        for (long now = START; now < START + DURATION; now += cycle) {
+            if (baseInterval > 0 && nextRefreshDate > now + baseInterval / 2) { // see getDueFeedsWhereClause()
+                continue;
+            }
+
+            result.requests++;
+            while (nextPublication < history.size() && history.get(nextPublication) <= now) {
+                long staleness = now - history.get(nextPublication);
+                result.totalStaleness += staleness;
+                result.maxStaleness = Math.max(result.maxStaleness, staleness);
+                result.fetchedEntries++;
+                knownDates.add(history.get(nextPublication++));
+            }
+
+            if (baseInterval > 0) {
+                nextRefreshDate = now + FeedRefreshScheduler.getRefreshInterval(getLatestDates(knownDates), now, baseInterval);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the latest known dates, from the newest, like FeedRefreshScheduler.getNextRefreshDate()
+     */
+    private static long[] getLatestDates(ArrayList<Long> knownDates) {
+        long[] dates = new long[Math.min(20, knownDates.size())];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = knownDates.get(knownDates.size() - 1 - i);
+        }
+        return dates;
+    }
+
+    private static void report(String feed, Result result, Result fixedResult) {
+        System.out.println(feed + ": " + result.requests + " requests instead of " + fixedResult.requests + " ("
+                + (100 - result.requests * 100 / fixedResult.requests) + "% saved), mean staleness " + result.getMeanStaleness() / MINUTE
+                + " min instead of " + fixedResult.getMeanStaleness() / MINUTE + " min, max " + result.maxStaleness / MINUTE + " min");
+    }
+
+    private static class Result {
+        int requests;
+        int fetchedEntries;
+        long totalStaleness;
+        long maxStaleness;
+
+        long getMeanStaleness() {
+            return fetchedEntries > 0 ? totalStaleness / fetchedEntries : 0;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package net.fred.feedex.utils;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HtmlSanitizerTest {
+
+    private static final String BASE_URI = "http://example.com/blog/post.html";
+
+    // Sample feed contents, with their output by the previous sanitizing (regexes and Jsoup.clean() with the relaxed whitelist)
+    private static final String[][] PREVIOUS_OUTPUTS = {
+            {"<p>Today we released <b>version 2.0</b> of our app, with <a href=\"/changelog\">many changes</a>.</p>\n"
+                    + "<p><img src=\"/images/screenshot.png\" alt=\"Screenshot\" width=\"600\" height=\"400\" class=\"center\"></p>\n"
+                    + "<br><br><br><br>\n"
+                    + "<h2 id=\"new\">What's new</h2>\n"
+                    + "<ul><li>Faster sync</li><li>A <em>dark</em> theme</li></ul>\n"
+                    + "<blockquote cite=\"http://example.org/quote\">Best release ever</blockquote>\n"
+                    + "<p>Read more on <a href=\"http://example.org/\" target=\"_blank\" rel=\"nofollow\">our site</a></p>\n",
+                    "<p>Today we released <b>version 2.0</b> of our app, with <a href=\"http://example.com/changelog\">many changes</a>.</p> \n"
+                            + "<p><img src=\"http://example.com/images/screenshot.png\" alt=\"Screenshot\" width=\"600\" height=\"400\"></p><br><br>\n"
+                            + "<h2>What's new</h2> \n"
+                            + "<ul>\n <li>Faster sync</li>\n <li>A <em>dark</em> theme</li>\n</ul> \n"
+                            + "<blockquote cite=\"http://example.org/quote\">\n Best release ever\n</blockquote> \n"
+                            + "<p>Read more on <a href=\"http://example.org/\">our site</a></p>"},
+            {"<div class=\"content\"><table border=\"0\" width=\"100%\"><tr><td width=\"50%\" style=\"color:red\">Price</td><td>10 &euro;</td></tr></table>\n"
+                    + "<ol start=\"3\"><li>Three</li><li>Four</li></ol>\n"
+                    + "<iframe src=\"https://www.youtube.com/embed/abc\" frameborder=\"0\" width=\"560\" height=\"315\" allowfullscreen></iframe>\n"
+                    + "<video src=\"http://example.com/video.mp4\" controls poster=\"http://example.com/poster.jpg\"></video>\n"
+                    + "<p>Code: <code>a &lt; b &amp;&amp; c</code></p></div>\n",
+                    "<div>\n <table width=\"100%\">\n  <tbody>\n   <tr>\n    <td width=\"50%\">Price</td>\n    <td>10 \u20ac</td>\n   </tr>\n"
+                            + "  </tbody>\n </table> \n <ol start=\"3\">\n  <li>Three</li>\n  <li>Four</li>\n </ol> \n"
+                            + " <iframe src=\"https://www.youtube.com/embed/abc\" frameborder=\"0\" width=\"560\" height=\"315\"></iframe> \n"
+                            + " <video src=\"http://example.com/video.mp4\" controls poster=\"http://example.com/poster.jpg\"></video> \n"
+                            + " <p>Code: <code>a &lt; b &amp;&amp; c</code></p>\n</div>"},
+            {"<p>A photo:</p><img src=\"http://example.com/placeholder.gif\" data-src=\"http://example.com/photo.jpg\" alt=\"Photo\">\n"
+                    + "<p>An <span>inline</span> <strong>text</strong> and a <a href=\"//cdn.example.com/file.pdf\">protocol-relative link</a>.</p>\n"
+                    + "<br>\n<br>\n<br>\n",
+                    "<p>A photo:</p>\n<img src=\"http://example.com/photo.jpg\" alt=\"Photo\"> \n"
+                            + "<p>An <span>inline</span> <strong>text</strong> and a <a href=\"http://cdn.example.com/file.pdf\">protocol-relative link</a>.</p>"}
+    };
+
+    @Test
+    public void removesTheScriptsStylesAndComments() {
+        assertEquals("<p>Before</p><p>After</p>",
+                sanitize("<p>Before</p><script>alert('script');</script><style>p { color: red; }</style><!-- comment --><p>After</p>"));
+        assertEquals("<p>Text</p>", sanitize("<p onclick=\"alert(1)\" style=\"color: red\">Text</p>"));
+        assertEquals("Unknown tag", sanitize("<blink>Unknown tag</blink>"));
+        assertEquals("<p>Content</p>", sanitize("<p>Content</p><div class=\"mf-viral\"><table border=\"0\"><tr><td>Ads</td></tr></table></div>"));
+    }
+
+    @Test
+    public void escapesTheTextAndTheAttributes() {
+        assertEquals("<p>a &lt; b &amp;&amp; c &gt; \"d\"</p>", sanitize("<p>a &lt; b &amp;&amp; c &gt; \"d\"</p>"));
+        assertEquals("<a href=\"http://example.com/?a=1&amp;b=2\" title=\"A &quot;quoted&quot; <title> &amp; more\">Link</a>",
+                sanitize("<a href=\"http://example.com/?a=1&amp;b=2\" title=\"A &quot;quoted&quot; &lt;title&gt; &amp; more\">Link</a>"));
+        assertEquals("<img src=\"http://example.com/a.png\" alt=\"&quot;><script>alert(1)</script>\">",
+                sanitize("<img src=\"http://example.com/a.png\" alt='\"><script>alert(1)</script>'>"));
+    }
+
+    @Test
+    public void dropsTheScriptUrls() {
+        assertEquals("<a>Link</a>", sanitize("<a href=\"javascript:alert(1)\">Link</a>"));
+        assertEquals("<a>Link</a>", sanitize("<a href=\" JavaScript:alert(1)\">Link</a>"));
+        assertEquals("<p>Text</p>", sanitize("<p>Text<img src=\"javascript:alert(1)\"></p>"));
+        assertEquals("<p>Text</p>", sanitize("<p>Text<img src=\"data:image/png;base64,AAAA\"></p>"));
+        assertEquals("<iframe width=\"560\"></iframe>", sanitize("<iframe src=\"javascript:alert(1)\" width=\"560\"></iframe>"));
+        assertEquals("<video controls=\"\"></video>", sanitize("<video src=\"javascript:alert(1)\" poster=\"javascript:alert(2)\" controls></video>"));
+        assertEquals("<a href=\"mailto:me@example.com\">Mail</a>", sanitize("<a href=\"mailto:me@example.com\">Mail</a>"));
+    }
+
+    @Test
+    public void usesTheLazyLoadedImages() {
+        assertEquals("<img src=\"http://example.com/photo.jpg\">",
+                sanitize("<img src=\"http://example.com/placeholder.gif\" data-src=\"http://example.com/photo.jpg\">"));
+        assertEquals("<img src=\"http://example.com/photo.jpg\">", sanitize("<img original-src=\"/photo.jpg\">"));
+        assertEquals("<img src=\"http://example.com/photo.jpg\">", sanitize("<img src=\"/placeholder.gif\" data-original=\"../photo.jpg\">"));
+        // An invalid lazy loading source falls back to the real one
+        assertEquals("<img src=\"http://example.com/placeholder.png\">",
+                sanitize("<img src=\"/placeholder.png\" data-src=\"javascript:alert(1)\">"));
+    }
+
+    @Test
+    public void removesTheUselessImagesAndLinks() {
+        assertEquals("<p>Text</p>", sanitize("<p>Text<img src=\"http://tracker.example.com/pixel.gif\" height=\"1\" width=\"1\"></p>"));
+        assertEquals("<p>Text</p>", sanitize("<p>Text<img src=\"http://example.com/picture.img\"></p>"));
+        assertEquals("<p>Text</p>", sanitize("<p>Text<a href=\"http://example.com/\"></a></p>"));
+        assertEquals("<img src=\"http://example.com/my%20photo.jpg\">", sanitize("<img src=\"/my photo.jpg\">"));
+    }
+
+    @Test
+    public void collapsesTheLineBreaks() {
+        assertEquals("First", sanitize("<br><br/> <br>First<br><br>"));
+        assertEquals("First<br>Second", sanitize("First<br>Second"));
+        assertEquals("First<br><br>Second", sanitize("First<br><br><br><br>\n<br>Second"));
+        assertEquals("<p>First</p><br><br><p>Second</p>", sanitize("<p>First</p><br><br><br><p>Second</p>"));
+    }
+
+    @Test
+    public void collectsTheImages() {
+        HtmlSanitizer sanitizer = HtmlSanitizer.sanitize("<img src=\"/spacer.gif\"><p><img src=\"/photo 1.jpg\"></p>"
+                + "<img src=\"http://example.com/pixel.png\" width=\"1\" height=\"1\"><img data-src=\"//cdn.example.com/photo2.png\">", BASE_URI);
+
+        assertEquals(Arrays.asList("http://example.com/spacer.gif", "http://example.com/photo%201.jpg", "http://cdn.example.com/photo2.png"),
+                sanitizer.getImageUrls());
+        assertEquals("http://example.com/photo%201.jpg", sanitizer.getMainImageUrl());
+
+        sanitizer = HtmlSanitizer.sanitize("<p>No image</p>", null);
+        assertEquals(Collections.<String>emptyList(), sanitizer.getImageUrls());
+        assertNull(sanitizer.getMainImageUrl());
+    }
+
+    @Test
+    public void keepsTheOutputOfTheWhitelist() {
+        for (String[] sample : PREVIOUS_OUTPUTS) {
+            assertEquals(normalize(sample[1]), normalize(HtmlSanitizer.sanitize(sample[0], BASE_URI).getHtml()));
+        }
+    }
+
+    private static String sanitize(String content) {
+        return HtmlSanitizer.sanitize(content, BASE_URI).getHtml();
+    }
+
+    /**
+     * @return the html without the formatting differences: the blank texts are removed, the spaces collapsed and the attributes sorted
+     */
+    private static String normalize(String html) {
+        StringBuilder builder = new StringBuilder();
+        appendNormalized(Jsoup.parseBodyFragment(html).body(), builder);
+        return builder.toString();
+    }
+
+    private static void appendNormalized(Element element, StringBuilder builder) {
+        for (Node child : element.childNodes()) {
+            if (child instanceof TextNode) {
+                String text = ((TextNode) child).text().trim();
+                if (!text.isEmpty()) {
+                    builder.append(text).append(' ');
+                }
+            } else if (child instanceof Element) {
+                Element childElement = (Element) child;
+                ArrayList<String> attributes = new ArrayList<>();
+                for (Attribute attribute : childElement.attributes()) {
+                    attributes.add(attribute.getKey() + "=\"" + attribute.getValue() + '"');
+                }
+                Collections.sort(attributes);
+
+                builder.append('<').append(childElement.tagName());
+                for (String attribute : attributes) {
+                    builder.append(' ').append(attribute);
+                }
+                builder.append('>');
+                appendNormalized(childElement, builder);
+                builder.append("</").append(childElement.tagName()).append('>');
+            }
+        }
+    }
+}
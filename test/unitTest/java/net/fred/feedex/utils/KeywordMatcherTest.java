@@ -0,0 +1,121 @@
+/**
+ * Flym
+ * <p/>
+ * Copyright (c) 2012-2015 Frederic Julian
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.fred.feedex.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeywordMatcherTest {
+
+    // Same flags than the feed filters
+    private static final int ACCEPT = 1;
+    private static final int REJECT = 2;
+    private static final int OTHER = 4;
+
+    @Test
+    public void findsTheKeywordsAnywhereInTheText() {
+        KeywordMatcher matcher = new KeywordMatcher();
+        matcher.addKeyword("sport", REJECT);
+
+        assertEquals(REJECT, matcher.match("sport", 0));
+        assertEquals(REJECT, matcher.match("Latest sport news", 0));
+        assertEquals(REJECT, matcher.match("esports", 0));
+        assertEquals(0, matcher.match("spor t", 0));
+        assertEquals(0, matcher.match("Sport", 0)); // case-sensitive, like the previous String.contains()
+        assertEquals(0, matcher.match("", 0));
+    }
+
+    @Test
+    public void followsTheFailureLinks() {
+        // Classic Aho-Corasick example: the keywords overlap and some are suffixes of others
+        KeywordMatcher matcher = new KeywordMatcher();
+        matcher.addKeyword("he", 1);
+        matcher.addKeyword("she", 2);
+        matcher.addKeyword("his", 4);
+        matcher.addKeyword("hers", 8);
+
+        assertEquals(1 | 2, matcher.match("ushe", 0)); // "she" also ends with "he"
+        assertEquals(1 | 8, matcher.match("xhers", 0));
+        assertEquals(1 | 2 | 8, matcher.match("ushers", 0));
+        assertEquals(4, matcher.match("this", 0));
+        assertEquals(0, matcher.match("hs sh hi", 0));
+    }
+
+    @Test
+    public void findsTheKeywordsAfterAPartialMatch() {
+        KeywordMatcher matcher = new KeywordMatcher();
+        matcher.addKeyword("abcd", 1);
+        matcher.addKeyword("bce", 2);
+        matcher.addKeyword("aab", 4);
+
+        assertEquals(2, matcher.match("abce", 0)); // "abc" fails on 'e', goes on with "bc"
+        assertEquals(4, matcher.match("aaab", 0));
+        assertEquals(1 | 4, matcher.match("aabcd", 0));
+    }
+
+    @Test
+    public void mergesTheFlagsOfTheSameKeyword() {
+        KeywordMatcher matcher = new KeywordMatcher();
+        matcher.addKeyword("apple", ACCEPT);
+        matcher.addKeyword("apple", REJECT);
+        matcher.addKeyword("pie", OTHER);
+
+        assertEquals(ACCEPT | REJECT, matcher.match("an apple", 0));
+        assertEquals(ACCEPT | REJECT | OTHER, matcher.match("apple pie", 0));
+    }
+
+    @Test
+    public void stopsAtTheFirstStopFlag() {
+        KeywordMatcher matcher = new KeywordMatcher();
+        matcher.addKeyword("keep", ACCEPT);
+        matcher.addKeyword("drop", REJECT);
+
+        // The reject keyword after the accept one is not looked for
+        assertEquals(ACCEPT, matcher.match("keep then drop", ACCEPT));
+        assertEquals(REJECT | ACCEPT, matcher.match("drop then keep", ACCEPT));
+        assertEquals(REJECT, matcher.match("drop only", ACCEPT));
+        assertEquals(ACCEPT | REJECT, matcher.match("keep then drop", 0));
+    }
+
+    @Test
+    public void matchesEverythingWithAnEmptyKeyword() {
+        KeywordMatcher matcher = new KeywordMatcher();
+        matcher.addKeyword("", REJECT);
+        matcher.addKeyword("x", ACCEPT);
+
+        assertEquals(REJECT, matcher.match("", 0));
+        assertEquals(REJECT | ACCEPT, matcher.match("x", 0));
+    }
+
+    @Test
+    public void matchesNothingWithoutKeyword() {
+        assertEquals(0, new KeywordMatcher().match("anything", ACCEPT));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesKeywordsOnceUsed() {
+        KeywordMatcher matcher = new KeywordMatcher();
+        matcher.addKeyword("a", ACCEPT);
+        matcher.match("a", 0);
+        matcher.addKeyword("b", ACCEPT);
+    }
+}